@@ -1,14 +1,15 @@
 package ca.oceansdata.dime.common.event;
 
-import ca.oceansdata.dime.common.event.types.*;
 import io.vertx.core.json.JsonObject;
 import io.vertx.reactivex.ext.sql.SQLConnection;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.Date;
 import java.util.Locale;
 import java.util.UUID;
@@ -22,20 +23,26 @@ public class Event {
 
     private static final Logger log = LoggerFactory.getLogger(Event.class);
 
+    /** Format of the timestamps written by earlier versions, that of {@link Date#toString()}.
+     *  Immutable and shared by every event.
+     */
+    public static final DateTimeFormatter LEGACY_TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("EEE MMM dd HH:mm:ss zzz yyyy", Locale.US);
+
+    //Write timestamps in the legacy format, for services that cannot read epoch milliseconds yet
+    private static volatile boolean legacyTimestamps = true;
+
     private UUID id;
-    private Date timestamp;
+    private long timestamp; //Epoch milliseconds
     private String eventTarget; //ORCID of the user who should see this event
     private EventType type;
     protected JsonObject data = new JsonObject();
 
-    private SimpleDateFormat dateFormat = new SimpleDateFormat("EEE MMM dd HH:mm:ss Z yyyy", new Locale("us"));
-
     /**
      * No-Args constructor
      */
     public Event(){
         this.id = UUID.randomUUID();
-        this.timestamp = Date.from(Instant.now());
+        this.timestamp = System.currentTimeMillis();
     }
 
     /**
@@ -43,7 +50,7 @@ public class Event {
      */
     public Event(EventType type){
         this.id = UUID.randomUUID();
-        this.timestamp = Date.from(Instant.now());
+        this.timestamp = System.currentTimeMillis();
         this.type = type;
     }
 
@@ -51,9 +58,20 @@ public class Event {
     /** DataObject constructor.
      *  This allows us to pass events around the event bus easily.
      *
+     *  The timestamp may be in epoch milliseconds, or in the legacy string format.
+     *
      * @param data
      */
     public Event (JsonObject data) throws IllegalEventFormatException{
+        readJson(data);
+    }
+
+    /** Read the id, timestamp, event target, type and data of an event json object.
+     *
+     * @param data the event json object
+     * @throws IllegalEventFormatException if a key is missing or malformed
+     */
+    void readJson(JsonObject data) throws IllegalEventFormatException{
 
         if(!data.containsKey("id")){
             throw new IllegalEventFormatException(data, "id", "key missing");
@@ -64,15 +82,7 @@ public class Event {
             throw new IllegalEventFormatException(data, "timestamp", "key missing");
         }
 
-        try{
-            Date date = dateFormat.parse(data.getString("timestamp"));
-            this.timestamp = date;
-        }catch (ParseException pe){
-            log.error("Error parsing timestamp from JSON Object:\n{}", data.encodePrettily());
-            log.error(pe.getMessage());
-            pe.printStackTrace();
-            throw new IllegalEventFormatException(data, "timestamp", "wrong format");
-        }
+        this.timestamp = parseTimestamp(data);
 
         if(!data.containsKey("eventTarget")){
             throw new IllegalEventFormatException(data, "eventTarget", "key missing");
@@ -90,10 +100,45 @@ public class Event {
     }
 
 
+    /** Read the timestamp of an event json object.
+     *
+     * @param data the event json object
+     * @return the timestamp, in epoch milliseconds
+     * @throws IllegalEventFormatException if the timestamp is neither in epoch milliseconds nor in the legacy format
+     */
+    private static long parseTimestamp(JsonObject data) throws IllegalEventFormatException{
+        Object value = data.getValue("timestamp");
+        if(value instanceof Number){
+            return ((Number)value).longValue();
+        }
+
+        try{
+            return ZonedDateTime.parse((String)value, LEGACY_TIMESTAMP_FORMAT).toInstant().toEpochMilli();
+        }catch (DateTimeParseException | ClassCastException | NullPointerException e){
+            log.error("Error parsing timestamp from JSON Object:\n{}", data.encodePrettily());
+            log.error(e.getMessage());
+            throw new IllegalEventFormatException(data, "timestamp", "wrong format");
+        }
+    }
+
+    /** Write timestamps in the legacy string format instead of epoch milliseconds.
+     *
+     *  Events of either format are always read, but timestamps are written in the legacy format by
+     *  default, so services that cannot read epoch milliseconds keep working. Once every service has
+     *  been upgraded, turn legacy timestamps off to write epoch milliseconds.
+     *
+     * @param legacy true to write legacy timestamps, the default
+     */
+    public static void legacyTimestamps(boolean legacy){
+        legacyTimestamps = legacy;
+    }
+
     public JsonObject toJson(){
         JsonObject result = new JsonObject()
                 .put("id", getId().toString())
-                .put("timestamp", getTimestamp().toString())
+                .put("timestamp", legacyTimestamps?
+                        LEGACY_TIMESTAMP_FORMAT.format(ZonedDateTime.ofInstant(Instant.ofEpochMilli(timestamp), ZoneId.systemDefault())):
+                        timestamp)
                 .put("eventTarget", getEventTarget())
                 .put("type", getType().getText())
                 .put("data", data);
@@ -102,83 +147,61 @@ public class Event {
     }
 
 
-    public static Event fromSQLResult(JsonObject data){
-
-        Event event = new Event();
-        event.setId(UUID.fromString(data.getString("ID")));
-
-        Date d = new Date();
-        d.setTime(data.getLong("TIMESTAMP"));
-        event.setTimestamp(d);
-
-        event.setEventTarget(data.getString("EVENT_TARGET"));
-        event.setType(EventType.getType(data.getString("EVENT_TYPE")));
-
-        JsonObject json = new JsonObject(data.getString("DATA"));
-        event.setData(json);
+    /** Read the fields of a typed event from its data object. Called once the id, timestamp, event target
+     *  and type are set, whether the event is built from its json object or read from the database.
+     *
+     *  Events without fields of their own have nothing to read.
+     *
+     * @param data the data object of the event, may be null
+     * @throws IllegalEventFormatException if a field is missing or malformed
+     */
+    protected void readData(JsonObject data) throws IllegalEventFormatException{}
 
-        try{
+    /** Read an event from a row of the events table, see {@link #createTable(SQLConnection)}.
+     *
+     *  The event of the row's type is created directly from the row, parsing the DATA column once,
+     *  see {@link EventRegistry#read(EventType, UUID, long, String, JsonObject)}.
+     *
+     * @param data the row
+     * @return the event
+     */
+    public static Event fromSQLResult(JsonObject data){
+        String json = data.getString("DATA");
+
+        return EventRegistry.read(
+                EventType.getType(data.getString("EVENT_TYPE")),
+                UUID.fromString(data.getString("ID")),
+                data.getLong("TIMESTAMP"),
+                data.getString("EVENT_TARGET"),
+                json == null? null: new JsonObject(json)
+        );
+    }
 
-            switch (event.getType()){
-                case LOGIN:
-                    return new LoginEvent(event.toJson());
-                case LOGOUT:
-                    return new LogoutEvent(event.toJson());
-                case DOCUMENT_UPLOAD:
-                    return new DocumentUploadEvent(event.toJson());
-                case ATTRIBUTE_MAPPING:
-                    return new AttributeMappingEvent(event.toJson());
-                case DOWNLOAD_INTEGRATED_FILE:
-                    return new DownloadIntegratedFileEvent(event.toJson());
-                case DOWNLOAD_ORIGINAL_FILE:
-                    return new DownloadOriginalFileEvent(event.toJson());
-                case COMMUNITY_TASK_MATCH:
-                    return new CommunityTaskMatchEvent(event.toJson());
-                case COMMUNITY_MATCH_RESULT:
-                    return new CommunityMatchResultEvent(event.toJson());
-                case PROFILE_UPDATE:
-                    return new ProfileUpdateEvent(event.toJson());
-                case DOWNLOAD_DIME_TOOLS_FOR_WINDOWS:
-                    return new DownloadDimeToolsForWindowsEvent(event.toJson());
-                case UPDATE_METADATA_FIELD:
-                    return new UpdateMetadataFieldEvent(event.toJson());
-                case TASK_CREATED:
-                    return new TaskCreatedEvent(event.toJson());
-                case TASK_SKIPPED:
-                    return new TaskSkippedEvent(event.toJson());
-                case TASK_UPDATED:
-                    return new TaskUpdatedEvent(event.toJson());
-                case TASK_DISMISSED:
-                    return new TaskDismissedEvent(event.toJson());
-                case LINK_EXTERNAL_ACCOUNT:
-                    return new LinkExternalAccountEvent(event.toJson());
-                case PUBLISH:
-                    return new PublishEvent(event.toJson());
-                default:
-                    log.error("No such event.");
-            }
-
-        }catch (IllegalEventFormatException iefe){
-            log.error("Error parsing event from database");
-            log.error(iefe.getMessage());
-            iefe.printStackTrace();
-        }
 
-        return event;
-    }
+    //Events table, read by fromSQLResult
+    static final String CREATE_TABLE_SQL = "CREATE TABLE IF NOT EXISTS EVENTS (" +
+            "ID TEXT PRIMARY KEY NOT NULL," +
+            "TIMESTAMP INTEGER NOT NULL," +
+            "EVENT_TARGET TEXT NOT NULL," +
+            "EVENT_TYPE TEXT NOT NULL," +
+            "DATA TEXT" +
+            ");";
 
+    //Index for the latest events of a user, ID orders events with the same timestamp
+    static final String CREATE_INDEX_SQL = "CREATE INDEX IF NOT EXISTS EVENTS_TARGET_TIMESTAMP " +
+            "ON EVENTS (EVENT_TARGET, TIMESTAMP, ID);";
 
+    /** Create the events table and its (EVENT_TARGET, TIMESTAMP) index if they do not exist.
+     *
+     *  See {@link EventStore} for reading and writing events in it.
+     *
+     * @param conn the database connection
+     */
     public static void createTable(SQLConnection conn){
 
-        String sql = "CREATE TABLE IF NOT EXISTS EVENTS (" +
-                "ID TEXT PRIMARY KEY NOT NULL," +
-                "TIMESTAMP INTEGER NOT NULL," +
-                "EVENT_TARGET TEXT NOT NULL," +
-                "EVENT_TYPE TEXT NOT NULL," +
-                "DATA TEXT" +
-                ");";
-
-        conn.rxUpdate(sql).subscribe(
+        conn.rxUpdate(CREATE_TABLE_SQL)
+                .flatMap(created->conn.rxUpdate(CREATE_INDEX_SQL))
+                .subscribe(
                 success->{
                     log.info("Successfully created events table in database!");
                 },
@@ -202,10 +225,20 @@ public class Event {
     }
 
     public Date getTimestamp() {
-        return timestamp;
+        return new Date(timestamp);
     }
 
     public void setTimestamp(Date timestamp) {
+        this.timestamp = timestamp.getTime();
+    }
+
+    /** @return the timestamp, in epoch milliseconds
+     */
+    public long getTimestampMillis() {
+        return timestamp;
+    }
+
+    public void setTimestampMillis(long timestamp) {
         this.timestamp = timestamp;
     }
 
@@ -0,0 +1,129 @@
+package ca.oceansdata.dime.common.event;
+
+import ca.oceansdata.dime.common.event.types.*;
+import io.vertx.core.json.JsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.UUID;
+import java.util.function.Supplier;
+
+/** Creates events of each {@link EventType}, for every path that decodes events: {@link Event#fromSQLResult(JsonObject)},
+ *  {@link EventService#parse(io.vertx.reactivex.core.eventbus.Message)} and {@link ca.oceansdata.dime.common.event.codec.EventCodec}.
+ *
+ *  Event classes are registered by their no-args constructor, in an array indexed by event type ordinal.
+ *  Adding an event type takes one line in the static block below.
+ */
+public final class EventRegistry {
+    private static final Logger log = LoggerFactory.getLogger(EventRegistry.class);
+
+    @SuppressWarnings("unchecked")
+    private static final Supplier<? extends Event> [] factories = new Supplier[EventType.values().length];
+
+    static {
+        register(EventType.LOGIN, LoginEvent::new);
+        register(EventType.LOGOUT, LogoutEvent::new);
+        register(EventType.DOCUMENT_UPLOAD, DocumentUploadEvent::new);
+        register(EventType.ATTRIBUTE_MAPPING, AttributeMappingEvent::new);
+        register(EventType.DOWNLOAD_INTEGRATED_FILE, DownloadIntegratedFileEvent::new);
+        register(EventType.DOWNLOAD_ORIGINAL_FILE, DownloadOriginalFileEvent::new);
+        register(EventType.COMMUNITY_TASK_MATCH, CommunityTaskMatchEvent::new);
+        register(EventType.COMMUNITY_MATCH_RESULT, CommunityMatchResultEvent::new);
+        register(EventType.PROFILE_UPDATE, ProfileUpdateEvent::new);
+        register(EventType.DOWNLOAD_DIME_TOOLS_FOR_WINDOWS, DownloadDimeToolsForWindowsEvent::new);
+        register(EventType.UPDATE_METADATA_FIELD, UpdateMetadataFieldEvent::new);
+        register(EventType.TASK_DISMISSED, TaskDismissedEvent::new);
+        register(EventType.TASK_SKIPPED, TaskSkippedEvent::new);
+        register(EventType.TASK_UPDATED, TaskUpdatedEvent::new);
+        register(EventType.TASK_CREATED, TaskCreatedEvent::new);
+        register(EventType.LINK_EXTERNAL_ACCOUNT, LinkExternalAccountEvent::new);
+        register(EventType.PUBLISH, PublishEvent::new);
+    }
+
+    private EventRegistry(){}
+
+    /** Register the event class of an event type, replacing any registered before.
+     *  Registrations should be made before events of the type are decoded.
+     *
+     * @param type the event type
+     * @param factory the no-args constructor of the event class
+     */
+    public static void register(EventType type, Supplier<? extends Event> factory){
+        factories[type.ordinal()] = factory;
+    }
+
+    /** Create an empty event of a given type.
+     *
+     * @param type the event type
+     * @return the event, or null if no event class is registered for the type
+     */
+    public static Event create(EventType type){
+        if(type == null){
+            return null;
+        }
+        Supplier<? extends Event> factory = factories[type.ordinal()];
+        return factory == null? null: factory.get();
+    }
+
+    /** Create an event of a given type from its fields, reading the fields of its event class from its data.
+     *
+     *  If the data does not fit the event class, or no event class is registered for the type, a plain
+     *  event is returned instead.
+     *
+     * @param type the event type
+     * @param id the event id
+     * @param timestamp the timestamp, in epoch milliseconds
+     * @param eventTarget ORCID of the user who should see the event
+     * @param data the event data, may be null
+     * @return the event
+     */
+    public static Event read(EventType type, UUID id, long timestamp, String eventTarget, JsonObject data){
+        Event event = create(type);
+        if(event == null){
+            log.error("No such event.");
+            event = new Event(type);
+        }
+        event.setId(id);
+        event.setTimestampMillis(timestamp);
+        event.setEventTarget(eventTarget);
+        event.setData(data);
+
+        try{
+            event.readData(data);
+        }catch (IllegalEventFormatException iefe){
+            log.error("Error reading {} event {}", type, id);
+            log.error(iefe.getMessage());
+            iefe.printStackTrace();
+
+            Event plain = new Event(type);
+            plain.setId(id);
+            plain.setTimestampMillis(timestamp);
+            plain.setEventTarget(eventTarget);
+            plain.setData(data);
+            return plain;
+        }
+
+        return event;
+    }
+
+    /** Decode an event from its json object, as created by {@link Event#toJson()}.
+     *
+     * @param json the event json object
+     * @return the event, or null if there is no such event type
+     * @throws IllegalEventFormatException if the json object does not fit the event type
+     */
+    public static Event fromJson(JsonObject json) throws IllegalEventFormatException{
+        if(!json.containsKey("type")){
+            throw new IllegalEventFormatException(json, "type", "key missing");
+        }
+
+        Event event = create(EventType.typeMap.get(json.getString("type")));
+        if(event == null){
+            return null;
+        }
+
+        event.readJson(json);
+        event.readData(event.getData());
+        return event;
+    }
+}
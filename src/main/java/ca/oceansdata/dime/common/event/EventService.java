@@ -1,6 +1,7 @@
 package ca.oceansdata.dime.common.event;
 
-import ca.oceansdata.dime.common.event.types.*;
+import ca.oceansdata.dime.common.event.codec.EventCodec;
+import io.vertx.core.eventbus.DeliveryOptions;
 import io.vertx.core.json.JsonObject;
 import io.vertx.reactivex.core.eventbus.EventBus;
 import io.vertx.reactivex.core.eventbus.Message;
@@ -12,12 +13,24 @@ public class EventService {
 
     private static final Logger log = LoggerFactory.getLogger(EventService.class);
 
+    private static final DeliveryOptions BINARY = new DeliveryOptions().setCodecName(EventCodec.NAME);
+
     private EventBus eb;
+    private boolean binary = false;
 
     public EventService(EventBus eb){
         this.eb = eb;
     }
 
+    /** @param eb the event bus to emit events on
+     * @param binary true to emit events with the {@link EventCodec}, which must be registered on the event bus,
+     *               rather than as json objects. Every subscriber must parse events with {@link #parse(Message)}.
+     */
+    public EventService(EventBus eb, boolean binary){
+        this.eb = eb;
+        this.binary = binary;
+    }
+
     public void emit(Event e){
         try{
             if(e.getEventTarget() == null){
@@ -26,7 +39,11 @@ public class EventService {
                 if(e.getType() == null){
                     throw new Exception("Event type cannot be null! Cannot emit event!");
                 }else{
-                    eb.publish("dime.events", e.toJson());
+                    if(binary){
+                        eb.publish("dime.events", e, BINARY);
+                    }else{
+                        eb.publish("dime.events", e.toJson());
+                    }
                 }
             }
         }catch (Exception err){
@@ -38,50 +55,25 @@ public class EventService {
 
     }
 
+    /** Parse an emitted event, sent either as a json object or with the {@link EventCodec}.
+     *
+     * @param msg the event bus message
+     * @return the event, or null if it could not be parsed
+     */
     public static Event parse(Message msg){
 
+        if(msg.body() instanceof Event){
+            return (Event)msg.body();
+        }
+
         JsonObject json = (JsonObject)msg.body();
 
         try{
-            switch (json.getString("type")){
-                case "Attribute Mapping":
-                    return new AttributeMappingEvent(json);
-
-                case "Document Upload":
-                    return new DocumentUploadEvent(json);
-
-                case "Login":
-                    return new LoginEvent(json);
-
-                case "Logout":
-                    return new LogoutEvent(json);
-
-                case "Download Integrated File":
-                    return new DownloadIntegratedFileEvent(json);
-
-                case "Download Original File":
-                    return new DownloadOriginalFileEvent(json);
-
-
-                case "Community Task Match":
-                    return new CommunityTaskMatchEvent(json);
-
-
-                case "Community Match Result":
-                    return new CommunityMatchResultEvent(json);
-
-                case "Profile Update":
-                    return new ProfileUpdateEvent(json);
-
-                case "Download DIME Tools for Windows":
-                    return new DownloadDimeToolsForWindowsEvent(json);
-
-                case "Updated Metadata Field":
-                    return new UpdateMetadataFieldEvent(json);
-
-                default:
-                    log.error("No such event type!");
+            Event event = EventRegistry.fromJson(json);
+            if(event == null){
+                log.error("No such event type!");
             }
+            return event;
         }catch (IllegalEventFormatException e){
             log.error("Error parsing event object off the wire");
             log.error(e.getMessage());
@@ -0,0 +1,342 @@
+package ca.oceansdata.dime.common.event;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.reactivex.core.Future;
+import io.vertx.reactivex.core.Promise;
+import io.vertx.reactivex.core.Vertx;
+import io.vertx.reactivex.ext.sql.SQLClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/** Reads and writes events in the events table, see {@link Event#createTable(io.vertx.reactivex.ext.sql.SQLConnection)}.
+ *
+ *  Stored events are buffered and inserted in batches, with one multi-row insert per batch. A batch is
+ *  inserted once it is full, or once the flush interval has passed since its first event, whichever
+ *  comes first.
+ *
+ *  The latest events of a user are read a page at a time, newest first. Pages are keyset paginated on
+ *  (TIMESTAMP, ID) using the (EVENT_TARGET, TIMESTAMP) index of the events table, so reading a page costs the
+ *  same however far back it is.
+ *
+ *  <pre>
+ *  EventStore store = new EventStore(vertx, client).batchSize(100).flushInterval(200);
+ *  store.init()
+ *      .compose(done->store.latest(orcid, 50, null))
+ *      .onSuccess(page->...);
+ *  </pre>
+ */
+public class EventStore {
+    private static final Logger log = LoggerFactory.getLogger(EventStore.class);
+
+    //Columns written per event, SQLite allows 999 parameters per statement
+    private static final int COLUMNS = 5;
+    public static final int MAX_BATCH_SIZE = 999 / COLUMNS;
+
+    private final Vertx vertx;
+    private final SQLClient client;
+
+    private int batchSize = 100;
+    private long flushInterval = 200;
+
+    //Parameters of the buffered events, guarded by this
+    private List<JsonArray> batch = new ArrayList<>();
+    private List<Promise<Void>> promises = new ArrayList<>();
+    private long timerId = -1;
+
+    /**
+     * @param vertx the vertx instance, for flush timers
+     * @param client the client of the database holding the events table
+     */
+    public EventStore(Vertx vertx, SQLClient client){
+        this.vertx = vertx;
+        this.client = client;
+    }
+
+    /** @param batchSize the number of events inserted at once, up to {@link #MAX_BATCH_SIZE}. Defaults to 100.
+     * @return this store
+     */
+    public EventStore batchSize(int batchSize){
+        if(batchSize < 1 || batchSize > MAX_BATCH_SIZE){
+            throw new IllegalArgumentException("Event batch size must be between 1 and " + MAX_BATCH_SIZE);
+        }
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /** @param flushInterval the longest an event waits for its batch to fill up, in milliseconds. Defaults to 200.
+     * @return this store
+     */
+    public EventStore flushInterval(long flushInterval){
+        this.flushInterval = flushInterval;
+        return this;
+    }
+
+    /** Create the events table and its index if they do not exist.
+     *
+     * @return a future that completes once they exist
+     */
+    public Future<Void> init(){
+        Promise<Void> promise = Promise.promise();
+
+        client.rxGetConnection().flatMap(conn->
+                conn.rxUpdate(Event.CREATE_TABLE_SQL)
+                        .flatMap(created->conn.rxUpdate(Event.CREATE_INDEX_SQL))
+                        .doFinally(conn::close)
+        ).subscribe(
+                done->promise.complete(),
+                err->{
+                    log.error("Error creating events table in database!");
+                    log.error(err.getMessage());
+                    promise.fail(err);
+                }
+        );
+
+        return promise.future();
+    }
+
+    /** Store an event with the next batch.
+     *
+     *  Events without an id, event target or type are never stored, their future fails right away
+     *  without affecting the rest of the batch.
+     *
+     * @param event the event
+     * @return a future that completes once the batch holding the event has been inserted
+     */
+    public Future<Void> store(Event event){
+        Promise<Void> promise = Promise.promise();
+
+        //Read the event now, so a bad event fails on its own and later changes to it are not stored
+        JsonArray row;
+        try{
+            row = row(event);
+        }catch (Exception err){
+            log.error("Error storing event!");
+            log.error(err.getMessage());
+            promise.fail(err);
+            return promise.future();
+        }
+
+        boolean full;
+        synchronized (this){
+            batch.add(row);
+            promises.add(promise);
+            full = batch.size() >= batchSize;
+            if(!full && timerId == -1){
+                timerId = vertx.setTimer(flushInterval, id->flush());
+            }
+        }
+
+        if(full){
+            flush();
+        }
+
+        return promise.future();
+    }
+
+    /** Insert the events buffered so far without waiting for their batch to fill up.
+     *
+     * @return a future that completes once they have been inserted
+     */
+    public Future<Void> flush(){
+        List<JsonArray> events;
+        List<Promise<Void>> waiting;
+        synchronized (this){
+            if(timerId != -1){
+                vertx.cancelTimer(timerId);
+                timerId = -1;
+            }
+            if(batch.isEmpty()){
+                return Future.succeededFuture();
+            }
+            events = batch;
+            waiting = promises;
+            batch = new ArrayList<>();
+            promises = new ArrayList<>();
+        }
+
+        Promise<Void> promise = Promise.promise();
+
+        StringBuilder sql = new StringBuilder("INSERT INTO EVENTS (ID, TIMESTAMP, EVENT_TARGET, EVENT_TYPE, DATA) VALUES ");
+        JsonArray params = new JsonArray();
+        for(int i = 0; i < events.size(); i++){
+            sql.append(i == 0? "(?,?,?,?,?)": ",(?,?,?,?,?)");
+            params.addAll(events.get(i));
+        }
+
+        client.rxGetConnection().flatMap(conn->
+                conn.rxUpdateWithParams(sql.toString(), params).doFinally(conn::close)
+        ).subscribe(
+                result->{
+                    waiting.forEach(Promise::complete);
+                    promise.complete();
+                },
+                err->{
+                    log.error("Error inserting {} events in database!", events.size());
+                    log.error(err.getMessage());
+                    waiting.forEach(p->p.fail(err));
+                    promise.fail(err);
+                }
+        );
+
+        return promise.future();
+    }
+
+    /** Get the insert parameters of an event.
+     *
+     * @param event the event
+     * @return the ID, TIMESTAMP, EVENT_TARGET, EVENT_TYPE and DATA of the event
+     * @throws NullPointerException if the event has no id or event target
+     * @throws Exception if the event has no type
+     */
+    private static JsonArray row(Event event) throws Exception{
+        if(event.getId() == null){
+            throw new NullPointerException("id cannot be null! Cannot store event!");
+        }
+        if(event.getEventTarget() == null){
+            throw new NullPointerException("eventTarget cannot be null! Cannot store event!");
+        }
+        if(event.getType() == null){
+            throw new Exception("Event type cannot be null! Cannot store event!");
+        }
+
+        JsonArray row = new JsonArray()
+                .add(event.getId().toString())
+                .add(event.getTimestampMillis())
+                .add(event.getEventTarget())
+                .add(event.getType().getText());
+        if(event.getData() == null){
+            row.addNull();
+        }else{
+            row.add(event.getData().encode());
+        }
+        return row;
+    }
+
+    /** Read a page of the latest events of a user, newest first.
+     *
+     * @param eventTarget ORCID of the user
+     * @param limit the largest number of events in the page, at least 1
+     * @param after the cursor of the previous page, or null for the first page
+     * @param types the types of events to read, all types if none are given
+     * @return a future for the page
+     */
+    public Future<Page> latest(String eventTarget, int limit, Cursor after, EventType ... types){
+        if(limit < 1){
+            throw new IllegalArgumentException("Event page limit must be at least 1");
+        }
+
+        Promise<Page> promise = Promise.promise();
+
+        StringBuilder sql = new StringBuilder("SELECT ID, TIMESTAMP, EVENT_TARGET, EVENT_TYPE, DATA FROM EVENTS WHERE EVENT_TARGET = ?");
+        JsonArray params = new JsonArray().add(eventTarget);
+
+        if(types.length > 0){
+            sql.append(" AND EVENT_TYPE IN (");
+            for(int i = 0; i < types.length; i++){
+                sql.append(i == 0? "?": ",?");
+                params.add(types[i].getText());
+            }
+            sql.append(")");
+        }
+
+        if(after != null){
+            sql.append(" AND (TIMESTAMP < ? OR (TIMESTAMP = ? AND ID < ?))");
+            params.add(after.timestamp).add(after.timestamp).add(after.id.toString());
+        }
+
+        //One more than the limit, to know if there is a next page
+        sql.append(" ORDER BY TIMESTAMP DESC, ID DESC LIMIT ?");
+        params.add(limit + 1);
+
+        client.rxGetConnection().flatMap(conn->
+                conn.rxQueryWithParams(sql.toString(), params).doFinally(conn::close)
+        ).subscribe(
+                resultSet->{
+                    List<JsonObject> rows = resultSet.getRows();
+                    List<Event> events = new ArrayList<>(Math.min(rows.size(), limit));
+                    for(int i = 0; i < rows.size() && i < limit; i++){
+                        events.add(Event.fromSQLResult(rows.get(i)));
+                    }
+
+                    Cursor next = null;
+                    if(rows.size() > limit){
+                        Event last = events.get(events.size() - 1);
+                        next = new Cursor(last.getTimestampMillis(), last.getId());
+                    }
+
+                    promise.complete(new Page(events, next));
+                },
+                err->{
+                    log.error("Error reading events of {} from database!", eventTarget);
+                    log.error(err.getMessage());
+                    promise.fail(err);
+                }
+        );
+
+        return promise.future();
+    }
+
+    /** A page of events, see {@link #latest(String, int, Cursor, EventType...)}.
+     */
+    public static class Page {
+        private final List<Event> events;
+        private final Cursor next;
+
+        private Page(List<Event> events, Cursor next){
+            this.events = Collections.unmodifiableList(events);
+            this.next = next;
+        }
+
+        public List<Event> events() {
+            return events;
+        }
+
+        /** @return the cursor of the next page, or null if this is the last page
+         */
+        public Cursor next() {
+            return next;
+        }
+    }
+
+    /** Position of a page of events: the timestamp and id of the last event of the previous page.
+     */
+    public static class Cursor {
+        private final long timestamp;
+        private final UUID id;
+
+        public Cursor(long timestamp, UUID id){
+            this.timestamp = timestamp;
+            this.id = id;
+        }
+
+        /** Read a cursor written by {@link #encode()}, ex: from a query parameter.
+         *
+         * @param cursor the encoded cursor
+         * @return the cursor
+         */
+        public static Cursor decode(String cursor){
+            int separator = cursor.indexOf(':');
+            return new Cursor(Long.parseLong(cursor.substring(0, separator)), UUID.fromString(cursor.substring(separator + 1)));
+        }
+
+        /** @return the cursor as a string, ex: for the query parameter of the next page
+         */
+        public String encode(){
+            return timestamp + ":" + id;
+        }
+
+        public long timestamp() {
+            return timestamp;
+        }
+
+        public UUID id() {
+            return id;
+        }
+    }
+}
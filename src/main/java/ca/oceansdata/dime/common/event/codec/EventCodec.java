@@ -0,0 +1,122 @@
+package ca.oceansdata.dime.common.event.codec;
+
+import ca.oceansdata.dime.common.event.Event;
+import ca.oceansdata.dime.common.event.EventRegistry;
+import ca.oceansdata.dime.common.event.EventType;
+import ca.oceansdata.dime.common.nickel.codec.WireUtils;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.eventbus.MessageCodec;
+import io.vertx.core.json.JsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.UUID;
+
+/** Encodes events as a single compact frame:
+ *
+ *  <pre>
+ *  | id (16 bytes) | timestamp (8 bytes) | type ordinal (1 byte) | presence (1 byte) | event target (size varint + UTF-8) | data (size varint + json) |
+ *  </pre>
+ *
+ *  The event target and data are only written when present, as flagged in the presence byte. Events are
+ *  decoded straight into the event class of their type, see {@link EventRegistry}. Event types are written
+ *  by ordinal, so new event types must be added at the end of {@link EventType}.
+ *
+ *  Events are sent as subclasses of {@link Event}, so the codec is registered by name rather than as a
+ *  default codec, and selected with {@link io.vertx.core.eventbus.DeliveryOptions#setCodecName(String)}:
+ *
+ *  <pre>
+ *  vertx.eventBus().getDelegate().registerCodec(new EventCodec());
+ *  </pre>
+ *
+ *  See {@link ca.oceansdata.dime.common.event.EventService#EventService(io.vertx.reactivex.core.eventbus.EventBus, boolean)}.
+ */
+public class EventCodec implements MessageCodec<Event, Event> {
+    private static final Logger log = LoggerFactory.getLogger(EventCodec.class);
+
+    public static final String NAME = EventCodec.class.getSimpleName();
+
+    //Presence bitmap flags
+    static final int HAS_TARGET = 1;
+    static final int HAS_DATA = 1 << 1;
+
+    //Encoded in place of the type ordinal when the type is null
+    private static final byte NULL_ORDINAL = (byte)0xFF;
+
+    private static final EventType [] TYPES = EventType.values();
+
+    @Override
+    public void encodeToWire(Buffer buffer, Event event) {
+        WireUtils.appendUUID(buffer, event.getId());
+        buffer.appendLong(event.getTimestampMillis());
+        buffer.appendByte(event.getType() == null? NULL_ORDINAL: (byte)event.getType().ordinal());
+
+        int presence = 0;
+        if(event.getEventTarget() != null) presence |= HAS_TARGET;
+        if(event.getData() != null && !event.getData().isEmpty()) presence |= HAS_DATA;
+        buffer.appendByte((byte)presence);
+
+        if((presence & HAS_TARGET) != 0){
+            WireUtils.appendString(buffer, event.getEventTarget());
+        }
+        if((presence & HAS_DATA) != 0){
+            WireUtils.appendBuffer(buffer, event.getData().toBuffer());
+        }
+    }
+
+    @Override
+    public Event decodeFromWire(int position, Buffer buffer) {
+        int _pos = position;
+
+        UUID id = WireUtils.getUUID(buffer, _pos);
+        _pos += 16;
+        long timestamp = buffer.getLong(_pos);
+        _pos += 8;
+
+        int ordinal = buffer.getByte(_pos++) & 0xFF;
+        EventType type = null;
+        if(ordinal < TYPES.length){
+            type = TYPES[ordinal];
+        }else if(ordinal != (NULL_ORDINAL & 0xFF)){
+            log.error("Unknown event type ordinal {} for event {}, decoding it without a type!", ordinal, id);
+        }
+
+        int presence = buffer.getByte(_pos++);
+
+        String eventTarget = null;
+        if((presence & HAS_TARGET) != 0){
+            int numBytes = WireUtils.getVarInt(buffer, _pos);
+            _pos += WireUtils.varIntSize(numBytes);
+            eventTarget = buffer.getString(_pos, _pos += numBytes, "UTF-8");
+        }
+
+        //Events without data skip parsing altogether
+        JsonObject data = new JsonObject();
+        if((presence & HAS_DATA) != 0){
+            int numBytes = WireUtils.getVarInt(buffer, _pos);
+            _pos += WireUtils.varIntSize(numBytes);
+            data = new JsonObject(WireUtils.readOnlySlice(buffer, _pos, _pos + numBytes));
+        }
+
+        return EventRegistry.read(type, id, timestamp, eventTarget, data);
+    }
+
+    /** Events are mutable, and events published locally are delivered to every subscriber, so each
+     *  one gets its own copy.
+     */
+    @Override
+    public Event transform(Event event) {
+        return EventRegistry.read(event.getType(), event.getId(), event.getTimestampMillis(), event.getEventTarget(),
+                event.getData() == null? null: event.getData().copy());
+    }
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public byte systemCodecID() {
+        return -1;
+    }
+}
@@ -52,40 +52,42 @@ public class AttributeMappingEvent extends Event {
 
     public AttributeMappingEvent(JsonObject data) throws IllegalEventFormatException{
         super(data);
+        readData(data.getJsonObject("data"));
+    }
 
-        if(!data.containsKey("data")){
-            throw new IllegalEventFormatException(data, "data", "missing key");
+    @Override
+    protected void readData(JsonObject inner) throws IllegalEventFormatException{
+        if(inner == null){
+            throw new IllegalEventFormatException(toJson(), "data", "missing key");
         }
 
-        JsonObject inner = data.getJsonObject("data");
-
         if(!inner.containsKey("attributeId")){
-            throw new IllegalEventFormatException(data, "data->attributeId", "key missing");
+            throw new IllegalEventFormatException(toJson(), "data->attributeId", "key missing");
         }
         this.attributeId = UUID.fromString(inner.getString("attributeId"));
 
         if(!inner.containsKey("definitionId")){
-            throw new IllegalEventFormatException(data, "data->definitionId", "key missing");
+            throw new IllegalEventFormatException(toJson(), "data->definitionId", "key missing");
         }
         this.definitionId = UUID.fromString(inner.getString("definitionId"));
 
         if(!inner.containsKey("schemaId")){
-            throw new IllegalEventFormatException(data, "data->schemaId", "key missing");
+            throw new IllegalEventFormatException(toJson(), "data->schemaId", "key missing");
         }
         this.schemaId = UUID.fromString(inner.getString("schemaId"));
 
         if(!inner.containsKey("attribute")){
-            throw new IllegalEventFormatException(data, "data->attribute", "key missing");
+            throw new IllegalEventFormatException(toJson(), "data->attribute", "key missing");
         }
         this.attribute = inner.getString("attribute");
 
         if(!inner.containsKey("definition")){
-            throw new IllegalEventFormatException(data, "data->definition", "key missing");
+            throw new IllegalEventFormatException(toJson(), "data->definition", "key missing");
         }
         this.definition = inner.getString("definition");
 
         if(!inner.containsKey("source")){
-            throw new IllegalEventFormatException(data, "data->source", "key missing");
+            throw new IllegalEventFormatException(toJson(), "data->source", "key missing");
         }
         this.source = inner.getString("source");
     }
@@ -45,21 +45,23 @@ public class CommunityMatchResultEvent extends Event{
 
     public CommunityMatchResultEvent(JsonObject data) throws IllegalEventFormatException{
         super(data);
+        readData(data.getJsonObject("data"));
+    }
 
-        if(!data.containsKey("data")){
-            throw new IllegalEventFormatException(data, "data", "key missing");
+    @Override
+    protected void readData(JsonObject inner) throws IllegalEventFormatException{
+        if(inner == null){
+            throw new IllegalEventFormatException(toJson(), "data", "key missing");
         }
 
-        JsonObject inner = data.getJsonObject("data");
-
 
         if(!inner.containsKey("amtId")){
-            throw new IllegalEventFormatException(data, "data->amtId", "key missing");
+            throw new IllegalEventFormatException(toJson(), "data->amtId", "key missing");
         }
         this.amtId = UUID.fromString(inner.getString("amtId"));
 
         if(!inner.containsKey("camgId")){
-            throw new IllegalEventFormatException(data, "data->camgId", "key missing");
+            throw new IllegalEventFormatException(toJson(), "data->camgId", "key missing");
         }
         this.camgId = UUID.fromString(inner.getString("camgId"));
 
@@ -60,45 +60,47 @@ public class CommunityTaskMatchEvent extends Event {
 
     public CommunityTaskMatchEvent(JsonObject data) throws IllegalEventFormatException{
         super(data);
+        readData(data.getJsonObject("data"));
+    }
 
-        if(!data.containsKey("data")){
-            throw new IllegalEventFormatException(data, "data", "key missing");
+    @Override
+    protected void readData(JsonObject inner) throws IllegalEventFormatException{
+        if(inner == null){
+            throw new IllegalEventFormatException(toJson(), "data", "key missing");
         }
 
-        JsonObject inner = data.getJsonObject("data");
-
         if(!inner.containsKey("taskId")){
-            throw new IllegalEventFormatException(data, "data->taskId", "key missing");
+            throw new IllegalEventFormatException(toJson(), "data->taskId", "key missing");
         }
         this.taskId = UUID.fromString(inner.getString("taskId"));
 
         if(!inner.containsKey("schemaId")){
-            throw new IllegalEventFormatException(data, "data->schemaId", "key missing");
+            throw new IllegalEventFormatException(toJson(), "data->schemaId", "key missing");
         }
         this.schemaId = UUID.fromString(inner.getString("schemaId"));
 
         if(!inner.containsKey("attributeId")){
-            throw new IllegalEventFormatException(data, "data->attributeId", "key missing");
+            throw new IllegalEventFormatException(toJson(), "data->attributeId", "key missing");
         }
         this.attributeId = UUID.fromString(inner.getString("attributeId"));
 
         if(!inner.containsKey("attribute")){
-            throw new IllegalEventFormatException(data, "data->attribute", "key missing");
+            throw new IllegalEventFormatException(toJson(), "data->attribute", "key missing");
         }
         this.attribute = inner.getString("attribute");
 
         if(!inner.containsKey("definitionId")){
-            throw new IllegalEventFormatException(data, "data->definitionId", "key missing");
+            throw new IllegalEventFormatException(toJson(), "data->definitionId", "key missing");
         }
         this.definitionId = UUID.fromString(inner.getString("definitionId"));
 
         if(!inner.containsKey("definition")){
-            throw new IllegalEventFormatException(data, "data->definition", "key missing");
+            throw new IllegalEventFormatException(toJson(), "data->definition", "key missing");
         }
         this.definition = inner.getString("definition");
 
         if(!inner.containsKey("source")){
-            throw new IllegalEventFormatException(data, "data->source", "key missing");
+            throw new IllegalEventFormatException(toJson(), "data->source", "key missing");
         }
         this.source = inner.getString("source");
     }
@@ -36,21 +36,23 @@ public class DocumentUploadEvent extends Event {
 
     public DocumentUploadEvent(JsonObject data) throws IllegalEventFormatException {
         super(data);
+        readData(data.getJsonObject("data"));
+    }
 
-        if(!data.containsKey("data")){
-            throw new IllegalEventFormatException(data, "data", "missing key");
+    @Override
+    protected void readData(JsonObject inner) throws IllegalEventFormatException {
+        if(inner == null){
+            throw new IllegalEventFormatException(toJson(), "data", "missing key");
         }
 
-        JsonObject inner = data.getJsonObject("data");
-
         if(!inner.containsKey("documentName")){
-            throw new IllegalEventFormatException(data, "data->documentName", "missing key");
+            throw new IllegalEventFormatException(toJson(), "data->documentName", "missing key");
         }
 
         this.documentName = inner.getString("documentName");
 
         if(!inner.containsKey("documentId")){
-            throw new IllegalEventFormatException(data, "data->documentId", "missing key");
+            throw new IllegalEventFormatException(toJson(), "data->documentId", "missing key");
         }
 
         this.documentId = inner.getString("documentId");
@@ -22,11 +22,14 @@ public class LinkExternalAccountEvent extends Event {
 
     public LinkExternalAccountEvent(JsonObject data) throws IllegalEventFormatException{
         super(data);
+        readData(data.getJsonObject("data"));
+    }
 
-        if(!data.containsKey("data")){
-            throw new IllegalEventFormatException(data, "data", "key missing");
+    @Override
+    protected void readData(JsonObject data) throws IllegalEventFormatException{
+        if(data == null){
+            throw new IllegalEventFormatException(toJson(), "data", "key missing");
         }
-        data = data.getJsonObject("data");
 
         if(!data.containsKey("accountType")){
             throw new IllegalEventFormatException(data, "data->accountType", "key missing");
@@ -35,24 +35,26 @@ public class ProfileUpdateEvent extends Event {
 
     public ProfileUpdateEvent(JsonObject data) throws IllegalEventFormatException {
         super(data);
+        readData(data.getJsonObject("data"));
+    }
 
-        if(!data.containsKey("data")){
-            throw new IllegalEventFormatException(data, "data", "key missing");
+    @Override
+    protected void readData(JsonObject inner) throws IllegalEventFormatException {
+        if(inner == null){
+            throw new IllegalEventFormatException(toJson(), "data", "key missing");
         }
 
-        JsonObject inner = data.getJsonObject("data");
-
         if(!inner.containsKey("fieldName")){
-            throw new IllegalEventFormatException(data, "data->fieldName", "key missing");
+            throw new IllegalEventFormatException(toJson(), "data->fieldName", "key missing");
         }
 
         if(!inner.containsKey("oldValue")){
-            throw new IllegalEventFormatException(data, "data->oldValue", "key missing");
+            throw new IllegalEventFormatException(toJson(), "data->oldValue", "key missing");
         }
         this.oldValue = inner.getJsonObject("oldValue");
 
         if(!inner.containsKey("newValue")){
-            throw new IllegalEventFormatException(data, "data->newValue", "key missing");
+            throw new IllegalEventFormatException(toJson(), "data->newValue", "key missing");
         }
         this.newValue = inner.getJsonObject("newValue");
     }
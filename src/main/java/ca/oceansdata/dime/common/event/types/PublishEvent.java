@@ -31,11 +31,14 @@ public class PublishEvent extends Event {
 
     public PublishEvent(JsonObject data) throws IllegalEventFormatException{
         super(data);
+        readData(data.getJsonObject("data"));
+    }
 
-        if(!data.containsKey("data")){
-            throw new IllegalEventFormatException(data, "data", "key missing");
+    @Override
+    protected void readData(JsonObject data) throws IllegalEventFormatException{
+        if(data == null){
+            throw new IllegalEventFormatException(toJson(), "data", "key missing");
         }
-        data = data.getJsonObject("data");
 
         if(!data.containsKey("entityId")){
             throw new IllegalEventFormatException(data, "entityId", "key missing");
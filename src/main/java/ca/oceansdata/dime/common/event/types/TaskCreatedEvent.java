@@ -14,6 +14,10 @@ public class TaskCreatedEvent extends TaskEvent {
         super(taskId, EventType.TASK_CREATED);
     }
 
+    public TaskCreatedEvent(){
+        super(EventType.TASK_CREATED);
+    }
+
     public TaskCreatedEvent(JsonObject data) throws IllegalEventFormatException {
         super(data);
     }
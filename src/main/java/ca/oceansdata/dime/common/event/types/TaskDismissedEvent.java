@@ -12,6 +12,10 @@ public class TaskDismissedEvent extends TaskEvent {
         super(taskId, EventType.TASK_DISMISSED);
     }
 
+    public TaskDismissedEvent(){
+        super(EventType.TASK_DISMISSED);
+    }
+
     public TaskDismissedEvent(JsonObject data) throws IllegalEventFormatException {
         super(data);
     }
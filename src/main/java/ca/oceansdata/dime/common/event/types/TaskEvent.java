@@ -5,7 +5,6 @@ import ca.oceansdata.dime.common.event.EventType;
 import ca.oceansdata.dime.common.event.IllegalEventFormatException;
 import io.vertx.core.json.JsonObject;
 
-import java.util.Optional;
 import java.util.UUID;
 
 public abstract class TaskEvent extends Event {
@@ -22,24 +21,27 @@ public abstract class TaskEvent extends Event {
         this.setData(data);
     }
 
+    /** Used when reading task events from the database, see {@link Event#fromSQLResult(JsonObject)}.
+     */
+    protected TaskEvent(EventType type){
+        super(type);
+    }
+
     public TaskEvent(JsonObject data) throws IllegalEventFormatException {
         super(data);
+        readData(data.getJsonObject("data"));
+    }
+
+    @Override
+    protected void readData(JsonObject inner) throws IllegalEventFormatException {
+        if(inner == null){
+            throw new IllegalEventFormatException(toJson(), "data", "key missing");
+        }
 
-        Optional<JsonObject> eventData = Optional.of(data.getJsonObject("data"));
-        eventData.flatMap(
-                inner->{
-                    Optional<UUID> taskId = Optional.of(UUID.fromString(data.getString("taskId")));
-
-                    taskId.flatMap(
-                            tId->{
-                                this.taskId = tId;
-                                return Optional.empty();
-                            }
-                    );
-
-                    return Optional.empty();
-                }
-        );
+        if(!inner.containsKey("taskId")){
+            throw new IllegalEventFormatException(toJson(), "data->taskId", "key missing");
+        }
+        this.taskId = UUID.fromString(inner.getString("taskId"));
     }
 
     public UUID getTaskId() {
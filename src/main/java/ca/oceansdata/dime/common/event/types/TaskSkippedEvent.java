@@ -11,6 +11,10 @@ public class TaskSkippedEvent extends TaskEvent {
         super(taskId, EventType.TASK_SKIPPED);
     }
 
+    public TaskSkippedEvent(){
+        super(EventType.TASK_SKIPPED);
+    }
+
     public TaskSkippedEvent(JsonObject data) throws IllegalEventFormatException {
         super(data);
     }
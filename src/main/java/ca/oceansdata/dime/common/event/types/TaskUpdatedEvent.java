@@ -12,6 +12,10 @@ public class TaskUpdatedEvent extends TaskEvent {
         super(taskId, EventType.TASK_UPDATED);
     }
 
+    public TaskUpdatedEvent(){
+        super(EventType.TASK_UPDATED);
+    }
+
     public TaskUpdatedEvent(JsonObject data) throws IllegalEventFormatException {
         super(data);
     }
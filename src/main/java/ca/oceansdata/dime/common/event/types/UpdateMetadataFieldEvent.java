@@ -5,7 +5,6 @@ import ca.oceansdata.dime.common.event.EventType;
 import ca.oceansdata.dime.common.event.IllegalEventFormatException;
 import io.vertx.core.json.JsonObject;
 
-import java.util.Optional;
 import java.util.UUID;
 
 public class UpdateMetadataFieldEvent extends Event {
@@ -47,32 +46,27 @@ public class UpdateMetadataFieldEvent extends Event {
 
     public UpdateMetadataFieldEvent(JsonObject data) throws IllegalEventFormatException {
         super(data);
+        readData(data.getJsonObject("data"));
+    }
 
-        Optional<JsonObject> eventData = Optional.of(data.getJsonObject("data"));
-        eventData.flatMap(
-                inner->{
-
-                    //TODO - this was silly in retrospect, if a useful learning exercise on Optionals. Should refactor as it Null Pointers in UUID.fromString() if inner is missing any of the keys.
-
-                    Optional<UUID> entityId = Optional.of(UUID.fromString(inner.getString("entityId")));
-                    Optional<UUID> fieldId = Optional.of(UUID.fromString(inner.getString("fieldId")));
-                    Optional<UUID> keyId = Optional.of(UUID.fromString(inner.getString("keyId")));
-                    Optional<UUID> newValueId = Optional.of(UUID.fromString(inner.getString("newValueId")));
-
-
-                    this.oldValueId = inner.containsKey("oldValueId")?UUID.fromString(inner.getString("oldValueId")):null;
+    @Override
+    protected void readData(JsonObject inner) throws IllegalEventFormatException {
+        if(inner == null){
+            throw new IllegalEventFormatException(toJson(), "data", "key missing");
+        }
 
+        this.entityId = readId(inner, "entityId");
+        this.fieldId = readId(inner, "fieldId");
+        this.keyId = readId(inner, "keyId");
+        this.newValueId = readId(inner, "newValueId");
+        this.oldValueId = inner.containsKey("oldValueId")?UUID.fromString(inner.getString("oldValueId")):null;
+    }
 
-                    entityId.flatMap(eId->fieldId.flatMap(fId->keyId.flatMap(kId->newValueId.flatMap(nvId->{
-                        this.entityId = eId;
-                        this.keyId = kId;
-                        this.fieldId = fId;
-                        this.newValueId = nvId;
-                        return Optional.empty();
-                    }))));
-                    return Optional.empty();
-                }
-        );
+    private UUID readId(JsonObject inner, String key) throws IllegalEventFormatException {
+        if(!inner.containsKey(key)){
+            throw new IllegalEventFormatException(toJson(), "data->" + key, "key missing");
+        }
+        return UUID.fromString(inner.getString(key));
     }
 
     public UUID getEntityId() {
@@ -3,6 +3,7 @@ package ca.oceansdata.dime.common.exceptions;
 import ca.oceansdata.dime.common.nickel.Nickel;
 import ca.oceansdata.dime.common.nickel.NickelOrigin;
 import ca.oceansdata.dime.common.nickel.NickelType;
+import ca.oceansdata.dime.common.nickel.compression.NickelCompression;
 import io.opentracing.Scope;
 import io.opentracing.Tracer;
 import io.vertx.core.http.HttpMethod;
@@ -92,6 +93,16 @@ public class ErrorNickel extends Exception implements Nickel {
         return source.getData();
     }
 
+    @Override
+    public void release() {
+        source.release();
+    }
+
+    @Override
+    public Nickel setCompression(NickelCompression compression) {
+        return source.setCompression(compression);
+    }
+
     @Override
     public NickelOrigin origin() {
         return source.origin();
@@ -0,0 +1,26 @@
+package ca.oceansdata.dime.common.exceptions;
+
+import ca.oceansdata.dime.common.nickel.Nickel;
+
+/** Thrown when a router has no capacity left for a nickel. Routers answer
+ *  such nickels with a 503 error nickel.
+ */
+public class OverloadException extends RuntimeException {
+
+    Nickel nickel;
+    String address;
+
+    public OverloadException(Nickel n, String address){
+        this.nickel = n;
+        this.address = address;
+    }
+
+    public String getMessage(){
+        return "Too many pending " + nickel.type().name() + " nickels on " + address + "!";
+    }
+
+    public Nickel getNickel(){
+        return nickel;
+    }
+
+}
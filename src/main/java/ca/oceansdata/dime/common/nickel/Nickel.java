@@ -3,22 +3,27 @@ package ca.oceansdata.dime.common.nickel;
 import ca.oceansdata.dime.common.event.Event;
 import ca.oceansdata.dime.common.exceptions.ErrorNickel;
 import ca.oceansdata.dime.common.exceptions.UnpackException;
+import ca.oceansdata.dime.common.nickel.compression.NickelCompression;
 import ca.oceansdata.dime.common.nickel.impl.NickelImpl;
+import ca.oceansdata.dime.common.nickel.metrics.NickelMetrics;
+import ca.oceansdata.dime.common.nickel.stream.NickelStreams;
 import io.opentracing.Scope;
 import io.opentracing.Tracer;
 import io.opentracing.propagation.TextMap;
+import io.reactivex.Flowable;
+import io.reactivex.Single;
+import io.vertx.core.buffer.Buffer;
 import io.vertx.core.eventbus.DeliveryOptions;
 
 import io.vertx.core.http.HttpMethod;
 import io.vertx.core.json.DecodeException;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
+import io.vertx.core.streams.ReadStream;
 import io.vertx.reactivex.core.CompositeFuture;
 import io.vertx.reactivex.core.Future;
-import io.vertx.reactivex.core.Promise;
 import io.vertx.reactivex.core.Vertx;
 import io.vertx.reactivex.core.eventbus.EventBus;
-import io.vertx.reactivex.core.eventbus.MessageConsumer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -140,12 +145,64 @@ public interface Nickel extends TextMap {
 
         options = NickelUtils.appendMetaToHeaders(options, nickel);
 
+        //Apply the address' compression policy unless the nickel has its own. The policy is set on a copy,
+        //so the nickel keeps no policy if it is published again to another address.
+        if(nickel instanceof NickelImpl && ((NickelImpl)nickel).compression() == null){
+            NickelCompression compression = NickelCompression.forAddress(address);
+            if(compression != null){
+                nickel = ((NickelImpl)nickel).withCompression(compression);
+            }
+        }
+
         //Send the nickel!
         eb.publish(address, nickel, options);
     }
 
+    /** Publish an envelope on a given event bus to a given address.
+     *
+     * @param eb the event bus to publish the envelope on
+     * @param address the address to publish the envelope to
+     * @param envelope the envelope to publish
+     */
+    static void publish(EventBus eb, String address, NickelEnvelope envelope){
+        DeliveryOptions options = new DeliveryOptions()
+                .addHeader("correlationId", envelope.correlationId().toString())
+                .addHeader("type", envelope.type());
+
+        eb.publish(address, envelope, options);
+    }
+
+    /** Send a collection of nickels to various addresses, as a single envelope per address, and get
+     *  a future for the responses. See {@link NickelEnvelope}.
+     *
+     *  Nickels processed by a function on the receiving end are answered with their response nickel,
+     *  or with an error nickel if the function failed. Nickels processed by handlers get no response.
+     *
+     * @param eb the event bus to send the envelopes on
+     * @param nickels a map of addresses and the nickels to be sent to that address, ex: a {@link NickelBatch}
+     * @return a future for the response nickels of every address, in the order of the addresses
+     */
+    static Future<List<Nickel>> sendEnveloped(EventBus eb, Iterable<Map.Entry<String, List<Nickel>>> nickels){
+        List<Future> replies = new ArrayList<>();
+        for(Map.Entry<String, List<Nickel>> entry: nickels){
+            NickelEnvelope envelope = NickelEnvelope.of(entry.getValue());
+            //Publish the envelope once the address' reply dispatcher can capture its reply
+            replies.add(NickelReplyDispatcher.expectEnvelope(eb, entry.getKey(), envelope,
+                    ()->publish(eb, entry.getKey(), envelope)));
+        }
+
+        return CompositeFuture.all(replies).map(all->{
+            List<Nickel> responses = new ArrayList<>();
+            for(int i = 0; i < all.size(); i++){
+                responses.addAll(all.<NickelEnvelope>resultAt(i).nickels());
+            }
+            return responses;
+        });
+    }
+
     /** Send a collection of nickels to various addresses and get a composite future
      *  for when we've received replies for each nickel that was sent.
+     *  Every nickel is sent at once, for large batches see {@link #sendAll(EventBus, Iterable, int, NickelBatch.Failure)}.
      * @param eb
      * @param nickels a map of addresses and the nickels to be sent to that address
      * @return
@@ -167,6 +224,34 @@ public interface Nickel extends TextMap {
     }
     
 
+    /** Send a collection of nickels to various addresses, with at most a given number of nickels
+     *  awaiting a response per address, and get the responses as they arrive.
+     *
+     *  Nothing is sent until the returned flowable is subscribed to. Responses are emitted in the
+     *  order they arrive, not in the order of the batch.
+     *
+     * @param eb the event bus to send the nickels on
+     * @param nickels a map of addresses and the nickels to be sent to that address, ex: a {@link NickelBatch}
+     * @param window the maximum number of nickels awaiting a response per address
+     * @param failure whether a failed nickel fails the whole stream, or is emitted as an error nickel
+     * @return a flowable of the response nickels
+     */
+    static Flowable<Nickel> sendAll(EventBus eb, Iterable<Map.Entry<String, List<Nickel>>> nickels, int window, NickelBatch.Failure failure){
+        List<Flowable<Nickel>> byAddress = new ArrayList<>();
+        for(Map.Entry<String, List<Nickel>> entry: nickels){
+            String address = entry.getKey();
+            byAddress.add(Flowable.fromIterable(entry.getValue()).flatMapSingle(n->{
+                Single<Nickel> response = Single.defer(()->send(eb, address, n).rxOnComplete());
+                if(failure == NickelBatch.Failure.COLLECT_ALL){
+                    response = response.onErrorReturn(err->err instanceof ErrorNickel? (ErrorNickel)err:
+                            Nickel.badNickel(n).pack(new JsonObject().put("error", err.getMessage())));
+                }
+                return response;
+            }, false, Math.max(1, window)));
+        }
+        return Flowable.merge(byAddress);
+    }
+
     /** Send a nickel and get a future for an associated response nickel.
      *
      * @param eb the event bus to send the nickel on
@@ -177,73 +262,107 @@ public interface Nickel extends TextMap {
      * nickel with the same correlation id.
      */
     static Future<Nickel> send(EventBus eb, String address, Nickel nickel){
-        Promise<Nickel> promise = Promise.promise();
-
-        //Create a promise to complete once the consumer is no longer required.
-        Promise<Void> consumerPromise = Promise.promise();
-
-        //Create an event bus consumer that listens for a response nickel
-        MessageConsumer<Nickel> consumer = eb.consumer(address, msg->{
-
-            //If a nickel from the address has our correlation id
-            if(msg.headers().get("correlationId").equals(nickel.correlationId().toString())){
-
-                //If it's a response nickel
-                if(NickelType.valueOf(msg.headers().get("type")).equals(NickelType.RESPONSE)){
-                    promise.complete(msg.body());
-                    //Either way, once we've gotten something back, unregister the consumer
-                    consumerPromise.complete();
-                }
-
-                //If it's an error nickel
-                if(NickelType.valueOf(msg.headers().get("type")).equals(NickelType.ERROR)){
-                    promise.fail(new ErrorNickel(msg.body()));
-                    //Either way, once we've gotten something back, unregister the consumer
-                    consumerPromise.complete();
-                }
-
-                //If it's a timeout nickel
-                if(NickelType.valueOf(msg.headers().get("type")).equals(NickelType.TIMEOUT)){
-                    promise.complete(msg.body());
-                    consumerPromise.complete();
-                }
-
-            }
-        });
+        //Send the nickel once the address' reply dispatcher can capture its response
+        return NickelReplyDispatcher.expect(eb, address, nickel, ()->publish(eb, address, nickel));
+    }
 
-        //Unregister the consumer after a nickel is received.
-        consumerPromise.future().onComplete(done->log.info("Got response from: {}", address)).onComplete(done->consumer.unregister());
+    /** Send a nickel, unless an identical nickel is already in flight to the same address, in which
+     *  case the response to that nickel is shared. See {@link NickelSingleFlight}.
+     *
+     * @param eb the event bus to send the nickel on
+     * @param address the address to send the nickel to and listen for the the response nickel on
+     * @param nickel the nickel to be sent
+     * @param singleFlight the requests in flight to coalesce with
+     * @return a promise that completes like {@link #send(EventBus, String, Nickel)}, with a response
+     * carrying the nickel's correlation id.
+     */
+    static Future<Nickel> send(EventBus eb, String address, Nickel nickel, NickelSingleFlight singleFlight){
+        return singleFlight.send(address, nickel, n->send(eb, address, n));
+    }
 
-        //Send the nickel!
-        publish(eb, address, nickel);
+    /** Send a nickel whose payload is read from a read stream, and get a future for an
+     *  associated response nickel. The payload is sent in chunks of 64KB, at the pace
+     *  the receiving end consumes them, see {@link NickelStreams}.
+     *
+     *  The receiving end must handle the nickel's type with a
+     *  {@link NickelRouter#streamFunction(NickelType, NickelStreamFunction)}.
+     *
+     * @param eb the event bus to send the nickel on
+     * @param address the address to send the nickel to and listen for the response nickel on
+     * @param nickel the nickel to be sent, its own payload is ignored
+     * @param payload the payload of the nickel
+     * @return a promise that completes or fails like {@link #send(EventBus, String, Nickel)}, or fails
+     * if the payload read stream fails.
+     */
+    static Future<Nickel> sendStream(EventBus eb, String address, Nickel nickel, ReadStream<Buffer> payload){
+        return NickelStreams.send(eb, address, nickel, payload, NickelStreams.DEFAULT_CHUNK_SIZE, NickelStreams.DEFAULT_WINDOW);
+    }
 
-        return promise.future();
+    /** Send a nickel whose payload is read from a read stream, like {@link #sendStream(EventBus, String, Nickel, ReadStream)},
+     *  and get a future for an associated response nickel, or for a TIMEOUT nickel with a 504 status code if no stream
+     *  function acknowledged the stream in time.
+     *
+     *  Only the acknowledgement of the stream is timed, once a stream function takes the stream the payload is sent
+     *  at the pace it is consumed.
+     *
+     * @param vertx the vertx instance to send the nickel with
+     * @param address the address to send the nickel to and listen for the response nickel on
+     * @param nickel the nickel to be sent, its own payload is ignored
+     * @param payload the payload of the nickel
+     * @param timeout how long to wait for the stream to be acknowledged, in milliseconds
+     * @return a promise that completes like {@link #sendStream(EventBus, String, Nickel, ReadStream)}, or with a TIMEOUT nickel
+     */
+    static Future<Nickel> sendStreamWithTimeout(Vertx vertx, String address, Nickel nickel, ReadStream<Buffer> payload, long timeout){
+        return NickelStreams.send(vertx, address, nickel, payload, NickelStreams.DEFAULT_CHUNK_SIZE, NickelStreams.DEFAULT_WINDOW, timeout);
     }
 
+    /** Send a nickel and get a future for an associated response nickel, or for a TIMEOUT nickel
+     *  with a 504 status code if no response was received in time.
+     *
+     *  The timeout is completed locally, nothing is published on the address. Timeouts are scheduled on
+     *  the {@link NickelTimeouts} wheel of the vertx instance, cancelled once the response arrives, and
+     *  counted in the {@link NickelMetrics} of the address if a router on the address records any.
+     *
+     * @param vertx the vertx instance to send the nickel with
+     * @param address the address to send the nickel to and listen for the the response nickel on
+     * @param nickel the nickel to be sent
+     * @param timeout how long to wait for a response, in milliseconds
+     * @return a promise that completes like {@link #send(EventBus, String, Nickel)}, or with a TIMEOUT nickel
+     */
     static Future<Nickel> sendWithTimeout(Vertx vertx, String address, Nickel nickel, long timeout){
-        //Create a timeout nickel to send if we don't get a response in 5 seconds.
-        Nickel timeoutNickel = Nickel.from(nickel)
-                .setOrcid(SYSTEM_ORCID)
-                .setStatusCode(504)
-                .setType(NickelType.TIMEOUT);
-
-        /** Set a timer that sends the timeout nickel if a response is not received by timeout */
         Future<Nickel> response = send(vertx.eventBus(), address, nickel);
-        vertx.setTimer(timeout, timeoutId->{
+
+        NickelTimeouts.Timeout timer = NickelTimeouts.forVertx(vertx.getDelegate()).schedule(timeout, ()->{
+            //Timeout nickel to complete the request with if we don't get a response in time
+            Nickel timeoutNickel = Nickel.from(nickel)
+                    .setOrcid(SYSTEM_ORCID)
+                    .setStatusCode(504)
+                    .setType(NickelType.TIMEOUT);
+
             if(!response.isComplete()){
                 log.warn("Request {} - {} - {} time out!",
                         nickel.correlationId().toString(),
                         nickel.type().toString(),
                         address
                 );
-                Nickel.publish(vertx.eventBus(), address, timeoutNickel);
+                NickelMetrics metrics = NickelMetrics.forAddress(address);
+                if(metrics != null) metrics.timedOut(nickel.type());
+                NickelReplyDispatcher.complete(vertx.eventBus(), address, nickel, timeoutNickel);
             }
         });
+        response.onComplete(done->timer.cancel());
 
         return response;
     }
 
 
+    /** Send a nickel with a timeout, unless an identical nickel is already in flight to the same address,
+     *  see {@link #send(EventBus, String, Nickel, NickelSingleFlight)}.
+     */
+    static Future<Nickel> sendWithTimeout(Vertx vertx, String address, Nickel nickel, long timeout, NickelSingleFlight singleFlight){
+        return singleFlight.send(address, nickel, n->sendWithTimeout(vertx, address, n, timeout));
+    }
+
     static <T> T unpack(Nickel nickel, Class<T> tClass) throws UnpackException {
         try{
             switch (tClass.getSimpleName()){
@@ -329,6 +448,31 @@ public interface Nickel extends TextMap {
 
     byte [] getData();
 
+    /** Release the resources held by this nickel's payload, such as the temp file of a payload
+     *  spilled to disk. The nickel's payload is empty afterwards.
+     *
+     *  Locally delivered nickels are shared by every consumer of the address they were published
+     *  to, so only the last consumer to use a nickel should release it.
+     *
+     *  Does nothing by default, for nickels whose payload holds no resources.
+     */
+    default void release(){}
+
+    /** Set the compression policy for this nickel's payload when it is sent over
+     *  a clustered event bus. Takes precedence over the policy of the address the
+     *  nickel is published to, see {@link NickelCompression}.
+     *
+     *  Only codecs writing v2 frames compress payloads, the policy is ignored by the default v1 codec,
+     *  see {@link ca.oceansdata.dime.common.nickel.codec.NickelCodec#WIRE_V2}. Ignored by default, for
+     *  nickels that are never encoded by a {@link ca.oceansdata.dime.common.nickel.codec.NickelCodec}.
+     *
+     * @param compression the compression policy, or null to use the policy of the address
+     * @return the nickel, with the compression policy set
+     */
+    default Nickel setCompression(NickelCompression compression){
+        return this;
+    }
+
     NickelOrigin origin();
 
     int statusCode();
@@ -0,0 +1,199 @@
+package ca.oceansdata.dime.common.nickel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/** Access log for nickels routed by a {@link NickelRouter}.
+ *
+ *  Recording a nickel only captures its type, address, correlation id, orcid and origin
+ *  into an entry and offers it to a bounded ring buffer, it never formats or blocks.
+ *  A daemon thread drains the ring buffer into an appender, by default a log line in the
+ *  same format routers have always logged:
+ *
+ *  <pre>[Nickel Router] [type] [address] [correlationId] [orcid] [origin]</pre>
+ *
+ *  Entries are dropped, and counted in {@link #dropped()}, when the ring buffer is full.
+ *
+ *  Logging can be sampled, and enabled or disabled per nickel type. Configure access logs
+ *  before routers start using them.
+ */
+public class NickelAccessLog {
+    private static final Logger log = LoggerFactory.getLogger(NickelAccessLog.class);
+    //Entries are written to the router's logger, where they have always been
+    private static final Logger routerLog = LoggerFactory.getLogger(NickelRouter.class);
+
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    private static NickelAccessLog shared;
+
+    private final BlockingQueue<Entry> ring;
+    private final Consumer<Entry> appender;
+    //True when entries are written to the router's logger, so they can be skipped when it is disabled
+    private final boolean logAppender;
+    private final LongAdder dropped = new LongAdder();
+    private final Thread drainer;
+
+    private volatile double sampleRate = 1.0;
+    private final boolean [] enabled = new boolean[NickelType.values().length];
+
+    /** Create an access log writing entries to the {@link NickelRouter} logger.
+     */
+    public NickelAccessLog(){
+        this(DEFAULT_CAPACITY, null);
+    }
+
+    /** Create an access log with a custom appender.
+     *
+     * @param capacity the capacity of the ring buffer
+     * @param appender consumer of access log entries, called on the access log's thread. If null
+     *                 entries are written to the {@link NickelRouter} logger.
+     */
+    public NickelAccessLog(int capacity, Consumer<Entry> appender){
+        this.ring = new ArrayBlockingQueue<>(capacity);
+        this.logAppender = appender == null;
+        this.appender = appender == null? entry->routerLog.info(entry.toString()): appender;
+        Arrays.fill(enabled, true);
+
+        drainer = new Thread(this::drain, "nickel-access-log");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    /** The access log routers use unless given another one.
+     *
+     * @return the shared access log
+     */
+    public static synchronized NickelAccessLog shared(){
+        if(shared == null){
+            shared = new NickelAccessLog();
+        }
+        return shared;
+    }
+
+    /** Set the fraction of routed nickels to log.
+     *
+     * @param sampleRate from 0, nothing is logged, to 1, everything is logged
+     * @return this access log
+     */
+    public NickelAccessLog sampleRate(double sampleRate){
+        this.sampleRate = Math.max(0.0, Math.min(1.0, sampleRate));
+        return this;
+    }
+
+    /** Enable or disable logging for a type of nickel.
+     *
+     * @param type the nickel type
+     * @param enabled whether nickels of that type are logged
+     * @return this access log
+     */
+    public NickelAccessLog enable(NickelType type, boolean enabled){
+        this.enabled[type.ordinal()] = enabled;
+        return this;
+    }
+
+    /** Record a routed nickel.
+     *
+     * @param nickel the nickel
+     * @param address the address the nickel was routed on
+     */
+    public void record(Nickel nickel, String address){
+        NickelType type = nickel.type();
+        if(!enabled[type.ordinal()] || (logAppender && !routerLog.isInfoEnabled())){
+            return;
+        }
+
+        double sampleRate = this.sampleRate;
+        if(sampleRate < 1.0 && ThreadLocalRandom.current().nextDouble() >= sampleRate){
+            return;
+        }
+
+        Entry entry = new Entry(type, address, nickel.correlationId(), nickel.orcid(), nickel.origin());
+        if(!ring.offer(entry)){
+            dropped.increment();
+        }
+    }
+
+    /** @return the number of entries dropped because the ring buffer was full
+     */
+    public long dropped(){
+        return dropped.sum();
+    }
+
+    /** Stop the access log's thread. Entries still in the ring buffer are not written.
+     */
+    public void close(){
+        drainer.interrupt();
+    }
+
+    private void drain(){
+        try{
+            while (!Thread.currentThread().isInterrupted()){
+                Entry entry = ring.take();
+                try{
+                    appender.accept(entry);
+                }catch (RuntimeException e){
+                    log.error("Access log appender failed: {}", e.getMessage(), e);
+                }
+            }
+        }catch (InterruptedException e){
+            //Closed
+        }
+    }
+
+    /** A routed nickel.
+     */
+    public static class Entry {
+        private final long timestamp = System.currentTimeMillis();
+        private final NickelType type;
+        private final String address;
+        private final UUID correlationId;
+        private final String orcid;
+        private final NickelOrigin origin;
+
+        Entry(NickelType type, String address, UUID correlationId, String orcid, NickelOrigin origin){
+            this.type = type;
+            this.address = address;
+            this.correlationId = correlationId;
+            this.orcid = orcid;
+            this.origin = origin;
+        }
+
+        public long timestamp() {
+            return timestamp;
+        }
+
+        public NickelType type() {
+            return type;
+        }
+
+        public String address() {
+            return address;
+        }
+
+        public UUID correlationId() {
+            return correlationId;
+        }
+
+        public String orcid() {
+            return orcid;
+        }
+
+        public NickelOrigin origin() {
+            return origin;
+        }
+
+        @Override
+        public String toString() {
+            return "[Nickel Router] [" + type.name() + "] [" + address + "] [" + correlationId + "] [" + orcid + "] [" +
+                    (origin == null? null: origin.name()) + "]";
+        }
+    }
+}
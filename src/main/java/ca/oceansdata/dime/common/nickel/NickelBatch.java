@@ -8,6 +8,16 @@ import java.util.function.Consumer;
  */
 public class NickelBatch implements Iterable<Map.Entry<String,List<Nickel>>> {
 
+    /** What a windowed send does when a nickel of the batch fails, see
+     *  {@link Nickel#sendAll(io.vertx.reactivex.core.eventbus.EventBus, Iterable, int, Failure)}.
+     */
+    public enum Failure {
+        //Stop sending the batch, and fail the result stream with the error
+        FAIL_FAST,
+        //Keep sending the batch, and emit an error nickel in the result stream for the failed nickel
+        COLLECT_ALL
+    }
+
     private Map<String, List<Nickel>> batch = new LinkedHashMap<>();
 
     /** Add a nickel to the batch
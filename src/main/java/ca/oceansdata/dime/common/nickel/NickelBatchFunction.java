@@ -0,0 +1,19 @@
+package ca.oceansdata.dime.common.nickel;
+
+import io.vertx.reactivex.core.Future;
+
+import java.util.List;
+
+public interface NickelBatchFunction {
+
+    /** A method that produces nickels upon being applied on the nickels of an envelope,
+     *  see {@link Nickel#sendEnveloped(io.vertx.reactivex.core.eventbus.EventBus, Iterable)}.
+     *
+     *  Responses are matched to their requests by correlation id, use {@link Nickel#nickelForA(Nickel)}
+     *  to create them.
+     *
+     * @param in the nickels of the envelope
+     * @return the resulting nickels, sent back as a single reply envelope
+     */
+    Future<List<Nickel>> apply(List<Nickel> in);
+}
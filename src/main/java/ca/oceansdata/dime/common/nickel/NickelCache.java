@@ -0,0 +1,288 @@
+package ca.oceansdata.dime.common.nickel;
+
+import io.vertx.core.json.JsonObject;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Caches the responses of idempotent router functions, see {@link NickelRouter#cache(NickelCache)}.
+ *
+ *  Responses are keyed on the orcid, type, request query parameters and payload of the nickel
+ *  the function was applied to:
+ *
+ *  <pre>orcid|type|{"query":"params"}|payload hash</pre>
+ *
+ *  Only successful RESPONSE nickels are cached. Entries expire after a time to live, and the least
+ *  recently used entries are evicted once the cached payloads exceed a size.
+ *
+ *  When a nickel of an invalidating type passes through the router, UPDATE, SAVE and CREATE by default,
+ *  every entry of its orcid is dropped. Entries can also be dropped by key prefix with {@link #invalidate(String)}.
+ *  A response whose function was still running when entries were dropped is not cached, as it may already be stale.
+ *
+ *  Cache hits are answered with a copy of the cached response carrying the caller's correlation id,
+ *  without invoking the function.
+ */
+public class NickelCache {
+
+    private static final NickelType [] TYPES = NickelType.values();
+
+    private final long maxBytes;
+    private final long ttl;
+
+    private final boolean [] cached = new boolean[TYPES.length];
+    private final boolean [] invalidating = new boolean[TYPES.length];
+
+    //Guarded by itself, in access order for LRU eviction
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+    //Incremented by every invalidation, see put
+    private long generation = 0;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /** Create a cache for GET functions, invalidated by UPDATE, SAVE and CREATE nickels.
+     *
+     * @param maxBytes the maximum size of the cached payloads, in bytes
+     * @param ttl how long responses are cached for, in milliseconds
+     */
+    public NickelCache(long maxBytes, long ttl){
+        this.maxBytes = maxBytes;
+        this.ttl = ttl;
+        cached[NickelType.GET.ordinal()] = true;
+        invalidating[NickelType.UPDATE.ordinal()] = true;
+        invalidating[NickelType.SAVE.ordinal()] = true;
+        invalidating[NickelType.CREATE.ordinal()] = true;
+    }
+
+    /** Set whether the responses of functions for a type of nickel are cached.
+     *
+     * @param type the nickel type
+     * @param cached true to cache responses to nickels of that type
+     * @return this cache
+     */
+    public NickelCache cache(NickelType type, boolean cached){
+        this.cached[type.ordinal()] = cached;
+        return this;
+    }
+
+    /** Set whether a type of nickel invalidates the cached responses of its orcid.
+     *
+     * @param type the nickel type
+     * @param invalidating true if nickels of that type invalidate cached responses
+     * @return this cache
+     */
+    public NickelCache invalidateOn(NickelType type, boolean invalidating){
+        this.invalidating[type.ordinal()] = invalidating;
+        return this;
+    }
+
+    /** @param type a nickel type
+     *  @return true if the responses to nickels of that type are cached
+     */
+    boolean caches(NickelType type){
+        return cached[type.ordinal()];
+    }
+
+    /** Drop the entries of a nickel's orcid, if the nickel is of an invalidating type.
+     *
+     * @param nickel a nickel passing through the router
+     */
+    void passed(Nickel nickel){
+        if(invalidating[nickel.type().ordinal()]){
+            invalidate(nickel.orcid() + "|");
+        }
+    }
+
+    /** Get the cache key of a nickel.
+     *
+     * @param nickel the nickel a function is applied to
+     * @return the cache key
+     */
+    static String key(Nickel nickel){
+        JsonObject params = nickel.requestQueryParams();
+        return nickel.orcid() + "|" + nickel.type().name() + "|" +
+                (params == null? "": params.encode()) + "|" +
+                hash(nickel.getData());
+    }
+
+    /** Get a copy of a cached response for a nickel.
+     *
+     * @param key the cache key of the nickel
+     * @param nickel the nickel
+     * @return a response to the nickel, or null if none is cached
+     */
+    Nickel get(String key, Nickel nickel){
+        Entry entry;
+        synchronized (entries){
+            entry = entries.get(key);
+            if(entry != null && entry.expires < System.currentTimeMillis()){
+                remove(key);
+                entry = null;
+            }
+        }
+
+        if(entry == null){
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.responseTo(nickel);
+    }
+
+    /** @return the current generation of the cache, take it before applying a function whose response
+     *  will be cached, see {@link #put(String, Nickel, long)}.
+     */
+    long generation(){
+        synchronized (entries){
+            return generation;
+        }
+    }
+
+    /** Cache the response of a function, unless entries have been invalidated since the function was applied.
+     *
+     * @param key the cache key of the nickel the function was applied to
+     * @param response the response
+     * @param generation the generation of the cache before the function was applied
+     */
+    void put(String key, Nickel response, long generation){
+        if(response.type() != NickelType.RESPONSE || response.statusCode() < 200 || response.statusCode() >= 300){
+            return;
+        }
+
+        Entry entry = new Entry(response, System.currentTimeMillis() + ttl);
+        if(entry.size() > maxBytes){
+            return;
+        }
+
+        synchronized (entries){
+            if(generation != this.generation){
+                return;
+            }
+            remove(key);
+            entries.put(key, entry);
+            bytes += entry.size();
+
+            Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+            while (bytes > maxBytes && eldest.hasNext()){
+                bytes -= eldest.next().getValue().size();
+                eldest.remove();
+                evictions.increment();
+            }
+        }
+    }
+
+    /** Drop every entry whose key starts with a prefix.
+     *
+     * @param prefix the key prefix, ex: an orcid followed by '|' for every response of the orcid
+     */
+    public void invalidate(String prefix){
+        synchronized (entries){
+            generation++;
+            Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+            while (it.hasNext()){
+                Map.Entry<String, Entry> next = it.next();
+                if(next.getKey().startsWith(prefix)){
+                    bytes -= next.getValue().size();
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /** Drop every entry.
+     */
+    public void clear(){
+        synchronized (entries){
+            generation++;
+            entries.clear();
+            bytes = 0;
+        }
+    }
+
+    private void remove(String key){
+        Entry previous = entries.remove(key);
+        if(previous != null){
+            bytes -= previous.size();
+        }
+    }
+
+    public int size(){
+        synchronized (entries){
+            return entries.size();
+        }
+    }
+
+    public long bytes(){
+        synchronized (entries){
+            return bytes;
+        }
+    }
+
+    public long hits(){
+        return hits.sum();
+    }
+
+    public long misses(){
+        return misses.sum();
+    }
+
+    public long evictions(){
+        return evictions.sum();
+    }
+
+    private static String hash(byte [] data){
+        if(data == null || data.length == 0){
+            return "";
+        }
+        try{
+            return Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-256").digest(data));
+        }catch (NoSuchAlgorithmException e){
+            //Every JVM supports SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** A cached response.
+     */
+    private static class Entry {
+        private final NickelOrigin origin;
+        private final int statusCode;
+        private final JsonObject meta;
+        private final JsonObject httpResponseHeaders;
+        private final byte [] data;
+        private final long expires;
+        private final long size;
+
+        Entry(Nickel response, long expires){
+            this.origin = response.origin();
+            this.statusCode = response.statusCode();
+            this.meta = response.getMeta() == null? null: response.getMeta().copy();
+            this.httpResponseHeaders = response.httpResponseHeaders() == null? null: response.httpResponseHeaders().copy();
+            this.data = response.getData();
+            this.expires = expires;
+            this.size = (data == null? 0: data.length) +
+                    (meta == null? 0: meta.encode().getBytes(StandardCharsets.UTF_8).length);
+        }
+
+        Nickel responseTo(Nickel nickel){
+            Nickel result = Nickel.nickelForA(nickel, origin)
+                    .setStatusCode(statusCode);
+            if(meta != null) result.setMeta(meta.copy());
+            if(httpResponseHeaders != null) result.setHttpResponseHeaders(httpResponseHeaders.copy());
+            if(data != null) result.pack(data);
+            return result;
+        }
+
+        long size(){
+            return size;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package ca.oceansdata.dime.common.nickel;
+
+import io.vertx.core.Context;
+import io.vertx.core.Handler;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.shareddata.LocalMap;
+import io.vertx.core.shareddata.Shareable;
+
+/** An event loop context of a Vertx instance that belongs to nickels rather than to any verticle.
+ *
+ *  Timers and consumers are cancelled when the verticle whose context registered them is undeployed.
+ *  Those shared by every verticle, like the {@link NickelTimeouts} wheel and the consumers of the
+ *  {@link NickelReplyDispatcher}, are registered on this context instead.
+ *
+ *  It is created by {@link Vertx#getOrCreateContext()} outside of any Vert.x thread, the first time it is
+ *  needed. Verticles cannot be used for this, as those deployed from a verticle are undeployed with it.
+ */
+class NickelContext implements Shareable {
+    private final Promise<Context> owned = Promise.promise();
+
+    private NickelContext(){}
+
+    /** Get the nickel context of a Vertx instance.
+     *
+     * @param vertx the vertx instance
+     * @return the nickel context
+     */
+    static NickelContext forVertx(Vertx vertx){
+        LocalMap<String, NickelContext> map = vertx.sharedData().getLocalMap(NickelContext.class.getName());
+        NickelContext context = map.get("context");
+        if(context == null){
+            NickelContext created = new NickelContext();
+            context = map.putIfAbsent("context", created);
+            if(context == null){
+                context = created;
+                created.create(vertx);
+            }
+        }
+        return context;
+    }
+
+    private void create(Vertx vertx){
+        if(Vertx.currentContext() == null){
+            owned.complete(vertx.getOrCreateContext());
+            return;
+        }
+
+        Thread creator = new Thread(()->owned.complete(vertx.getOrCreateContext()), "nickel-context");
+        creator.setDaemon(true);
+        creator.start();
+    }
+
+    /** Run an action on the nickel context, once it has been created.
+     *
+     * @param action the action
+     */
+    void runOnContext(Handler<Void> action){
+        owned.future().onSuccess(context->context.runOnContext(action));
+    }
+}
@@ -0,0 +1,71 @@
+package ca.oceansdata.dime.common.nickel;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/** Carries several nickels for one address as a single event bus message, see
+ *  {@link Nickel#sendEnveloped(io.vertx.reactivex.core.eventbus.EventBus, Iterable)}.
+ *
+ *  A router receiving a request envelope either passes its nickels to its batch function, see
+ *  {@link NickelRouter#batchFunction(NickelBatchFunction)}, or routes each nickel as if it had been
+ *  sent on its own. Either way the responses are published back as a single reply envelope with the
+ *  same correlation id.
+ *
+ *  Envelopes are sent with the {@link ca.oceansdata.dime.common.nickel.codec.NickelEnvelopeCodec},
+ *  which must be registered as the default codec for this class alongside the nickel codec.
+ */
+public class NickelEnvelope {
+
+    /** Value of the 'type' header of request envelopes. */
+    public static final String TYPE = "BATCH";
+    /** Value of the 'type' header of reply envelopes. */
+    public static final String REPLY_TYPE = "BATCH_REPLY";
+
+    private final UUID correlationId;
+    private final boolean reply;
+    private final List<Nickel> nickels;
+
+    public NickelEnvelope(UUID correlationId, boolean reply, List<Nickel> nickels){
+        this.correlationId = correlationId;
+        this.reply = reply;
+        this.nickels = Collections.unmodifiableList(nickels);
+    }
+
+    /** Create a request envelope.
+     *
+     * @param nickels the nickels to send
+     * @return the envelope, with a new correlation id
+     */
+    public static NickelEnvelope of(List<Nickel> nickels){
+        return new NickelEnvelope(UUID.randomUUID(), false, nickels);
+    }
+
+    /** Create the reply to a request envelope.
+     *
+     * @param request the request envelope
+     * @param responses the response nickels
+     * @return the reply envelope, with the correlation id of the request
+     */
+    public static NickelEnvelope replyTo(NickelEnvelope request, List<Nickel> responses){
+        return new NickelEnvelope(request.correlationId, true, responses);
+    }
+
+    public UUID correlationId() {
+        return correlationId;
+    }
+
+    public boolean isReply() {
+        return reply;
+    }
+
+    public List<Nickel> nickels() {
+        return nickels;
+    }
+
+    /** @return the value of the 'type' header for this envelope
+     */
+    public String type(){
+        return reply? REPLY_TYPE: TYPE;
+    }
+}
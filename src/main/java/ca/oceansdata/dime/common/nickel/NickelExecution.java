@@ -0,0 +1,110 @@
+package ca.oceansdata.dime.common.nickel;
+
+/** Where a {@link NickelRouter} runs a function or handler.
+ *
+ *  <ul>
+ *      <li><b>Event loop</b> the default, functions and handlers run on the router's event loop
+ *      and must never block.</li>
+ *      <li><b>Worker</b> functions and handlers run on a named Vert.x worker pool, shared by every
+ *      registration using the same pool name.</li>
+ *      <li><b>Virtual thread</b> every nickel gets its own virtual thread, on JDKs that support them.
+ *      Elsewhere a worker pool is used instead.</li>
+ *  </ul>
+ *
+ *  Worker and virtual thread executions hold at most a given number of pending nickels per
+ *  registration, running or waiting. Nickels beyond that are rejected: functions answer them with
+ *  a 503 error nickel, handlers drop them with an error log.
+ *
+ *  By default nickels are processed concurrently. They can instead be processed one at a time per
+ *  orcid or per correlation id, in the order they were received. A function counts as processing
+ *  its nickel until the future it returned completes.
+ */
+public class NickelExecution {
+
+    public enum Mode {
+        EVENT_LOOP,
+        WORKER,
+        VIRTUAL_THREAD
+    }
+
+    public enum Ordering {
+        NONE,
+        ORCID,
+        CORRELATION_ID
+    }
+
+    public static final int DEFAULT_POOL_SIZE = 20;
+    public static final int DEFAULT_MAX_PENDING = 1000;
+
+    private static final NickelExecution EVENT_LOOP = new NickelExecution(Mode.EVENT_LOOP, null, 0, 0, Ordering.NONE);
+
+    private final Mode mode;
+    private final String pool;
+    private final int poolSize;
+    private final int maxPending;
+    private final Ordering ordering;
+
+    private NickelExecution(Mode mode, String pool, int poolSize, int maxPending, Ordering ordering){
+        this.mode = mode;
+        this.pool = pool;
+        this.poolSize = poolSize;
+        this.maxPending = maxPending;
+        this.ordering = ordering;
+    }
+
+    /** @return an execution on the router's event loop
+     */
+    public static NickelExecution eventLoop(){
+        return EVENT_LOOP;
+    }
+
+    /** Create an execution on a named worker pool.
+     *
+     * @param pool the name of the worker pool
+     * @param poolSize the number of threads in the pool, if it doesn't exist yet
+     * @param maxPending the maximum number of pending nickels, 0 for no limit
+     * @return the execution
+     */
+    public static NickelExecution worker(String pool, int poolSize, int maxPending){
+        return new NickelExecution(Mode.WORKER, pool, poolSize, maxPending, Ordering.NONE);
+    }
+
+    /** Create an execution on a virtual thread per nickel, or on the 'nickel-virtual-fallback'
+     *  worker pool if the JDK doesn't support virtual threads.
+     *
+     * @param maxPending the maximum number of pending nickels, 0 for no limit
+     * @return the execution
+     */
+    public static NickelExecution virtualThread(int maxPending){
+        return new NickelExecution(Mode.VIRTUAL_THREAD, "nickel-virtual-fallback", DEFAULT_POOL_SIZE, maxPending, Ordering.NONE);
+    }
+
+    /** Get a copy of this execution processing nickels one at a time per orcid or correlation id.
+     *
+     * @param ordering the ordering
+     * @return the ordered execution
+     */
+    public NickelExecution ordered(Ordering ordering){
+        return new NickelExecution(mode, pool, poolSize, maxPending, ordering);
+    }
+
+    public Mode mode() {
+        return mode;
+    }
+
+    public String pool() {
+        return pool;
+    }
+
+    public int poolSize() {
+        return poolSize;
+    }
+
+    public int maxPending() {
+        return maxPending;
+    }
+
+    public Ordering ordering() {
+        return ordering;
+    }
+}
@@ -0,0 +1,182 @@
+package ca.oceansdata.dime.common.nickel;
+
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import io.vertx.core.WorkerExecutor;
+import io.vertx.reactivex.core.Future;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/** Runs the functions or handlers of a router registration according to a {@link NickelExecution}.
+ */
+class NickelExecutor {
+    private static final Logger log = LoggerFactory.getLogger(NickelExecutor.class);
+
+    //Virtual thread per task executor, if the JDK supports it. Looked up once.
+    private static ExecutorService virtualThreads;
+    private static boolean virtualThreadsLookedUp = false;
+
+    private final NickelExecution execution;
+    private final NickelExecution.Mode mode;
+    private final Context context;
+    private final WorkerExecutor worker;
+    private final ExecutorService virtual;
+
+    //Nickels submitted and not done yet
+    private final AtomicInteger pending = new AtomicInteger();
+    //Nickels waiting for the nickel before them with the same key, by key. Guarded by itself.
+    private final Map<String, ArrayDeque<Supplier<Future<?>>>> waiting = new HashMap<>();
+
+    NickelExecutor(Vertx vertx, NickelExecution execution){
+        this.execution = execution;
+        this.context = vertx.getOrCreateContext();
+
+        ExecutorService virtual = execution.mode() == NickelExecution.Mode.VIRTUAL_THREAD? virtualThreads(): null;
+        if(execution.mode() == NickelExecution.Mode.VIRTUAL_THREAD && virtual == null){
+            log.warn("Virtual threads are not supported by this JDK, using worker pool {} instead", execution.pool());
+            this.mode = NickelExecution.Mode.WORKER;
+        }else{
+            this.mode = execution.mode();
+        }
+        this.virtual = virtual;
+        this.worker = mode == NickelExecution.Mode.WORKER? vertx.createSharedWorkerExecutor(execution.pool(), execution.poolSize()): null;
+    }
+
+    /** Submit a task processing a nickel.
+     *
+     * @param nickel the nickel the task processes
+     * @param task the task, returning a future that completes once the nickel has been processed, or null
+     * @return false if the task was rejected because too many nickels are pending
+     */
+    boolean submit(Nickel nickel, Supplier<Future<?>> task){
+        int maxPending = execution.maxPending();
+        if(pending.incrementAndGet() > maxPending && maxPending > 0 && mode != NickelExecution.Mode.EVENT_LOOP){
+            pending.decrementAndGet();
+            return false;
+        }
+
+        String key = key(nickel);
+        if(key == null){
+            dispatch(task, pending::decrementAndGet, false);
+            return true;
+        }
+
+        synchronized (waiting){
+            ArrayDeque<Supplier<Future<?>>> queue = waiting.get(key);
+            if(queue != null){
+                queue.add(task);
+                return true;
+            }
+            waiting.put(key, new ArrayDeque<>());
+        }
+        runInOrder(key, task, false);
+        return true;
+    }
+
+    /** @return the number of nickels submitted and not done yet
+     */
+    int pending(){
+        return pending.get();
+    }
+
+    private void runInOrder(String key, Supplier<Future<?>> task, boolean followUp){
+        dispatch(task, ()->{
+            pending.decrementAndGet();
+            Supplier<Future<?>> next;
+            synchronized (waiting){
+                next = waiting.get(key).poll();
+                if(next == null){
+                    waiting.remove(key);
+                }
+            }
+            if(next != null){
+                runInOrder(key, next, true);
+            }
+        }, followUp);
+    }
+
+    /** Run a task according to the execution mode.
+     *
+     * @param task the task
+     * @param done called once the future returned by the task completes
+     * @param followUp true if the task follows another one, in which case it is never run on the calling stack
+     */
+    private void dispatch(Supplier<Future<?>> task, Runnable done, boolean followUp){
+        Runnable run = ()->{
+            Future<?> result;
+            try{
+                result = task.get();
+            }catch (RuntimeException e){
+                log.error("Nickel task failed: {}", e.getMessage(), e);
+                done.run();
+                return;
+            }
+            if(result == null){
+                done.run();
+            }else{
+                result.onComplete(ar->done.run());
+            }
+        };
+
+        switch (mode){
+            case WORKER:
+                worker.executeBlocking(promise->{
+                    try{
+                        run.run();
+                    }finally {
+                        promise.complete();
+                    }
+                }, false, ar->{});
+                break;
+            case VIRTUAL_THREAD:
+                virtual.execute(run);
+                break;
+            default:
+                if(!followUp && Vertx.currentContext() == context){
+                    run.run();
+                }else{
+                    context.runOnContext(v->run.run());
+                }
+        }
+    }
+
+    private String key(Nickel nickel){
+        switch (execution.ordering()){
+            case ORCID:
+                return nickel.orcid();
+            case CORRELATION_ID:
+                return nickel.correlationId().toString();
+            default:
+                return null;
+        }
+    }
+
+    /** Close the worker pool of this executor, if it has one.
+     */
+    void close(){
+        if(worker != null){
+            worker.close();
+        }
+    }
+
+    private static synchronized ExecutorService virtualThreads(){
+        if(!virtualThreadsLookedUp){
+            virtualThreadsLookedUp = true;
+            try{
+                //Executors.newVirtualThreadPerTaskExecutor() was added in JDK 21
+                virtualThreads = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            }catch (ReflectiveOperationException e){
+                virtualThreads = null;
+            }
+        }
+        return virtualThreads;
+    }
+}
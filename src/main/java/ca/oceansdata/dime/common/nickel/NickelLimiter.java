@@ -0,0 +1,220 @@
+package ca.oceansdata.dime.common.nickel;
+
+import io.vertx.reactivex.core.Future;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.function.Supplier;
+
+/** Limits how many nickels a router processes at once, see
+ *  {@link NickelRouter#limit(int, int, Overflow)}.
+ *
+ *  A nickel counts as in flight from the moment its function is applied until the future
+ *  the function returned completes. Once the limit is reached, further nickels are handled
+ *  according to the overflow policy:
+ *
+ *  <ul>
+ *      <li><b>QUEUE</b> nickels wait in a bounded queue, nickels beyond its capacity are rejected.</li>
+ *      <li><b>REJECT</b> nickels are rejected right away.</li>
+ *      <li><b>PAUSE</b> nickels wait in the queue, and once it is full the router stops consuming
+ *      messages from the event bus until the queue is half empty.</li>
+ *  </ul>
+ *
+ *  Rejected nickels are answered with a 503 error nickel.
+ *
+ *  Waiting nickels are queued by priority lane, see {@link NickelPriority}, and the lanes are
+ *  drained by weighted round robin. The capacity of the queue is shared by all lanes.
+ */
+public class NickelLimiter {
+    private static final Logger log = LoggerFactory.getLogger(NickelLimiter.class);
+
+    public enum Overflow {
+        QUEUE,
+        REJECT,
+        PAUSE
+    }
+
+    private final int maxInFlight;
+    private final int maxQueued;
+    private final Overflow overflow;
+    private final Runnable pause;
+    private final Runnable resume;
+
+    //Guarded by this
+    private final ArrayDeque<Supplier<Future<?>>> [] lanes = lanes();
+    private int [] weights = new NickelPriority().weights();
+    private final int [] credits = new int[NickelPriority.LANES.length];
+    private int queued = 0;
+    private int inFlight = 0;
+    private boolean paused = false;
+
+    /** Create a limiter.
+     *
+     * @param maxInFlight the maximum number of nickels in flight
+     * @param maxQueued the capacity of the queue
+     * @param overflow what to do with nickels once the limit is reached
+     * @param pause pauses the router's consumer, for the PAUSE policy
+     * @param resume resumes the router's consumer, for the PAUSE policy
+     */
+    NickelLimiter(int maxInFlight, int maxQueued, Overflow overflow, Runnable pause, Runnable resume){
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.maxQueued = Math.max(0, maxQueued);
+        this.overflow = overflow;
+        this.pause = pause;
+        this.resume = resume;
+    }
+
+    /** Set the weights of the priority lanes.
+     *
+     * @param priorities the priority configuration
+     */
+    synchronized void priorities(NickelPriority priorities){
+        this.weights = priorities.weights();
+    }
+
+    /** Submit a task processing a nickel in the NORMAL lane.
+     *
+     * @param task the task, returning a future that completes once the nickel has been processed
+     * @return false if the nickel was rejected
+     */
+    boolean submit(Supplier<Future<?>> task){
+        return submit(task, NickelPriority.Lane.NORMAL);
+    }
+
+    /** Submit a task processing a nickel.
+     *
+     * @param task the task, returning a future that completes once the nickel has been processed
+     * @param lane the priority lane of the nickel
+     * @return false if the nickel was rejected
+     */
+    boolean submit(Supplier<Future<?>> task, NickelPriority.Lane lane){
+        boolean pauseNow = false;
+        synchronized (this){
+            if(inFlight < maxInFlight){
+                inFlight++;
+            }else if(overflow == Overflow.REJECT || (overflow == Overflow.QUEUE && queued >= maxQueued)){
+                return false;
+            }else{
+                lanes[lane.ordinal()].add(task);
+                queued++;
+                if(overflow == Overflow.PAUSE && !paused && queued >= maxQueued){
+                    paused = true;
+                    pauseNow = true;
+                }
+                task = null;
+            }
+        }
+
+        if(pauseNow){
+            log.warn("Nickel queue is full, pausing consumer");
+            pause.run();
+        }
+        if(task != null){
+            run(task);
+        }
+        return true;
+    }
+
+    /** Run a task, then the queued tasks that follow it for as long as they complete synchronously,
+     *  ex: answered from a cache. Those are run in a loop rather than recursively, so draining a long
+     *  queue of them takes constant stack.
+     */
+    private void run(Supplier<Future<?>> task){
+        while (task != null){
+            Future<?> result;
+            try{
+                result = task.get();
+            }catch (RuntimeException e){
+                log.error("Limited nickel task failed: {}", e.getMessage(), e);
+                result = null;
+            }
+
+            if(result != null && !result.isComplete()){
+                result.onComplete(done->run(release()));
+                return;
+            }
+            task = release();
+        }
+    }
+
+    /** Free up the slot of a finished task, or hand it over to the next queued task.
+     *
+     * @return the next queued task to run, or null
+     */
+    private Supplier<Future<?>> release(){
+        Supplier<Future<?>> next;
+        boolean resumeNow = false;
+        synchronized (this){
+            next = poll();
+            if(next == null){
+                inFlight--;
+            }
+            if(paused && queued <= maxQueued / 2){
+                paused = false;
+                resumeNow = true;
+            }
+        }
+
+        if(resumeNow){
+            log.info("Nickel queue has drained, resuming consumer");
+            resume.run();
+        }
+        return next;
+    }
+
+    /** Take the next queued task, by smooth weighted round robin over the lanes that have tasks waiting.
+     *  Must hold the lock.
+     *
+     * @return the next task, or null if no task is waiting
+     */
+    private Supplier<Future<?>> poll(){
+        if(queued == 0){
+            return null;
+        }
+
+        int best = -1;
+        int total = 0;
+        for(int i = 0; i < lanes.length; i++){
+            if(lanes[i].isEmpty()){
+                continue;
+            }
+            credits[i] += weights[i];
+            total += weights[i];
+            if(best == -1 || credits[i] > credits[best]){
+                best = i;
+            }
+        }
+        credits[best] -= total;
+        queued--;
+        return lanes[best].poll();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ArrayDeque<Supplier<Future<?>>> [] lanes(){
+        ArrayDeque<Supplier<Future<?>>> [] lanes = new ArrayDeque[NickelPriority.LANES.length];
+        for(int i = 0; i < lanes.length; i++){
+            lanes[i] = new ArrayDeque<>();
+        }
+        return lanes;
+    }
+
+    /** @return the number of nickels in flight
+     */
+    public synchronized int inFlight(){
+        return inFlight;
+    }
+
+    /** @return the number of nickels waiting
+     */
+    public synchronized int queued(){
+        return queued;
+    }
+
+    /** @param lane a priority lane
+     *  @return the number of nickels waiting in the lane
+     */
+    public synchronized int queued(NickelPriority.Lane lane){
+        return lanes[lane.ordinal()].size();
+    }
+}
@@ -0,0 +1,121 @@
+package ca.oceansdata.dime.common.nickel;
+
+import io.vertx.core.json.JsonObject;
+
+import java.util.Arrays;
+
+/** Assigns nickels to priority lanes, so that a {@link NickelRouter} under load processes
+ *  interactive nickels ahead of bulk ones, see {@link NickelRouter#priorities(NickelPriority)}.
+ *
+ *  A nickel's lane is resolved in this order:
+ *
+ *  <ol>
+ *      <li>The metadata key, if set and the nickel's metadata names a lane under it. Ex: {"priority": "HIGH"}</li>
+ *      <li>The lane of the nickel's type</li>
+ *      <li>The lane of the nickel's origin</li>
+ *      <li>NORMAL</li>
+ *  </ol>
+ *
+ *  Nickels waiting in a limiter queue are drained from the lanes by weighted round robin. With
+ *  the default weights, out of 13 queued nickels started while every lane has some waiting,
+ *  8 are HIGH, 4 are NORMAL and 1 is LOW, so bulk work is slowed down but never starved.
+ *
+ *  <pre>
+ *  router.priorities(new NickelPriority()
+ *          .origin(NickelOrigin.DIME_GATEWAY, NickelPriority.Lane.HIGH)
+ *          .type(NickelType.SCHEMA_CREATED, NickelPriority.Lane.LOW)
+ *          .type(NickelType.NEW_METADATA, NickelPriority.Lane.LOW))
+ *        .limit(8, 1000, NickelLimiter.Overflow.QUEUE);
+ *  </pre>
+ */
+public class NickelPriority {
+
+    public enum Lane {
+        HIGH,
+        NORMAL,
+        LOW
+    }
+
+    static final Lane [] LANES = Lane.values();
+
+    private final Lane [] types = new Lane[NickelType.values().length];
+    private final Lane [] origins = new Lane[NickelOrigin.values().length];
+    private final int [] weights = {8, 4, 1};
+    private String metaKey;
+
+    /** Assign a type of nickel to a lane.
+     *
+     * @param type the nickel type
+     * @param lane the lane
+     * @return this priority configuration
+     */
+    public NickelPriority type(NickelType type, Lane lane){
+        types[type.ordinal()] = lane;
+        return this;
+    }
+
+    /** Assign the nickels from an origin to a lane. The lane of a nickel's type takes precedence.
+     *
+     * @param origin the nickel origin
+     * @param lane the lane
+     * @return this priority configuration
+     */
+    public NickelPriority origin(NickelOrigin origin, Lane lane){
+        origins[origin.ordinal()] = lane;
+        return this;
+    }
+
+    /** Let senders pick the lane of a nickel through its metadata. Takes precedence over types and origins.
+     *
+     * @param key the metadata key holding the name of the lane
+     * @return this priority configuration
+     */
+    public NickelPriority metaKey(String key){
+        this.metaKey = key;
+        return this;
+    }
+
+    /** Set the share of a lane when draining queued nickels.
+     *
+     * @param lane the lane
+     * @param weight the weight of the lane, at least 1
+     * @return this priority configuration
+     */
+    public NickelPriority weight(Lane lane, int weight){
+        weights[lane.ordinal()] = Math.max(1, weight);
+        return this;
+    }
+
+    public int weight(Lane lane){
+        return weights[lane.ordinal()];
+    }
+
+    /** Get the lane of a nickel.
+     *
+     * @param nickel the nickel
+     * @return the lane of the nickel
+     */
+    public Lane lane(Nickel nickel){
+        if(metaKey != null){
+            JsonObject meta = nickel.getMeta();
+            Object name = meta == null? null: meta.getValue(metaKey);
+            if(name instanceof String){
+                try{
+                    return Lane.valueOf((String)name);
+                }catch (IllegalArgumentException e){
+                    //Not a lane, fall through to the type and origin
+                }
+            }
+        }
+
+        Lane lane = nickel.type() == null? null: types[nickel.type().ordinal()];
+        if(lane == null && nickel.origin() != null){
+            lane = origins[nickel.origin().ordinal()];
+        }
+        return lane == null? Lane.NORMAL: lane;
+    }
+
+    int [] weights(){
+        return Arrays.copyOf(weights, weights.length);
+    }
+}
@@ -0,0 +1,375 @@
+package ca.oceansdata.dime.common.nickel;
+
+import ca.oceansdata.dime.common.exceptions.ErrorNickel;
+import io.vertx.core.Context;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.reactivex.core.Future;
+import io.vertx.reactivex.core.Promise;
+import io.vertx.reactivex.core.eventbus.EventBus;
+import io.vertx.reactivex.core.eventbus.Message;
+import io.vertx.reactivex.core.eventbus.MessageConsumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/** Captures reply nickels for requests sent with {@link Nickel#send(EventBus, String, Nickel)}.
+ *
+ *  A single event bus consumer is registered per address (and event bus) for as long as
+ *  there are requests awaiting a reply on that address. Pending requests are kept in a
+ *  concurrent map keyed by correlation id, so a reply costs one lookup regardless of how
+ *  many requests are in flight.
+ *
+ *  Reply semantics are those of {@link Nickel#send(EventBus, String, Nickel)}:
+ *  <ul>
+ *      <li>RESPONSE nickels complete the pending request.</li>
+ *      <li>ERROR nickels fail the pending request with an {@link ErrorNickel}.</li>
+ *      <li>TIMEOUT nickels complete the pending request.</li>
+ *  </ul>
+ *
+ *  Requests can also be resolved locally, without a reply nickel, see {@link #complete(EventBus, String, Nickel, Nickel)}
+ *  and {@link #fail(EventBus, String, Nickel, Throwable)}.
+ *
+ *  Envelopes sent with {@link Nickel#sendEnveloped(EventBus, Iterable)} are answered by a single
+ *  reply envelope with the same correlation id.
+ *
+ *  Requests streamed with {@link Nickel#sendStream(EventBus, String, Nickel, io.vertx.core.streams.ReadStream)}
+ *  additionally receive the STREAM_ACK nickels sent back by the receiving end until they are answered.
+ *
+ *  Once the last pending request on an address has been answered, the consumer is
+ *  unregistered.
+ *
+ *  Consumers are registered on the {@link NickelContext} of the Vertx instance, so that undeploying the
+ *  verticle that happened to send the first request on an address doesn't leave the others without replies.
+ *  Requests are only published once the consumer is registered, and are answered on the context they
+ *  were sent from.
+ */
+public class NickelReplyDispatcher {
+    private static final Logger log = LoggerFactory.getLogger(NickelReplyDispatcher.class);
+
+    //Dispatchers by event bus, then by address. Guarded by itself.
+    private static final Map<io.vertx.core.eventbus.EventBus, Map<String, NickelReplyDispatcher>> dispatchers = new HashMap<>();
+
+    private final EventBus eb;
+    private final String address;
+
+    //Requests awaiting a reply, keyed by the correlation id header value
+    private final Map<String, Request<Nickel>> pending = new ConcurrentHashMap<>();
+
+    //Requests awaiting a reply envelope, keyed by the envelope's correlation id
+    private final Map<String, Request<NickelEnvelope>> envelopes = new ConcurrentHashMap<>();
+
+    //Event bus consumer capturing replies on the address, guarded by the dispatchers map.
+    private MessageConsumer<Object> consumer;
+    //Registration state of the consumer, guarded by the dispatchers map
+    private boolean registering = false;
+    private boolean listening = false;
+    //Requests to publish once the consumer is registered, guarded by the dispatchers map
+    private List<Runnable> queued = new ArrayList<>();
+    //Requests scheduled for publication on their context and not published yet, guarded by the dispatchers map
+    private int unpublished = 0;
+
+    private NickelReplyDispatcher(EventBus eb, String address){
+        this.eb = eb;
+        this.address = address;
+    }
+
+    /** Register a pending request and get a future for its reply nickel.
+     *
+     * @param eb the event bus the request will be sent on
+     * @param address the address replies will be published to
+     * @param nickel the request nickel
+     * @param publish publishes the request nickel, run once replies to it can be captured
+     * @return a future that completes or fails according to the reply nickel, on the calling context
+     */
+    public static Future<Nickel> expect(EventBus eb, String address, Nickel nickel, Runnable publish){
+        return expectStream(eb, address, nickel, null, publish);
+    }
+
+    /** Register a pending streamed request and get a future for its reply nickel.
+     *
+     * @param eb the event bus the request will be sent on
+     * @param address the address replies will be published to
+     * @param nickel the request nickel
+     * @param ackHandler handler for STREAM_ACK nickels received until the request is answered, called on
+     *                   the calling context. May be null.
+     * @param publish starts publishing the chunks of the request, run once replies to it can be captured
+     * @return a future that completes or fails according to the reply nickel, on the calling context
+     */
+    public static Future<Nickel> expectStream(EventBus eb, String address, Nickel nickel, Handler<Nickel> ackHandler, Runnable publish){
+        Request<Nickel> request = new Request<>(ackHandler);
+        return expect(eb, address, dispatcher->dispatcher.pending.put(nickel.correlationId().toString(), request), request, publish);
+    }
+
+    /** Register a pending envelope and get a future for its reply envelope.
+     *
+     * @param eb the event bus the envelope will be sent on
+     * @param address the address the reply envelope will be published to
+     * @param envelope the request envelope
+     * @param publish publishes the envelope, run once its reply can be captured
+     * @return a future that completes with the reply envelope, on the calling context
+     */
+    public static Future<NickelEnvelope> expectEnvelope(EventBus eb, String address, NickelEnvelope envelope, Runnable publish){
+        Request<NickelEnvelope> request = new Request<>(null);
+        return expect(eb, address, dispatcher->dispatcher.envelopes.put(envelope.correlationId().toString(), request), request, publish);
+    }
+
+    private static <T> Future<T> expect(EventBus eb, String address, Consumer<NickelReplyDispatcher> add, Request<T> request, Runnable publish){
+        NickelReplyDispatcher dispatcher;
+        boolean register;
+        boolean publishNow;
+        synchronized (dispatchers){
+            Map<String, NickelReplyDispatcher> byAddress = dispatchers.computeIfAbsent(eb.getDelegate(), k->new HashMap<>());
+            dispatcher = byAddress.computeIfAbsent(address, k->new NickelReplyDispatcher(eb, address));
+            register = !dispatcher.registering;
+            dispatcher.registering = true;
+            add.accept(dispatcher);
+            publishNow = dispatcher.publishNow(request.context, publish);
+        }
+
+        if(register){
+            dispatcher.register();
+        }
+        if(publishNow){
+            publish.run();
+        }
+        return request.promise.future();
+    }
+
+    /** Decide whether a request can be published right away, or schedule its publication otherwise.
+     *  Requests sent from the same context are published in the order they were sent. Must hold the
+     *  dispatchers lock.
+     *
+     * @param context the context the request is sent from, may be null
+     * @param publish publishes the request
+     * @return true if the request can be published right away
+     */
+    private boolean publishNow(Context context, Runnable publish){
+        if(listening && (unpublished == 0 || context == null)){
+            return true;
+        }
+
+        unpublished++;
+        Runnable deferred = ()->{
+            synchronized (dispatchers){
+                unpublished--;
+            }
+            publish.run();
+        };
+        if(listening){
+            context.runOnContext(v->deferred.run());
+        }else{
+            queued.add(context == null? deferred: ()->context.runOnContext(v->deferred.run()));
+        }
+        return false;
+    }
+
+    /** Register the consumer of this dispatcher on the nickel context of the calling Vertx instance.
+     *  Outside of Vert.x threads the consumer is registered right away, on a context of its own.
+     */
+    private void register(){
+        Context caller = Vertx.currentContext();
+        if(caller == null){
+            listen();
+        }else{
+            NickelContext.forVertx(caller.owner()).runOnContext(v->listen());
+        }
+    }
+
+    /** Register the consumer, then publish the requests waiting for it.
+     */
+    private void listen(){
+        MessageConsumer<Object> registered = eb.consumer(address, this::dispatch);
+        synchronized (dispatchers){
+            consumer = registered;
+        }
+
+        while (true){
+            List<Runnable> waiting;
+            synchronized (dispatchers){
+                if(queued.isEmpty()){
+                    listening = true;
+                    break;
+                }
+                waiting = queued;
+                queued = new ArrayList<>();
+            }
+            waiting.forEach(Runnable::run);
+        }
+
+        //Every request may have been resolved locally before the consumer was registered
+        releaseIfIdle();
+    }
+
+    /** Number of requests currently awaiting a reply on a given address.
+     *
+     * @param eb the event bus the requests were sent on
+     * @param address the address of the requests
+     * @return the number of pending requests
+     */
+    public static int pending(EventBus eb, String address){
+        synchronized (dispatchers){
+            Map<String, NickelReplyDispatcher> byAddress = dispatchers.get(eb.getDelegate());
+            if(byAddress == null || byAddress.get(address) == null){
+                return 0;
+            }
+            NickelReplyDispatcher dispatcher = byAddress.get(address);
+            return dispatcher.pending.size() + dispatcher.envelopes.size();
+        }
+    }
+
+    /** Fail a pending request without waiting for its reply nickel.
+     *
+     * @param eb the event bus the request was sent on
+     * @param address the address of the request
+     * @param nickel the request nickel
+     * @param cause the reason the request failed
+     * @return true if the request was pending
+     */
+    public static boolean fail(EventBus eb, String address, Nickel nickel, Throwable cause){
+        return resolve(eb, address, nickel, request->request.fail(cause));
+    }
+
+    /** Complete a pending request locally, without waiting for its reply nickel.
+     *
+     * @param eb the event bus the request was sent on
+     * @param address the address of the request
+     * @param nickel the request nickel
+     * @param reply the nickel to complete the request with, ex: a TIMEOUT nickel
+     * @return true if the request was pending
+     */
+    public static boolean complete(EventBus eb, String address, Nickel nickel, Nickel reply){
+        return resolve(eb, address, nickel, request->request.complete(reply));
+    }
+
+    private static boolean resolve(EventBus eb, String address, Nickel nickel, Consumer<Request<Nickel>> resolution){
+        NickelReplyDispatcher dispatcher;
+        synchronized (dispatchers){
+            Map<String, NickelReplyDispatcher> byAddress = dispatchers.get(eb.getDelegate());
+            dispatcher = byAddress == null? null: byAddress.get(address);
+        }
+        if(dispatcher == null){
+            return false;
+        }
+
+        Request<Nickel> request = dispatcher.pending.remove(nickel.correlationId().toString());
+        if(request == null){
+            return false;
+        }
+
+        resolution.accept(request);
+        dispatcher.releaseIfIdle();
+        return true;
+    }
+
+    private void dispatch(Message<Object> msg){
+        String type = msg.headers().get("type");
+
+        //Reply envelopes, requests envelopes on the same address are ignored
+        if(NickelEnvelope.REPLY_TYPE.equals(type)){
+            String correlationId = msg.headers().get("correlationId");
+            Request<NickelEnvelope> request = correlationId == null? null: envelopes.remove(correlationId);
+            if(request != null && msg.body() instanceof NickelEnvelope){
+                request.complete((NickelEnvelope)msg.body());
+                releaseIfIdle();
+            }
+            return;
+        }
+
+        //Acknowledgements for streamed requests, the request remains pending
+        if(NickelType.STREAM_ACK.name().equals(type)){
+            String correlationId = msg.headers().get("correlationId");
+            Request<Nickel> request = correlationId == null? null: pending.get(correlationId);
+            if(request != null && request.ackHandler != null){
+                request.ack((Nickel)msg.body());
+            }
+            return;
+        }
+
+        //Only reply nickels are of interest, requests on the same address are ignored.
+        if(!(NickelType.RESPONSE.name().equals(type) ||
+                NickelType.ERROR.name().equals(type) ||
+                NickelType.TIMEOUT.name().equals(type))){
+            return;
+        }
+
+        String correlationId = msg.headers().get("correlationId");
+        Request<Nickel> request = correlationId == null? null: pending.remove(correlationId);
+        if(request == null){
+            return;
+        }
+
+        log.info("Got response from: {}", address);
+
+        if(NickelType.ERROR.name().equals(type)){
+            request.fail(new ErrorNickel((Nickel)msg.body()));
+        }else{
+            request.complete((Nickel)msg.body());
+        }
+
+        releaseIfIdle();
+    }
+
+    /** Unregister the consumer and forget this dispatcher if no requests are pending.
+     */
+    private void releaseIfIdle(){
+        if(!pending.isEmpty() || !envelopes.isEmpty()){
+            return;
+        }
+        synchronized (dispatchers){
+            //Released once the consumer is registered, if it is still idle by then
+            if(!pending.isEmpty() || !envelopes.isEmpty() || consumer == null){
+                return;
+            }
+
+            consumer.unregister();
+            consumer = null;
+
+            Map<String, NickelReplyDispatcher> byAddress = dispatchers.get(eb.getDelegate());
+            if(byAddress != null){
+                byAddress.remove(address, this);
+                if(byAddress.isEmpty()){
+                    dispatchers.remove(eb.getDelegate());
+                }
+            }
+        }
+    }
+
+    /** A request awaiting a reply, resolved on the context it was sent from.
+     */
+    private static class Request<T> {
+        private final Promise<T> promise = Promise.promise();
+        private final Context context = Vertx.currentContext();
+        private final Handler<Nickel> ackHandler;
+
+        private Request(Handler<Nickel> ackHandler){
+            this.ackHandler = ackHandler;
+        }
+
+        private void complete(T result){
+            onContext(()->promise.tryComplete(result));
+        }
+
+        private void fail(Throwable cause){
+            onContext(()->promise.tryFail(cause));
+        }
+
+        private void ack(Nickel ack){
+            onContext(()->ackHandler.handle(ack));
+        }
+
+        private void onContext(Runnable action){
+            if(context == null || context == Vertx.currentContext()){
+                action.run();
+            }else{
+                context.runOnContext(v->action.run());
+            }
+        }
+    }
+}
@@ -1,7 +1,14 @@
 package ca.oceansdata.dime.common.nickel;
 
+import ca.oceansdata.dime.common.exceptions.OverloadException;
+import ca.oceansdata.dime.common.nickel.metrics.NickelMetrics;
+import ca.oceansdata.dime.common.nickel.stream.NickelChunkStream;
+import ca.oceansdata.dime.common.nickel.stream.NickelStreams;
 import io.vertx.core.Handler;
 import io.vertx.core.json.JsonObject;
+import io.vertx.reactivex.core.CompositeFuture;
+import io.vertx.reactivex.core.Future;
+import io.vertx.reactivex.core.Promise;
 import io.vertx.reactivex.core.eventbus.EventBus;
 import io.vertx.reactivex.core.eventbus.Message;
 import io.vertx.reactivex.core.eventbus.MessageConsumer;
@@ -9,8 +16,13 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 /** A Nickel router allows for easy processing of nickels sent on the
  *  event bus.
@@ -56,136 +68,497 @@ import java.util.Map;
  *
  *  If a type function/handler is invoked, the global function/handler will not
  *  be invoked.
+ *
+ *  Precedence is resolved when functions and handlers are registered, into dispatch
+ *  tables indexed by nickel type, so routing a nickel costs a single array read.
+ *  Once set up, a router can be frozen with {@link #freeze()} to reject any further
+ *  registrations.
+ *
+ *  Streamed nickels, see {@link Nickel#sendStream(EventBus, String, Nickel, io.vertx.core.streams.ReadStream)},
+ *  are only processed by <b>stream functions</b> registered for their type. Stream functions are invoked
+ *  when the first chunk of a streamed nickel arrives, and consume its payload as a read stream. The nickel
+ *  they produce is published onto the eventbus like that of a function. Neither the chunks of a streamed
+ *  nickel nor their acknowledgements are ever passed to functions or handlers.
+ *
+ *  Nickels received in an envelope, see {@link NickelEnvelope}, are routed one by one unless a
+ *  <b>batch function</b> is registered, and the results of their functions are published back
+ *  as a single reply envelope.
  */
 public class NickelRouter implements Handler<Message> {
     private static final Logger log = LoggerFactory.getLogger(NickelRouter.class);
 
+    /** @deprecated not thread safe and shared by every router, use {@link #metrics()} instead.
+     */
+    @Deprecated
     public static int NICKLES_SWALLOWED = 0;
 
+    //Vertx instance, needed for functions and handlers that don't run on the event loop. May be null.
+    private io.vertx.core.Vertx vertx;
     //Event Bus to bind handler to
-    private EventBus eb;
+    private final EventBus eb;
     //Address on the event bus to bind handler to
-    private String address;
+    private final String address;
 
     //Event bus message consumer for this router
     private MessageConsumer consumer;
+    //Number of limiters that want the consumer paused, guarded by this
+    private int pausers = 0;
+
+    private static final NickelType [] TYPES = NickelType.values();
 
     private NickelHandler globalHandler; //Global handler
-    private Map<NickelType, NickelHandler > actionMap = new HashMap<>(); //Type handlers
+    private NickelHandler [] typeHandlers = new NickelHandler[TYPES.length]; //Type handlers, by type ordinal
 
     private NickelFunction globalFunction; //Global function
-    private Map<NickelType, NickelFunction> functionMap = new HashMap<>(); //Nickel functions
+    private NickelFunction [] typeFunctions = new NickelFunction[TYPES.length]; //Type functions, by type ordinal
+
+    //Executors of the registrations above, null for registrations running directly on the event loop
+    private NickelExecutor globalHandlerExecutor;
+    private NickelExecutor [] typeHandlerExecutors = new NickelExecutor[TYPES.length];
+    private NickelExecutor globalFunctionExecutor;
+    private NickelExecutor [] typeFunctionExecutors = new NickelExecutor[TYPES.length];
+
+    //Dispatch tables by type ordinal, with type/global precedence resolved. Rebuilt on every registration.
+    private NickelFunction [] functions = new NickelFunction[TYPES.length];
+    private NickelExecutor [] functionExecutors = new NickelExecutor[TYPES.length];
+    private NickelHandler [] handlers = new NickelHandler[TYPES.length];
+    private NickelExecutor [] handlerExecutors = new NickelExecutor[TYPES.length];
+    private NickelStreamFunction [] streamFunctions = new NickelStreamFunction[TYPES.length]; //Stream functions
+
+    private NickelLimiter globalLimiter; //Limit on functions in flight, across types
+    private NickelLimiter [] typeLimiters = new NickelLimiter[TYPES.length]; //Limits on functions in flight, by type ordinal
+    private NickelPriority priorities; //Priority lanes of nickels waiting for a limit, null if all nickels are equal
+    private NickelCache cache; //Cached responses of functions, null if disabled
+    private NickelBatchFunction batchFunction; //Processes whole envelopes, null to route their nickels one by one
+
+    private boolean frozen = false; //Reject registrations once set up
+
+    private NickelAccessLog accessLog = NickelAccessLog.shared(); //Access log for routed nickels
+    private final NickelMetrics addressMetrics; //Metrics of the address, released once the router is destroyed
+    private NickelMetrics metrics; //Metrics recorded into, null if disabled
+    private Map<String, NickelChunkStream> streams = new HashMap<>(); //Streams being received, by correlation id
+
+    private boolean peek = false; //Route on message headers before touching the nickel
+
+    private volatile boolean destroyed = false; //Set by destroy(), nickels received afterwards are dropped
+    private final AtomicInteger inFlight = new AtomicInteger(); //Functions and off the event loop handlers not done yet
+    private final AtomicBoolean tornDown = new AtomicBoolean(); //Set once executors are closed, after destroy()
 
     public NickelRouter (EventBus eb, String address){
+        this(eb, address, address);
+    }
+
+    /** Create a router whose functions and handlers may run off the event loop,
+     *  see {@link NickelExecution}.
+     *
+     * @param vertx the vertx instance
+     * @param address the address to route nickels on
+     */
+    public NickelRouter (io.vertx.reactivex.core.Vertx vertx, String address){
+        this(vertx, address, address);
+    }
+
+    /** Create a router consuming nickels on a different address than the one it publishes
+     *  results to, see {@link NickelRouterFactory}.
+     *
+     * @param vertx the vertx instance
+     * @param address the address results are published to
+     * @param consumeAddress the address nickels are consumed from
+     */
+    NickelRouter (io.vertx.reactivex.core.Vertx vertx, String address, String consumeAddress){
+        this(vertx.eventBus(), address, consumeAddress);
+        this.vertx = vertx.getDelegate();
+    }
+
+    private NickelRouter (EventBus eb, String address, String consumeAddress){
         //Bind to the eventbus on the given address
         this.eb = eb;
         this.address = address;
-        consumer = eb.consumer(address, this::handle);
-
+        this.addressMetrics = NickelMetrics.acquire(address);
+        this.metrics = addressMetrics;
+        if(consumeAddress.equals(address)){
+            consumer = eb.consumer(address, this::handle);
+        }else{
+            //The ingress of a NickelRouterFactory forwards the messages it receives as they are
+            consumer = eb.<io.vertx.core.eventbus.Message>localConsumer(consumeAddress,
+                    forwarded->handle(Message.newInstance(forwarded.body())));
+        }
     }
 
     public NickelRouter function(NickelFunction function){
+        return function(function, NickelExecution.eventLoop());
+    }
+
+    public NickelRouter function(NickelFunction function, NickelExecution execution){
+        if(rejectFrozen("global function")){
+            return this;
+        }
+
         this.globalFunction = function;
+        this.globalFunctionExecutor = replace(globalFunctionExecutor, executor(execution));
+        rebuild();
         return this;
     }
 
-    public NickelRouter typeFunction(NickelType type, NickelFunction function)
+    public NickelRouter typeFunction(NickelType type, NickelFunction function){
+        return typeFunction(type, function, NickelExecution.eventLoop());
+    }
+
+    public NickelRouter typeFunction(NickelType type, NickelFunction function, NickelExecution execution)
     {
+        if(rejectFrozen(type.name() + " function")){
+            return this;
+        }
+
         //Prevent infinite function loops
         if(type.equals(NickelType.ERROR) || type.equals(NickelType.RESPONSE)){
             log.error("Function cannot be applied to {} nickels!", type.name());
             return this;
         }
 
-        functionMap.put(type, function);
+        typeFunctions[type.ordinal()] = function;
+        typeFunctionExecutors[type.ordinal()] = replace(typeFunctionExecutors[type.ordinal()], executor(execution));
+        rebuild();
         return this;
     }
 
     public NickelRouter handler(NickelHandler handler){
+        return handler(handler, NickelExecution.eventLoop());
+    }
+
+    public NickelRouter handler(NickelHandler handler, NickelExecution execution){
+        if(rejectFrozen("global handler")){
+            return this;
+        }
+
         this.globalHandler = handler;
+        this.globalHandlerExecutor = replace(globalHandlerExecutor, executor(execution));
+        rebuild();
         return this;
     }
 
     public NickelRouter typeHandler(NickelType type, NickelHandler handler){
-        actionMap.put(type, handler);
+        return typeHandler(type, handler, NickelExecution.eventLoop());
+    }
+
+    public NickelRouter typeHandler(NickelType type, NickelHandler handler, NickelExecution execution){
+        if(rejectFrozen(type.name() + " handler")){
+            return this;
+        }
+
+        typeHandlers[type.ordinal()] = handler;
+        typeHandlerExecutors[type.ordinal()] = replace(typeHandlerExecutors[type.ordinal()], executor(execution));
+        rebuild();
         return this;
     }
 
-    public void handle(Message event) {
-        try{
-            //Extract the nickel from the event bus message
-            if(event.body() instanceof JsonObject) log.info("Received this JsonObject instead of nickel: {}",((JsonObject)event.body()).encodePrettily());
-            if(event.body() instanceof String) log.info("Received this String instead of nickel: {}",(String)event.body());
-            Nickel nickel = (Nickel)event.body();
+    /** Limit how many nickels this router's functions process at once, across all types.
+     *  Applies on top of the limits of each type, see {@link NickelLimiter}.
+     *
+     * @param maxInFlight the maximum number of nickels being processed by functions
+     * @param maxQueued the maximum number of nickels waiting to be processed
+     * @param overflow what to do with nickels once the limit is reached
+     * @return this router
+     */
+    public NickelRouter limit(int maxInFlight, int maxQueued, NickelLimiter.Overflow overflow){
+        if(rejectFrozen("global limit")){
+            return this;
+        }
 
-            //Log handled nickels
-            log.info("[Nickel Router] [{}] [{}] [{}] [{}] [{}]",
-                    nickel.type().name(),
-                    address,
-                    nickel.correlationId().toString(),
-                    nickel.orcid(),
-                    nickel.origin().name()
-            );
+        this.globalLimiter = limiter(maxInFlight, maxQueued, overflow);
+        return this;
+    }
+
+    /** Limit how many nickels of a type this router's functions process at once, see {@link NickelLimiter}.
+     *
+     * @param type the nickel type
+     * @param maxInFlight the maximum number of nickels of the type being processed by functions
+     * @param maxQueued the maximum number of nickels of the type waiting to be processed
+     * @param overflow what to do with nickels once the limit is reached
+     * @return this router
+     */
+    public NickelRouter typeLimit(NickelType type, int maxInFlight, int maxQueued, NickelLimiter.Overflow overflow){
+        if(rejectFrozen(type.name() + " limit")){
+            return this;
+        }
+
+        typeLimiters[type.ordinal()] = limiter(maxInFlight, maxQueued, overflow);
+        return this;
+    }
+
+    private NickelLimiter limiter(int maxInFlight, int maxQueued, NickelLimiter.Overflow overflow){
+        NickelLimiter limiter = new NickelLimiter(maxInFlight, maxQueued, overflow, this::pauseConsumer, this::resumeConsumer);
+        if(priorities != null){
+            limiter.priorities(priorities);
+        }
+        return limiter;
+    }
+
+    /** Pause the consumer for a limiter whose queue is full. Several limiters may want it paused at once.
+     */
+    private synchronized void pauseConsumer(){
+        if(pausers++ == 0 && consumer != null){
+            consumer.pause();
+        }
+    }
+
+    /** Resume the consumer for a limiter whose queue has drained, once no other limiter wants it paused.
+     */
+    private synchronized void resumeConsumer(){
+        if(--pausers == 0 && consumer != null){
+            consumer.resume();
+        }
+    }
+
+    /** Queue nickels waiting for this router's limits by priority lane, so that nickels in higher
+     *  lanes are processed first once functions are saturated. See {@link NickelPriority}.
+     *
+     *  Priorities only matter for functions with a limit, see {@link #limit(int, int, NickelLimiter.Overflow)}.
+     *
+     * @param priorities the priority configuration
+     * @return this router
+     */
+    public NickelRouter priorities(NickelPriority priorities){
+        if(rejectFrozen("priorities")){
+            return this;
+        }
+
+        this.priorities = priorities;
+        if(globalLimiter != null) globalLimiter.priorities(priorities);
+        for(NickelLimiter limiter: typeLimiters){
+            if(limiter != null) limiter.priorities(priorities);
+        }
+        return this;
+    }
+
+    /** Answer nickels from a cache of the responses produced by this router's functions,
+     *  for the types of nickels the cache is set up for. See {@link NickelCache}.
+     *
+     *  Only use a cache with functions that always produce the same response to the same nickel
+     *  until the data they read is modified by a nickel of an invalidating type. A cache may be
+     *  shared by several routers.
+     *
+     * @param cache the cache, or null to disable caching
+     * @return this router
+     */
+    public NickelRouter cache(NickelCache cache){
+        if(rejectFrozen("cache")){
+            return this;
+        }
+
+        this.cache = cache;
+        return this;
+    }
+
+    /** Create the executor for a registration.
+     *
+     * @param execution the execution of the registration
+     * @return the executor, or null if the registration runs directly on the event loop
+     */
+    private NickelExecutor executor(NickelExecution execution){
+        if(execution.mode() == NickelExecution.Mode.EVENT_LOOP && execution.ordering() == NickelExecution.Ordering.NONE){
+            return null;
+        }
+        if(vertx == null){
+            log.error("{} execution requires a router created with a Vertx instance! Running on the event loop for {}.",
+                    execution.mode().name(), address);
+            return null;
+        }
+        return new NickelExecutor(vertx, execution);
+    }
+
+    private static NickelExecutor replace(NickelExecutor previous, NickelExecutor executor){
+        if(previous != null){
+            previous.close();
+        }
+        return executor;
+    }
+
+    /** Register a batch function, processing every nickel of the envelopes received by this router
+     *  at once. Without a batch function, the nickels of an envelope are routed one by one like any
+     *  other nickel. See {@link NickelEnvelope}.
+     *
+     * @param function the batch function
+     * @return this router
+     */
+    public NickelRouter batchFunction(NickelBatchFunction function){
+        if(rejectFrozen("batch function")){
+            return this;
+        }
+
+        this.batchFunction = function;
+        return this;
+    }
+
+    /** Register a stream function for streamed nickels of a given type.
+     *
+     * @param type the type of the streamed nickels
+     * @param function the stream function
+     * @return this router
+     */
+    public NickelRouter streamFunction(NickelType type, NickelStreamFunction function){
+        if(rejectFrozen(type.name() + " stream function")){
+            return this;
+        }
+
+        //Prevent infinite function loops
+        if(type.equals(NickelType.ERROR) || type.equals(NickelType.RESPONSE)){
+            log.error("Stream function cannot be applied to {} nickels!", type.name());
+            return this;
+        }
+
+        streamFunctions[type.ordinal()] = function;
+        return this;
+    }
+
+    /** Reject any further function or handler registrations on this router.
+     *  Registrations attempted afterwards are logged as errors and ignored.
+     *
+     * @return this router
+     */
+    public NickelRouter freeze(){
+        this.frozen = true;
+        return this;
+    }
+
+    /** Log an error if a registration is attempted on a frozen router.
+     *
+     * @param registration description of the registration
+     * @return true if the router is frozen
+     */
+    private boolean rejectFrozen(String registration){
+        if(frozen){
+            log.error("Cannot register {} on frozen router for {}!", registration, address);
+        }
+        return frozen;
+    }
+
+    /** Rebuild the dispatch tables, resolving for each nickel type whether
+     *  the type or global function/handler applies.
+     */
+    private void rebuild(){
+        NickelFunction [] functions = new NickelFunction[TYPES.length];
+        NickelExecutor [] functionExecutors = new NickelExecutor[TYPES.length];
+        NickelHandler [] handlers = new NickelHandler[TYPES.length];
+        NickelExecutor [] handlerExecutors = new NickelExecutor[TYPES.length];
+        for(NickelType type: TYPES){
+            int i = type.ordinal();
+            //Functions never apply to RESPONSE or ERROR nickels
+            if(!(type.equals(NickelType.RESPONSE) || type.equals(NickelType.ERROR))){
+                functions[i] = typeFunctions[i] != null? typeFunctions[i]: globalFunction;
+                functionExecutors[i] = typeFunctions[i] != null? typeFunctionExecutors[i]: globalFunctionExecutor;
+            }
+            handlers[i] = typeHandlers[i] != null? typeHandlers[i]: globalHandler;
+            handlerExecutors[i] = typeHandlers[i] != null? typeHandlerExecutors[i]: globalHandlerExecutor;
+        }
+        this.functions = functions;
+        this.functionExecutors = functionExecutors;
+        this.handlers = handlers;
+        this.handlerExecutors = handlerExecutors;
+    }
+
+    /** Set the access log routed nickels are recorded in, see {@link NickelAccessLog}.
+     *
+     * @param accessLog the access log, or null to not log routed nickels
+     * @return this router
+     */
+    public NickelRouter accessLog(NickelAccessLog accessLog){
+        this.accessLog = accessLog;
+        return this;
+    }
+
+    /** Enable or disable recording metrics for routed nickels. Metrics are recorded by default.
+     *
+     * @param enabled whether to record metrics
+     * @return this router
+     */
+    public NickelRouter metrics(boolean enabled){
+        this.metrics = enabled? addressMetrics: null;
+        return this;
+    }
+
+    /** Get the metrics of this router's address, see {@link NickelMetrics}.
+     *
+     * @return the metrics of the address, shared by every router on the address
+     */
+    public NickelMetrics metrics(){
+        return addressMetrics;
+    }
 
-            //Prevent functions from being applied on either RESPONSE or ERROR nickels
-            if(!(nickel.type().equals(NickelType.RESPONSE) ||
-                    nickel.type().equals(NickelType.ERROR)))
-            {
-                /* Get the nickel function for this type of nickel.
-                 * If no type function exists, use the global function if one exists.
-                 */
-                NickelFunction function =
-                        functionMap.get(nickel.type()) != null?
-                                functionMap.get(nickel.type()):
-                                globalFunction;
-
-                /* If an appropriate function has been found, apply it to the incoming nickel,
-                 * then publish its result on the eventbus.
-                 */
-                if(function != null){
-                    function.apply(nickel, Nickel.nickelForA(nickel)).onSuccess(
-                            nickelback->Nickel.publish(eb, address, nickelback)
-                    ).onFailure(
-                            err->{
-                                log.error("[Nickel Router] [{}] [{}] [{}] [{}] {}",
-                                        nickel.type().name(),
-                                        address,
-                                        nickel.correlationId().toString(),
-                                        nickel.orcid(),
-                                        err.getMessage());
-                                err.printStackTrace();
-                                Nickel.publish(eb, address,
-                                        Nickel.badNickel(nickel).pack(
-                                                new JsonObject()
-                                                        .put("error", err.getMessage())
-                                        ));
-                            }
-                    );
+    /** Decide whether incoming nickels will be swallowed before the nickel itself is touched,
+     *  using the 'type' header {@link Nickel#publish(EventBus, String, Nickel)} puts on every
+     *  event bus message.
+     *
+     *  Messages received over a clustered event bus are only decoded when their body is first
+     *  accessed, so with peeking enabled nickels that have no function or handler in this router
+     *  are never decoded. Messages without a valid 'type' header are decoded and routed as usual.
+     *
+     * @param peek true to route on message headers first
+     * @return this router
+     */
+    public NickelRouter peek(boolean peek){
+        this.peek = peek;
+        return this;
+    }
+
+    public void handle(Message event) {
+        if(destroyed){
+            log.debug("Dropping message received on {} after the router was destroyed", address);
+            return;
+        }
+
+        try{
+            if(peek){
+                NickelType type = peekType(event);
+                if(type == NickelType.STREAM_ACK){
+                    //Acknowledgements are for the sender of the stream
+                    return;
+                }
+                if(type != null && type != NickelType.STREAM_CHUNK && resolveFunction(type) == null && resolveHandler(type) == null){
+                    // Nothing would process this nickel, swallow it without decoding it
+                    if(metrics != null) metrics.received(type);
+                    swallow(type);
                     return;
                 }
             }
 
+            //Extract the nickel from the event bus message
+            Object body = event.body();
+            if(body instanceof NickelEnvelope){
+                handleEnvelope((NickelEnvelope)body);
+                return;
+            }
+            if(!(body instanceof Nickel)){
+                log.error("Received {} instead of nickel on {}! Returning!", body == null? null: body.getClass().getSimpleName(), address);
+                if(log.isDebugEnabled()) log.debug("Received this instead of nickel: {}", body);
+                return;
+            }
+            Nickel nickel = (Nickel)body;
 
-            /* At this stage, no functions were to be executed on the nickel
-             * attempt to handle the nickel by finding an appropriate action.
-             */
+            //Acknowledgements are for the sender of the stream
+            if(nickel.type().equals(NickelType.STREAM_ACK)){
+                return;
+            }
 
-            /* Get the handler for this type of nickel.
-             * If no type handler exists, use the global handler if one exists.
-             */
-            NickelHandler handler =
-                    actionMap.get(nickel.type()) != null?
-                            actionMap.get(nickel.type()):
-                            globalHandler;
+            //Log handled nickels
+            if(accessLog != null){
+                accessLog.record(nickel, address);
+            }
+            if(metrics != null){
+                metrics.received(nickel.type());
+            }
 
-            // If an appropriate handler has been found, pass it the incoming nickel.
-            if(handler != null){
-                handler.handle(nickel);
+            if(nickel.type().equals(NickelType.STREAM_CHUNK)){
+                handleChunk(nickel);
                 return;
             }
 
-            // No function or handler for this nickel, increment swallow counter to aide debugging
-            NICKLES_SWALLOWED++;
+            long start = System.nanoTime();
+            Future<Nickel> result = route(nickel);
+            if(result != null){
+                //Publish the result of the function on the eventbus
+                reply(nickel, start, result);
+            }
             return;
 
         }catch (ClassCastException castException){
@@ -194,23 +567,429 @@ public class NickelRouter implements Handler<Message> {
         }
     }
 
+    /** Pass a nickel to the function or handler that applies to it.
+     *
+     * @param nickel the nickel, neither a STREAM_CHUNK nor a STREAM_ACK
+     * @return the result of the function, or null if the nickel was handled or swallowed
+     */
+    private Future<Nickel> route(Nickel nickel){
+        //Drop cached responses this nickel may make stale
+        NickelCache cache = this.cache;
+        if(cache != null){
+            cache.passed(nickel);
+        }
+
+        /* Get the nickel function for this type of nickel.
+         * If no type function exists, use the global function if one exists.
+         * The dispatch table never has functions for RESPONSE or ERROR nickels.
+         */
+        NickelFunction function = resolveFunction(nickel.type());
+
+        // If an appropriate function has been found, apply it to the incoming nickel.
+        if(function != null){
+            if(cache != null && cache.caches(nickel.type())){
+                String key = NickelCache.key(nickel);
+                //Taken before the function runs, so a response made stale while it runs is not cached
+                long generation = cache.generation();
+                Nickel cached = cache.get(key, nickel);
+                if(cached != null){
+                    return Future.succeededFuture(cached);
+                }
+                Future<Nickel> result = apply(nickel, function);
+                result.onSuccess(response->cache.put(key, response, generation));
+                return result;
+            }
+
+            return apply(nickel, function);
+        }
+
+
+        /* At this stage, no functions were to be executed on the nickel
+         * attempt to handle the nickel by finding an appropriate action.
+         */
+
+        /* Get the handler for this type of nickel.
+         * If no type handler exists, use the global handler if one exists.
+         */
+        NickelHandler handler = resolveHandler(nickel.type());
+
+        // If an appropriate handler has been found, pass it the incoming nickel.
+        if(handler != null){
+            NickelExecutor executor = handlerExecutors[nickel.type().ordinal()];
+            if(executor == null){
+                handle(handler, nickel);
+                return null;
+            }
+
+            inFlight.incrementAndGet();
+            boolean accepted = executor.submit(nickel, ()->{
+                try{
+                    handle(handler, nickel);
+                }finally {
+                    finished();
+                }
+                return null;
+            });
+            if(!accepted){
+                finished();
+                log.error("[Nickel Router] [{}] [{}] [{}] Too many pending nickels, dropping nickel!",
+                        nickel.type().name(),
+                        address,
+                        nickel.correlationId().toString());
+                if(metrics != null) metrics.failed(nickel.type());
+            }
+            return null;
+        }
+
+        // No function or handler for this nickel, increment swallow counter to aide debugging
+        swallow(nickel.type());
+        return null;
+    }
+
+    /** Process the nickels of an envelope, and publish their responses as a single reply envelope.
+     *
+     * @param envelope the envelope
+     */
+    private void handleEnvelope(NickelEnvelope envelope){
+        //Replies are for the sender of the envelope
+        if(envelope.isReply()){
+            return;
+        }
+
+        List<Nickel> nickels = new ArrayList<>(envelope.nickels().size());
+        for(Nickel nickel: envelope.nickels()){
+            //Streams are never enveloped
+            if(nickel.type() == NickelType.STREAM_CHUNK || nickel.type() == NickelType.STREAM_ACK){
+                continue;
+            }
+            if(accessLog != null) accessLog.record(nickel, address);
+            if(metrics != null) metrics.received(nickel.type());
+            nickels.add(nickel);
+        }
+
+        Future<List<Nickel>> responses;
+        NickelBatchFunction batchFunction = this.batchFunction;
+        if(batchFunction != null){
+            try{
+                responses = batchFunction.apply(nickels);
+            }catch (RuntimeException e){
+                responses = Future.failedFuture(e);
+            }
+            //A failed batch function fails every nickel of the envelope
+            Promise<List<Nickel>> recovered = Promise.promise();
+            responses.onSuccess(recovered::complete).onFailure(err->{
+                List<Nickel> errors = new ArrayList<>(nickels.size());
+                for(Nickel nickel: nickels){
+                    if(metrics != null) metrics.failed(nickel.type());
+                    errors.add(errorNickel(nickel, err));
+                }
+                recovered.complete(errors);
+            });
+            responses = recovered.future();
+        }else{
+            List<Future> results = new ArrayList<>();
+            for(Nickel nickel: nickels){
+                long start = System.nanoTime();
+                Future<Nickel> result = route(nickel);
+                if(result == null){
+                    continue;
+                }
+                record(nickel, start, result);
+
+                //Answer failed nickels with an error nickel in the reply envelope
+                Promise<Nickel> recovered = Promise.promise();
+                result.onSuccess(recovered::complete).onFailure(err->recovered.complete(errorNickel(nickel, err)));
+                results.add(recovered.future());
+            }
+            responses = CompositeFuture.all(results).map(all->{
+                List<Nickel> list = new ArrayList<>(all.size());
+                for(int i = 0; i < all.size(); i++){
+                    list.add(all.resultAt(i));
+                }
+                return list;
+            });
+        }
+
+        track(responses);
+        responses.onSuccess(list->Nickel.publish(eb, address, NickelEnvelope.replyTo(envelope, list)));
+    }
+
+    /** Pass a nickel to a handler, recording metrics.
+     *
+     * @param handler the handler
+     * @param nickel the nickel
+     */
+    private void handle(NickelHandler handler, Nickel nickel){
+        long start = System.nanoTime();
+        try{
+            handler.handle(nickel);
+        }catch (RuntimeException e){
+            if(metrics != null) metrics.failed(nickel.type());
+            throw e;
+        }finally {
+            if(metrics != null) metrics.latency(nickel.type(), System.nanoTime() - start);
+        }
+    }
+
+    /** Pass a chunk of a streamed nickel to its stream, invoking the stream function
+     *  for the streamed nickel if this is its first chunk.
+     *
+     * @param chunk the chunk
+     */
+    private void handleChunk(Nickel chunk){
+        String correlationId = chunk.correlationId().toString();
+        NickelChunkStream stream = streams.get(correlationId);
+
+        if(stream == null){
+            //Only the first chunk of a stream carries the type of the streamed nickel
+            NickelType type = NickelStreams.streamType(chunk);
+            NickelStreamFunction function = type == null? null: streamFunctions[type.ordinal()];
+            if(function == null){
+                swallow(chunk.type());
+                return;
+            }
+
+            Nickel head = NickelStreams.head(chunk);
+            NickelChunkStream newStream = new NickelChunkStream(eb, address, head, NickelStreams.window(chunk));
+            streams.put(correlationId, newStream);
+            stream = newStream;
+
+            long start = System.nanoTime();
+            Future<Nickel> result = function.apply(head, newStream, Nickel.nickelForA(head));
+            //Stop receiving the stream once the function is done with it
+            result.onComplete(done->streams.remove(correlationId, newStream));
+            reply(head, start, result);
+        }
+
+        if(stream.push(chunk)){
+            streams.remove(correlationId, stream);
+        }
+    }
+
+    /** Publish the nickel produced by a function, or an error nickel if the function failed.
+     *
+     * @param nickel the nickel the function was applied to
+     * @param start the time the function was applied, from {@link System#nanoTime()}
+     * @param result the result of the function
+     */
+    private void reply(Nickel nickel, long start, Future<Nickel> result){
+        track(result);
+        record(nickel, start, result);
+
+        result.onSuccess(
+                nickelback->Nickel.publish(eb, address, nickelback)
+        ).onFailure(
+                err->Nickel.publish(eb, address, errorNickel(nickel, err))
+        );
+    }
+
+    /** Count a function as in flight until its result completes, so the router is not torn down under it.
+     *
+     * @param result the result of the function
+     */
+    private void track(Future<?> result){
+        inFlight.incrementAndGet();
+        result.onComplete(done->finished());
+    }
+
+    /** Count a function or handler as done, tearing the router down if it was the last one after destroy().
+     */
+    private void finished(){
+        if(inFlight.decrementAndGet() == 0 && destroyed){
+            tearDown();
+        }
+    }
+
+    /** Record the latency and failure of a function in the metrics.
+     *
+     * @param nickel the nickel the function was applied to
+     * @param start the time the function was applied, from {@link System#nanoTime()}
+     * @param result the result of the function
+     */
+    private void record(Nickel nickel, long start, Future<Nickel> result){
+        NickelMetrics metrics = this.metrics;
+        if(metrics != null){
+            result.onComplete(done->{
+                metrics.latency(nickel.type(), System.nanoTime() - start);
+                if(done.failed()) metrics.failed(nickel.type());
+            });
+        }
+    }
+
+    /** Log a failed function and produce the error nickel answering its nickel.
+     *
+     * @param nickel the nickel the function was applied to
+     * @param err the reason the function failed
+     * @return the error nickel
+     */
+    private Nickel errorNickel(Nickel nickel, Throwable err){
+        log.error("[Nickel Router] [{}] [{}] [{}] [{}] {}",
+                nickel.type().name(),
+                address,
+                nickel.correlationId().toString(),
+                nickel.orcid(),
+                err.getMessage());
+        Nickel badNickel = Nickel.badNickel(nickel);
+        if(err instanceof OverloadException){
+            badNickel.setStatusCode(503);
+        }else{
+            err.printStackTrace();
+        }
+        return badNickel.pack(
+                new JsonObject()
+                        .put("error", err.getMessage())
+        );
+    }
+
+    /** Apply a function to a nickel, within the limits and on the executor of the function's registration.
+     *
+     * @param nickel the nickel
+     * @param function the function
+     * @return the result of the function, failed with an {@link OverloadException} if the nickel was rejected
+     */
+    private Future<Nickel> apply(Nickel nickel, NickelFunction function){
+        int type = nickel.type().ordinal();
+        NickelExecutor executor = functionExecutors[type];
+        NickelLimiter typeLimiter = typeLimiters[type];
+        NickelLimiter globalLimiter = this.globalLimiter;
+
+        //Nothing between the router and the function
+        if(executor == null && typeLimiter == null && globalLimiter == null){
+            return function.apply(nickel, Nickel.nickelForA(nickel));
+        }
+
+        Promise<Nickel> result = Promise.promise();
+        Supplier<Future<?>> task = ()->{
+            Future<Nickel> applied;
+            try{
+                applied = function.apply(nickel, Nickel.nickelForA(nickel));
+            }catch (RuntimeException e){
+                applied = Future.failedFuture(e);
+            }
+            applied.onSuccess(result::tryComplete).onFailure(result::tryFail);
+            return applied;
+        };
+
+        //Wrap the function in its executor, then the global limit, then the type limit
+        if(executor != null){
+            Supplier<Future<?>> run = task;
+            task = ()->{
+                if(!executor.submit(nickel, run)) result.tryFail(new OverloadException(nickel, address));
+                return result.future();
+            };
+        }
+        NickelPriority.Lane lane = priorities == null? NickelPriority.Lane.NORMAL: priorities.lane(nickel);
+        for(NickelLimiter limiter: new NickelLimiter[]{globalLimiter, typeLimiter}){
+            if(limiter != null){
+                Supplier<Future<?>> limited = task;
+                task = ()->{
+                    if(!limiter.submit(limited, lane)) result.tryFail(new OverloadException(nickel, address));
+                    return result.future();
+                };
+            }
+        }
+
+        task.get();
+        return result.future();
+    }
+
+    /** Count a nickel no function or handler would process.
+     *
+     * @param type the type of the nickel
+     */
+    private void swallow(NickelType type){
+        NICKLES_SWALLOWED++;
+        if(metrics != null) metrics.swallowed(type);
+    }
+
+    /** Get the function that applies to a type of nickel, if any.
+     *  Functions never apply to RESPONSE or ERROR nickels.
+     *
+     * @param type the nickel type
+     * @return the type function, or the global function if there is no type function
+     */
+    private NickelFunction resolveFunction(NickelType type){
+        return functions[type.ordinal()];
+    }
+
+    /** Get the handler that applies to a type of nickel, if any.
+     *
+     * @param type the nickel type
+     * @return the type handler, or the global handler if there is no type handler
+     */
+    private NickelHandler resolveHandler(NickelType type){
+        return handlers[type.ordinal()];
+    }
+
+    /** Get the nickel type from the headers of an event bus message.
+     *
+     * @param event the event bus message
+     * @return the nickel type, or null if the message has no valid type header
+     */
+    private NickelType peekType(Message event){
+        String type = event.headers().get("type");
+        if(type == null){
+            return null;
+        }
+        try{
+            return NickelType.valueOf(type);
+        }catch (IllegalArgumentException e){
+            return null;
+        }
+    }
+
+    private void closeExecutors(){
+        replace(globalFunctionExecutor, null);
+        replace(globalHandlerExecutor, null);
+        for(NickelExecutor executor: typeFunctionExecutors) replace(executor, null);
+        for(NickelExecutor executor: typeHandlerExecutors) replace(executor, null);
+    }
+
     /** Clean up all functions and handlers,
-     *  then unregister event bus consumer and
-     *  remove event bus reference.
+     *  then unregister event bus consumer.
+     *
+     *  Nickels received afterwards are dropped. Functions and handlers already running
+     *  on the router's executors finish first, and their results are still published,
+     *  before the executors are closed.
      */
     public void destroy(){
+        destroyed = true;
         globalFunction = null;
         globalHandler = null;
-        functionMap = null;
-        actionMap = null;
-        if(consumer != null){
-            consumer.rxUnregister().subscribe(
-                    ()->{
-                        consumer = null;
-                        eb = null;
-                        log.info("Nickel router destroyed");
-                    }
+        typeFunctions = null;
+        typeHandlers = null;
+        functions = null;
+        handlers = null;
+        streamFunctions = null;
+        if(streams != null){
+            streams.values().forEach(stream->stream.fail(new IllegalStateException("Nickel router destroyed")));
+            streams = null;
+        }
+        MessageConsumer registered;
+        synchronized (this){
+            registered = consumer;
+            consumer = null;
+        }
+        if(registered != null){
+            registered.rxUnregister().subscribe(
+                    ()->log.info("Nickel router for {} unregistered", address),
+                    err->log.error("Could not unregister nickel router for {}: {}", address, err.getMessage())
             );
         }
+
+        if(inFlight.get() == 0){
+            tearDown();
+        }
+    }
+
+    /** Close the executors and release the metrics once the router is destroyed and nothing is in flight anymore.
+     */
+    private void tearDown(){
+        if(!tornDown.compareAndSet(false, true)){
+            return;
+        }
+        closeExecutors();
+        addressMetrics.release();
+        log.info("Nickel router destroyed");
     }
 }
@@ -0,0 +1,261 @@
+package ca.oceansdata.dime.common.nickel;
+
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.eventbus.DeliveryOptions;
+import io.vertx.core.eventbus.MessageCodec;
+import io.vertx.reactivex.core.AbstractVerticle;
+import io.vertx.reactivex.core.Future;
+import io.vertx.reactivex.core.Promise;
+import io.vertx.reactivex.core.Vertx;
+import io.vertx.reactivex.core.eventbus.Message;
+import io.vertx.reactivex.core.eventbus.MessageConsumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/** Deploys several instances of a {@link NickelRouter} on an address, so that a service
+ *  can route nickels on all of its event loops.
+ *
+ *  Every instance is set up by the same setup function, in a verticle of its own. Two
+ *  consumption modes are supported:
+ *
+ *  <ul>
+ *      <li><b>FANOUT</b> every instance consumes the address, so every instance processes every nickel,
+ *      as if the service had registered several routers itself.</li>
+ *      <li><b>LOAD_BALANCED</b> a single ingress consumer on the address forwards each nickel to one of the
+ *      instances, round robin. Chunks of a streamed nickel always go to the same instance. Instances still
+ *      publish their results to the address.</li>
+ *  </ul>
+ *
+ *  In LOAD_BALANCED mode, the ingress consumer does nothing but forward nickels, but it does so on a single
+ *  event loop. It only reads message headers: replies published on the address are skipped, and requests
+ *  are forwarded as the message they were received in, so their body is only decoded by the instance that
+ *  processes them.
+ *
+ *  <pre>
+ *  new NickelRouterFactory(vertx, "tasks")
+ *          .instances(4)
+ *          .mode(NickelRouterFactory.Mode.LOAD_BALANCED)
+ *          .setup(router->router.typeFunction(NickelType.CREATE_TASKS, createTasks))
+ *          .deploy();
+ *  </pre>
+ */
+public class NickelRouterFactory {
+    private static final Logger log = LoggerFactory.getLogger(NickelRouterFactory.class);
+
+    public enum Mode {
+        FANOUT,
+        LOAD_BALANCED
+    }
+
+    private final Vertx vertx;
+    private final String address;
+    private int instances = Runtime.getRuntime().availableProcessors();
+    private Mode mode = Mode.LOAD_BALANCED;
+    private Consumer<NickelRouter> setup = router->{};
+
+    public NickelRouterFactory(Vertx vertx, String address){
+        this.vertx = vertx;
+        this.address = address;
+    }
+
+    /** @param instances the number of router instances, defaults to the number of processors
+     *  @return this factory
+     */
+    public NickelRouterFactory instances(int instances){
+        this.instances = Math.max(1, instances);
+        return this;
+    }
+
+    /** @param mode how the instances consume nickels, defaults to LOAD_BALANCED
+     *  @return this factory
+     */
+    public NickelRouterFactory mode(Mode mode){
+        this.mode = mode;
+        return this;
+    }
+
+    /** @param setup registers the functions and handlers of each router instance,
+     *               called on the instance's event loop
+     *  @return this factory
+     */
+    public NickelRouterFactory setup(Consumer<NickelRouter> setup){
+        this.setup = setup;
+        return this;
+    }
+
+    /** Deploy the router instances.
+     *
+     * @return a future for the deployment id, undeploy it to destroy every instance
+     */
+    public Future<String> deploy(){
+        Promise<String> promise = Promise.promise();
+        vertx.getDelegate().deployVerticle(new GroupVerticle(address, instances, mode, setup), deployed->{
+            if(deployed.succeeded()){
+                promise.complete(deployed.result());
+            }else{
+                promise.fail(deployed.cause());
+            }
+        });
+        return promise.future();
+    }
+
+    /** @param address the address of the routers
+     *  @param instance the index of an instance
+     *  @return the address the instance consumes nickels from in LOAD_BALANCED mode
+     */
+    static String instanceAddress(String address, int instance){
+        return address + ".router." + instance;
+    }
+
+    /** Deploys the router instances, and in LOAD_BALANCED mode the ingress consumer.
+     *  Undeploying it undeploys the instances.
+     */
+    private static class GroupVerticle extends AbstractVerticle {
+        private final String address;
+        private final int instances;
+        private final Mode mode;
+        private final Consumer<NickelRouter> setup;
+
+        private MessageConsumer<Object> ingress;
+        private int next = 0;
+
+        GroupVerticle(String address, int instances, Mode mode, Consumer<NickelRouter> setup){
+            this.address = address;
+            this.instances = instances;
+            this.mode = mode;
+            this.setup = setup;
+        }
+
+        @Override
+        public void start(io.vertx.core.Promise<Void> startPromise) {
+            if(mode == Mode.LOAD_BALANCED){
+                try{
+                    vertx.eventBus().getDelegate().registerCodec(new ForwardCodec());
+                }catch (IllegalStateException alreadyRegistered){
+                    //By another factory on the same event bus
+                }
+            }
+
+            AtomicInteger index = new AtomicInteger();
+            vertx.getDelegate().deployVerticle(
+                    ()->new RouterVerticle(address, mode == Mode.LOAD_BALANCED? instanceAddress(address, index.getAndIncrement()): address, setup),
+                    new DeploymentOptions().setInstances(instances),
+                    deployed->{
+                        if(deployed.failed()){
+                            log.error("Could not deploy {} routers on {}: {}", instances, address, deployed.cause().getMessage());
+                            startPromise.fail(deployed.cause());
+                            return;
+                        }
+
+                        if(mode == Mode.LOAD_BALANCED){
+                            ingress = vertx.eventBus().consumer(address, this::forward);
+                        }
+                        log.info("Deployed {} {} routers on {}", instances, mode.name(), address);
+                        startPromise.complete();
+                    });
+        }
+
+        private void forward(Message<Object> msg){
+            String type = msg.headers().get("type");
+            //Replies and acknowledgements are for the senders of requests
+            if(!isRequest(type)){
+                return;
+            }
+
+            int instance;
+            String correlationId = msg.headers().get("correlationId");
+            if(NickelType.STREAM_CHUNK.name().equals(type) && correlationId != null){
+                instance = Math.floorMod(correlationId.hashCode(), instances);
+            }else{
+                instance = next;
+                next = (next + 1) % instances;
+            }
+
+            DeliveryOptions options = new DeliveryOptions()
+                    .setHeaders(msg.headers().getDelegate())
+                    .setCodecName(ForwardCodec.NAME)
+                    .setLocalOnly(true);
+            vertx.eventBus().send(instanceAddress(address, instance), msg.getDelegate(), options);
+        }
+
+        /** @param type the type header of a message
+         *  @return false if the message answers a request, true otherwise
+         */
+        private static boolean isRequest(String type){
+            return !(NickelType.RESPONSE.name().equals(type) ||
+                    NickelType.ERROR.name().equals(type) ||
+                    NickelType.TIMEOUT.name().equals(type) ||
+                    NickelType.STREAM_ACK.name().equals(type) ||
+                    NickelEnvelope.REPLY_TYPE.equals(type));
+        }
+
+        @Override
+        public void stop() {
+            if(ingress != null){
+                ingress.unregister();
+            }
+        }
+    }
+
+    /** Passes messages received by the ingress consumer to router instances as they are, without
+     *  decoding them. Only used for local deliveries, see {@link NickelRouter}.
+     */
+    private static class ForwardCodec implements MessageCodec<io.vertx.core.eventbus.Message<Object>, io.vertx.core.eventbus.Message<Object>> {
+        static final String NAME = ForwardCodec.class.getName();
+
+        @Override
+        public void encodeToWire(Buffer buffer, io.vertx.core.eventbus.Message<Object> message) {
+            throw new UnsupportedOperationException("Forwarded nickels are only delivered locally");
+        }
+
+        @Override
+        public io.vertx.core.eventbus.Message<Object> decodeFromWire(int pos, Buffer buffer) {
+            throw new UnsupportedOperationException("Forwarded nickels are only delivered locally");
+        }
+
+        @Override
+        public io.vertx.core.eventbus.Message<Object> transform(io.vertx.core.eventbus.Message<Object> message) {
+            return message;
+        }
+
+        @Override
+        public String name() {
+            return NAME;
+        }
+
+        @Override
+        public byte systemCodecID() {
+            return -1;
+        }
+    }
+
+    /** Hosts one router instance.
+     */
+    private static class RouterVerticle extends AbstractVerticle {
+        private final String address;
+        private final String consumeAddress;
+        private final Consumer<NickelRouter> setup;
+        private NickelRouter router;
+
+        RouterVerticle(String address, String consumeAddress, Consumer<NickelRouter> setup){
+            this.address = address;
+            this.consumeAddress = consumeAddress;
+            this.setup = setup;
+        }
+
+        @Override
+        public void start() {
+            router = new NickelRouter(vertx, address, consumeAddress);
+            setup.accept(router);
+        }
+
+        @Override
+        public void stop() {
+            router.destroy();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package ca.oceansdata.dime.common.nickel;
+
+import io.vertx.reactivex.core.Future;
+import io.vertx.reactivex.core.Promise;
+import io.vertx.reactivex.core.eventbus.EventBus;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/** Coalesces identical requests sent at the same time, so that only one of them travels to the service.
+ *  See {@link Nickel#send(EventBus, String, Nickel, NickelSingleFlight)}.
+ *
+ *  Two nickels sent to the same address are identical if they have the same key. While a request is in
+ *  flight, identical requests are not sent, their callers instead get a copy of the single response carrying
+ *  their own correlation id. If the request fails, every caller gets the same failure.
+ *
+ *  By default only GET nickels are coalesced, keyed on their orcid, query parameters and payload.
+ *  Only coalesce requests that the service would answer identically.
+ */
+public class NickelSingleFlight {
+
+    //Requests in flight, by address and key
+    private final Map<String, Future<Nickel>> inFlight = new ConcurrentHashMap<>();
+    private final Function<Nickel, String> key;
+    private final LongAdder coalesced = new LongAdder();
+
+    /** Coalesce GET nickels with the same orcid, query parameters and payload.
+     */
+    public NickelSingleFlight(){
+        this(nickel->nickel.type() == NickelType.GET? NickelCache.key(nickel): null);
+    }
+
+    /** Coalesce nickels by a custom key.
+     *
+     * @param key produces the key of a nickel, or null if the nickel should never be coalesced
+     */
+    public NickelSingleFlight(Function<Nickel, String> key){
+        this.key = key;
+    }
+
+    /** Send a nickel unless an identical one is in flight.
+     *
+     * @param address the address to send the nickel to
+     * @param nickel the nickel
+     * @param send sends the nickel, if needed
+     * @return a future for the response to the nickel
+     */
+    Future<Nickel> send(String address, Nickel nickel, Function<Nickel, Future<Nickel>> send){
+        String nickelKey = key.apply(nickel);
+        if(nickelKey == null){
+            return send.apply(nickel);
+        }
+        String flightKey = address + "|" + nickelKey;
+
+        Promise<Nickel> leader = Promise.promise();
+        Future<Nickel> shared = leader.future();
+        Future<Nickel> existing = inFlight.putIfAbsent(flightKey, shared);
+        if(existing != null){
+            coalesced.increment();
+            return existing.map(response->responseTo(response, nickel));
+        }
+
+        Future<Nickel> response;
+        try{
+            response = send.apply(nickel);
+        }catch (RuntimeException e){
+            response = Future.failedFuture(e);
+        }
+        response.onComplete(done->inFlight.remove(flightKey, shared));
+        response.onSuccess(leader::complete).onFailure(leader::fail);
+        return response;
+    }
+
+    /** @return the number of requests that were not sent because an identical request was in flight
+     */
+    public long coalesced(){
+        return coalesced.sum();
+    }
+
+    /** @return the number of requests in flight
+     */
+    public int inFlight(){
+        return inFlight.size();
+    }
+
+    /** Copy a response for another caller.
+     *
+     * @param response the response
+     * @param nickel the nickel of the caller
+     * @return the copy, with the correlation id of the caller's nickel
+     */
+    private static Nickel responseTo(Nickel response, Nickel nickel){
+        Nickel result = Nickel.from(nickel)
+                .setType(response.type())
+                .setOrigin(response.origin())
+                .setStatusCode(response.statusCode());
+        if(response.getMeta() != null) result.setMeta(response.getMeta().copy());
+        if(response.httpResponseHeaders() != null) result.setHttpResponseHeaders(response.httpResponseHeaders().copy());
+        byte [] data = response.getData();
+        if(data != null) result.pack(data);
+        return result;
+    }
+}
@@ -0,0 +1,22 @@
+package ca.oceansdata.dime.common.nickel;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.streams.ReadStream;
+import io.vertx.reactivex.core.Future;
+
+public interface NickelStreamFunction {
+
+    /** A method that produces a nickel upon consuming a streamed nickel,
+     *  see {@link Nickel#sendStream(io.vertx.reactivex.core.eventbus.EventBus, String, Nickel, ReadStream)}.
+     *
+     *  The payload of the streamed nickel arrives in chunks through the read stream. Chunks are
+     *  only acknowledged once they have been handed to the stream's handler, so pausing the stream
+     *  pauses the sender.
+     *
+     * @param head the streamed nickel, without its payload
+     * @param payload the payload of the streamed nickel
+     * @param out a response nickel pre-generated from the streamed nickel for convenience
+     * @return the resulting nickel
+     */
+    Future<Nickel> apply(Nickel head, ReadStream<Buffer> payload, Nickel out);
+}
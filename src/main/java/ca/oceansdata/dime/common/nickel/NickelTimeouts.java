@@ -0,0 +1,201 @@
+package ca.oceansdata.dime.common.nickel;
+
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import io.vertx.core.shareddata.LocalMap;
+import io.vertx.core.shareddata.Shareable;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/** Hashed wheel scheduler for request timeouts, see {@link Nickel#sendWithTimeout(io.vertx.reactivex.core.Vertx, String, Nickel, long)}.
+ *
+ *  Scheduling and cancelling a timeout are constant time and never touch Vert.x timers. A single
+ *  periodic timer per Vertx instance advances the wheel one slot per tick, and only runs while
+ *  timeouts are scheduled. Timeouts fire up to one tick late, on the context they were scheduled from.
+ *
+ *  The periodic timer runs on the {@link NickelContext} of the Vertx instance, so it is not cancelled
+ *  when the verticle that happened to schedule the first timeout is undeployed.
+ */
+public class NickelTimeouts implements Shareable {
+
+    public static final long TICK = 10;
+    public static final int SLOTS = 512;
+
+    private final Vertx vertx;
+    //Context of the periodic timer, not tied to any verticle
+    private final NickelContext context;
+
+    //Timeouts not placed in the wheel yet, from any thread
+    private final Queue<Timeout> incoming = new ConcurrentLinkedQueue<>();
+    //Slots of the wheel, only touched by the periodic timer, on the wheel's context
+    private final ArrayDeque<Timeout> [] wheel = slots();
+    private long tick = 0;
+
+    //Guarded by this
+    private int scheduled = 0;
+    private boolean armed = false;
+    private long timerId = -1;
+
+    private NickelTimeouts(Vertx vertx){
+        this.vertx = vertx;
+        this.context = NickelContext.forVertx(vertx);
+    }
+
+    /** Get the timeout scheduler of a Vertx instance.
+     *
+     * @param vertx the vertx instance
+     * @return the scheduler
+     */
+    public static NickelTimeouts forVertx(Vertx vertx){
+        LocalMap<String, NickelTimeouts> map = vertx.sharedData().getLocalMap(NickelTimeouts.class.getName());
+        NickelTimeouts timeouts = map.get("wheel");
+        if(timeouts == null){
+            NickelTimeouts created = new NickelTimeouts(vertx);
+            timeouts = map.putIfAbsent("wheel", created);
+            if(timeouts == null){
+                timeouts = created;
+            }
+        }
+        return timeouts;
+    }
+
+    /** Run a task once a delay has passed, unless cancelled before.
+     *
+     * @param delay the delay, in milliseconds
+     * @param task the task, run on the calling context if there is one
+     * @return the timeout, cancel it once the task is no longer needed
+     */
+    public Timeout schedule(long delay, Runnable task){
+        Timeout timeout = new Timeout(this, Math.max(1, (delay + TICK - 1) / TICK), task, Vertx.currentContext());
+        incoming.add(timeout);
+        synchronized (this){
+            scheduled++;
+            if(!armed){
+                armed = true;
+                context.runOnContext(v->arm());
+            }
+        }
+        return timeout;
+    }
+
+    /** @return the number of timeouts scheduled and not fired or cancelled yet
+     */
+    public synchronized int scheduled(){
+        return scheduled;
+    }
+
+    /** Start the periodic timer, on the wheel's context.
+     */
+    private synchronized void arm(){
+        if(armed && timerId == -1){
+            timerId = vertx.setPeriodic(TICK, id->advance());
+        }
+    }
+
+    /** Mark a timeout as done, once it fires or is cancelled.
+     *
+     * @return false if the timeout was already done
+     */
+    private synchronized boolean done(Timeout timeout){
+        if(timeout.done){
+            return false;
+        }
+        timeout.done = true;
+        scheduled--;
+        return true;
+    }
+
+    private void advance(){
+        tick++;
+
+        Iterator<Timeout> slot = wheel[(int)(tick % SLOTS)].iterator();
+        while (slot.hasNext()){
+            Timeout timeout = slot.next();
+            if(timeout.cancelled){
+                slot.remove();
+            }else if(timeout.rounds == 0){
+                slot.remove();
+                if(done(timeout)){
+                    timeout.fire();
+                }
+            }else{
+                timeout.rounds--;
+            }
+        }
+
+        //Place new timeouts after the current slot, so they wait at least their number of ticks
+        Timeout added;
+        while ((added = incoming.poll()) != null){
+            added.rounds = (added.ticks - 1) / SLOTS;
+            wheel[(int)((tick + added.ticks) % SLOTS)].add(added);
+        }
+
+        //Stop once every timeout has fired or been cancelled, the slots only hold cancelled timeouts then
+        synchronized (this){
+            if(scheduled > 0){
+                return;
+            }
+            vertx.cancelTimer(timerId);
+            timerId = -1;
+            armed = false;
+        }
+        for(ArrayDeque<Timeout> remaining: wheel){
+            remaining.clear();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ArrayDeque<Timeout> [] slots(){
+        ArrayDeque<Timeout> [] slots = new ArrayDeque[SLOTS];
+        for(int i = 0; i < slots.length; i++){
+            slots[i] = new ArrayDeque<>();
+        }
+        return slots;
+    }
+
+    /** A scheduled timeout.
+     */
+    public static class Timeout {
+        private final NickelTimeouts timeouts;
+        private final long ticks;
+        private final Runnable task;
+        private final Context context;
+        private volatile boolean cancelled = false;
+        //Fired or cancelled, guarded by the scheduler
+        private boolean done = false;
+        //Full turns of the wheel left, only touched by the periodic timer
+        private long rounds;
+
+        private Timeout(NickelTimeouts timeouts, long ticks, Runnable task, Context context){
+            this.timeouts = timeouts;
+            this.ticks = ticks;
+            this.task = task;
+            this.context = context;
+        }
+
+        /** Cancel the timeout. It no longer counts as scheduled, and is cleared from the wheel when
+         *  its slot next comes up or once no timeouts are left.
+         */
+        public void cancel(){
+            cancelled = true;
+            timeouts.done(this);
+        }
+
+        public boolean cancelled(){
+            return cancelled;
+        }
+
+        private void fire(){
+            if(context == null){
+                task.run();
+            }else{
+                context.runOnContext(v->{
+                    if(!cancelled) task.run();
+                });
+            }
+        }
+    }
+}
@@ -31,7 +31,10 @@ public enum NickelType {
     // Client-Bound Nickels
     ERROR,
     TIMEOUT,
-    RESPONSE;
+    RESPONSE,
+    // Stream Nickels, see Nickel.sendStream
+    STREAM_CHUNK,
+    STREAM_ACK;
 
     private static final Logger log = LoggerFactory.getLogger(NickelType.class);
 
@@ -3,12 +3,12 @@ package ca.oceansdata.dime.common.nickel.codec;
 import ca.oceansdata.dime.common.nickel.Nickel;
 import ca.oceansdata.dime.common.nickel.NickelOrigin;
 import ca.oceansdata.dime.common.nickel.NickelType;
+import ca.oceansdata.dime.common.nickel.compression.NickelCompression;
+import ca.oceansdata.dime.common.nickel.compression.PayloadCompressor;
 import ca.oceansdata.dime.common.nickel.impl.NickelImpl;
 import io.vertx.core.buffer.Buffer;
 import io.vertx.core.eventbus.MessageCodec;
 
-import io.vertx.core.json.JsonArray;
-import io.vertx.core.json.JsonObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -18,6 +18,281 @@ import java.util.UUID;
 public class NickelCodec implements MessageCodec<NickelImpl, NickelImpl> {
     private static final Logger log = LoggerFactory.getLogger(NickelCodec.class);
 
+    /** Original wire layout, see {@link #encodeV1(Buffer, NickelImpl)}. */
+    public static final int WIRE_V1 = 1;
+
+    /** Compact wire layout, see {@link #encodeV2(Buffer, NickelImpl)}. */
+    public static final int WIRE_V2 = 2;
+
+    /** First byte of a v2 frame. v1 frames start with the most significant byte
+     *  of their timestamp, which is 0 for any epoch millisecond timestamp we will
+     *  ever produce, so the two layouts cannot be confused.
+     */
+    static final byte V2_MARKER = (byte)0xD2;
+
+    //Presence bitmap flags for v2 frames
+    static final int HAS_ORCID = 1;
+    static final int HAS_HEADERS = 1 << 1;
+    static final int HAS_PARAMS = 1 << 2;
+    static final int HAS_TRACING = 1 << 3;
+    static final int HAS_METADATA = 1 << 4;
+    static final int HAS_PAYLOAD = 1 << 5;
+    static final int HAS_COMPRESSED_PAYLOAD = 1 << 6;
+
+    //Size of an encoded empty json object, "{}". Any non empty json object is longer.
+    private static final int EMPTY_JSON_SIZE = 2;
+
+    //Encoded in place of an enum ordinal when the enum value is null
+    private static final byte NULL_ORDINAL = (byte)0xFF;
+
+    private static final NickelType [] TYPES = NickelType.values();
+    private static final NickelOrigin [] ORIGINS = NickelOrigin.values();
+
+    private final int wireVersion;
+
+    //Whether a compression policy ignored by v1 frames was logged
+    private volatile boolean compressionIgnored = false;
+
+    /** Create a codec that writes v1 frames, which every service can decode.
+     *  Use {@code new NickelCodec(WIRE_V2)} to write v2 frames once the whole cluster can decode them.
+     */
+    public NickelCodec(){
+        this(WIRE_V1);
+    }
+
+    /** Create a codec that writes frames in the given wire version. Frames of either
+     *  version are always decoded.
+     *
+     *  When rolling v2 out across a cluster, deploy every service with {@link #WIRE_V1}
+     *  first, then switch them to {@link #WIRE_V2} once no service is left that cannot
+     *  decode it.
+     *
+     * @param wireVersion {@link #WIRE_V1} or {@link #WIRE_V2}
+     */
+    public NickelCodec(int wireVersion){
+        if(wireVersion != WIRE_V1 && wireVersion != WIRE_V2){
+            throw new IllegalArgumentException("Unknown nickel wire version: " + wireVersion);
+        }
+        this.wireVersion = wireVersion;
+    }
+
+    @Override
+    public void encodeToWire(Buffer buffer, NickelImpl nickel) {
+        if(wireVersion == WIRE_V1){
+            if(nickel.compression() != null && !compressionIgnored){
+                compressionIgnored = true;
+                log.warn("Nickel compression policies are ignored by v1 frames, use a codec writing v2 frames to compress payloads.");
+            }
+            encodeV1(buffer, nickel);
+        }else{
+            encodeV2(buffer, nickel);
+        }
+    }
+
+    @Override
+    public NickelImpl decodeFromWire(int position, Buffer buffer) {
+        if(buffer.getByte(position) == V2_MARKER){
+            return decodeV2(position, buffer);
+        }
+        return decodeV1(position, buffer);
+    }
+
+    /** Decode only the fixed prefix of an encoded nickel: its timestamp, status code,
+     *  correlation id, type, orcid and origin. Json sections and the payload are not
+     *  read, which makes this much cheaper than {@link #decodeFromWire(int, Buffer)}
+     *  when only routing information is needed.
+     *
+     * @param position the position of the encoded nickel in the buffer
+     * @param buffer buffer containing an encoded nickel, of either wire version
+     * @return the header of the encoded nickel
+     */
+    public NickelHeader decodeHeader(int position, Buffer buffer){
+        if(buffer.getByte(position) == V2_MARKER){
+            return decodeHeaderV2(position, buffer);
+        }
+        return decodeHeaderV1(position, buffer);
+    }
+
+    /** Nickels are encoded with a marker byte and a presence bitmap first, followed by
+     *  fixed length fields and then the variable length fields flagged as present in the
+     *  bitmap. Empty json objects, an empty payload and a null orcid are not written at all.
+     *  Variable length fields are prefixed with their size in bytes as a varint
+     *  (see {@link WireUtils}).
+     *
+     *  Order of encoding and the sizes in bytes (if fixed):
+     *
+     *  1)  marker (byte - {@link #V2_MARKER})
+     *  2)  presence bitmap (byte)
+     *  3)  timestamp (long - 8 bytes)
+     *  4)  statusCode (varint)
+     *  5)  correlationId (two longs - 16 bytes)
+     *  6)  NickelType (ordinal - 1 byte)
+     *  7)  NickelOrigin (ordinal - 1 byte)
+     *  8)  orcid
+     *  9)  httpResponseHeaders
+     *  10) requestQueryParameters
+     *  11) tracing
+     *  12) metadata
+     *  13) payload, or compressed payload: compressor id (byte), payload size (varint)
+     *      then the compressed payload (see {@link NickelCompression})
+     *
+     *  Enums are encoded by ordinal, so new NickelType and NickelOrigin values must only
+     *  ever be appended to their enums.
+     *
+     * @param buffer
+     * @param nickel
+     */
+    private void encodeV2(Buffer buffer, NickelImpl nickel){
+        //Json sections that were never accessed since decoding are written back as they were received
+        Buffer headers = nickel.encodedHttpResponseHeaders();
+        Buffer params = nickel.encodedRequestQueryParams();
+        Buffer tracing = nickel.encodedTracing();
+        Buffer metadata = nickel.encodedMeta();
+
+        int presence = 0;
+        if(nickel.orcid() != null) presence |= HAS_ORCID;
+        if(headers.length() > EMPTY_JSON_SIZE) presence |= HAS_HEADERS;
+        if(params.length() > EMPTY_JSON_SIZE) presence |= HAS_PARAMS;
+        if(tracing.length() > EMPTY_JSON_SIZE) presence |= HAS_TRACING;
+        if(metadata.length() > EMPTY_JSON_SIZE) presence |= HAS_METADATA;
+
+        //A payload received compressed and never accessed is forwarded compressed
+        int payloadSize = nickel.payloadSize();
+        Buffer compressed = nickel.compressedData();
+        PayloadCompressor compressor = nickel.payloadCompressor();
+        NickelCompression compression = nickel.compression();
+        if(compressed == null && compression != null && payloadSize > 0 && compression.applies(payloadSize)){
+            compressed = compression.compressor().compress(nickel.getData());
+            compressor = compression.compressor();
+            //Send the payload as is if compressing it didn't make it any smaller
+            if(compressed.length() >= payloadSize){
+                compressed = null;
+            }
+        }
+
+        if(compressed != null){
+            presence |= HAS_COMPRESSED_PAYLOAD;
+        }else if(payloadSize > 0){
+            presence |= HAS_PAYLOAD;
+        }
+
+        buffer.appendByte(V2_MARKER);
+        buffer.appendByte((byte)presence);
+        buffer.appendLong(nickel.timestamp());
+        WireUtils.appendVarInt(buffer, nickel.statusCode());
+        WireUtils.appendUUID(buffer, nickel.correlationId());
+        buffer.appendByte(nickel.type() == null? NULL_ORDINAL: (byte)nickel.type().ordinal());
+        buffer.appendByte(nickel.origin() == null? NULL_ORDINAL: (byte)nickel.origin().ordinal());
+
+        if((presence & HAS_ORCID) != 0) WireUtils.appendString(buffer, nickel.orcid());
+        if((presence & HAS_HEADERS) != 0) WireUtils.appendBuffer(buffer, headers);
+        if((presence & HAS_PARAMS) != 0) WireUtils.appendBuffer(buffer, params);
+        if((presence & HAS_TRACING) != 0) WireUtils.appendBuffer(buffer, tracing);
+        if((presence & HAS_METADATA) != 0) WireUtils.appendBuffer(buffer, metadata);
+        if((presence & HAS_PAYLOAD) != 0) WireUtils.appendBuffer(buffer, nickel.getDataBuffer());
+        if((presence & HAS_COMPRESSED_PAYLOAD) != 0){
+            buffer.appendByte(compressor.id());
+            WireUtils.appendVarInt(buffer, payloadSize);
+            WireUtils.appendBuffer(buffer, compressed);
+        }
+    }
+
+    private NickelHeader decodeHeaderV2(int position, Buffer buffer){
+        NickelHeader header = new NickelHeader();
+
+        //Skip the marker byte
+        int _pos = position + 1;
+
+        int presence = buffer.getByte(_pos) & 0xFF;
+        _pos += 1;
+
+        header.timestamp = buffer.getLong(_pos);
+        _pos += 8;
+
+        header.statusCode = WireUtils.getVarInt(buffer, _pos);
+        _pos += WireUtils.varIntSize(header.statusCode);
+
+        header.correlationId = WireUtils.getUUID(buffer, _pos);
+        _pos += 16;
+
+        int typeOrdinal = buffer.getByte(_pos++) & 0xFF;
+        int originOrdinal = buffer.getByte(_pos++) & 0xFF;
+        if(typeOrdinal < TYPES.length){
+            header.type = TYPES[typeOrdinal];
+        }else if(typeOrdinal != (NULL_ORDINAL & 0xFF)){
+            log.error("Unknown nickel type ordinal {} for nickel {}, decoding it without a type!", typeOrdinal, header.correlationId);
+        }
+        if(originOrdinal < ORIGINS.length){
+            header.origin = ORIGINS[originOrdinal];
+        }else if(originOrdinal != (NULL_ORDINAL & 0xFF)){
+            log.error("Unknown nickel origin ordinal {} for nickel {}, decoding it without an origin!", originOrdinal, header.correlationId);
+        }
+
+        if((presence & HAS_ORCID) != 0){
+            int numBytes = WireUtils.getVarInt(buffer, _pos);
+            _pos += WireUtils.varIntSize(numBytes);
+            header.orcid = buffer.getString(_pos, _pos += numBytes, "UTF-8");
+        }
+
+        header.end = _pos;
+        return header;
+    }
+
+    private NickelImpl decodeV2(int position, Buffer buffer){
+        NickelHeader header = decodeHeaderV2(position, buffer);
+        int presence = buffer.getByte(position + 1) & 0xFF;
+        int _pos = header.end;
+
+        NickelImpl decodedNickel = fromHeader(header);
+
+        if((presence & HAS_HEADERS) != 0){
+            int numBytes = WireUtils.getVarInt(buffer, _pos);
+            _pos += WireUtils.varIntSize(numBytes);
+            decodedNickel.setHttpResponseHeaders(WireUtils.readOnlySlice(buffer, _pos, _pos += numBytes));
+        }
+
+        if((presence & HAS_PARAMS) != 0){
+            int numBytes = WireUtils.getVarInt(buffer, _pos);
+            _pos += WireUtils.varIntSize(numBytes);
+            decodedNickel.setRequestQueryParams(WireUtils.readOnlySlice(buffer, _pos, _pos += numBytes));
+        }
+
+        if((presence & HAS_TRACING) != 0){
+            int numBytes = WireUtils.getVarInt(buffer, _pos);
+            _pos += WireUtils.varIntSize(numBytes);
+            decodedNickel.setTracing(WireUtils.readOnlySlice(buffer, _pos, _pos += numBytes));
+        }
+
+        if((presence & HAS_METADATA) != 0){
+            int numBytes = WireUtils.getVarInt(buffer, _pos);
+            _pos += WireUtils.varIntSize(numBytes);
+            decodedNickel.setMeta(WireUtils.readOnlySlice(buffer, _pos, _pos += numBytes));
+        }
+
+        if((presence & HAS_PAYLOAD) != 0){
+            int numBytes = WireUtils.getVarInt(buffer, _pos);
+            _pos += WireUtils.varIntSize(numBytes);
+            decodedNickel.putData(WireUtils.readOnlySlice(buffer, _pos, _pos += numBytes));
+        }
+
+        if((presence & HAS_COMPRESSED_PAYLOAD) != 0){
+            byte compressorId = buffer.getByte(_pos++);
+            PayloadCompressor compressor = NickelCompression.compressor(compressorId);
+            if(compressor == null){
+                throw new IllegalStateException("Nickel " + header.correlationId + " payload was compressed with unregistered compressor " + compressorId);
+            }
+
+            int payloadSize = WireUtils.getVarInt(buffer, _pos);
+            _pos += WireUtils.varIntSize(payloadSize);
+
+            int numBytes = WireUtils.getVarInt(buffer, _pos);
+            _pos += WireUtils.varIntSize(numBytes);
+            decodedNickel.putCompressedData(WireUtils.readOnlySlice(buffer, _pos, _pos += numBytes), compressor, payloadSize);
+        }
+
+        return decodedNickel;
+    }
+
     /** Nickels are encoded with fixed length fields first.
      *  Dynamic length fields are encoded with an int representing
      *  their size in bytes, followed by their data.
@@ -39,8 +314,7 @@ public class NickelCodec implements MessageCodec<NickelImpl, NickelImpl> {
      * @param buffer
      * @param nickel
      */
-    @Override
-    public void encodeToWire(Buffer buffer, NickelImpl nickel) {
+    private void encodeV1(Buffer buffer, NickelImpl nickel) {
 
         //Encode timestamp
         buffer.appendLong(nickel.timestamp());
@@ -61,24 +335,24 @@ public class NickelCodec implements MessageCodec<NickelImpl, NickelImpl> {
         encodeString(buffer, nickel.origin().name());
 
         //Encode httpResponseHeaders
-        encodeJson(buffer, nickel.httpResponseHeaders());
+        encodeJson(buffer, nickel.encodedHttpResponseHeaders());
 
         //Encode requestQueryParameters
-        encodeJson(buffer, nickel.requestQueryParams());
+        encodeJson(buffer, nickel.encodedRequestQueryParams());
 
         //Encode tracing
-        encodeJson(buffer, nickel.tracing());
+        encodeJson(buffer, nickel.encodedTracing());
 
         //Encode metadata
-        encodeJson(buffer, nickel.getMeta());
+        encodeJson(buffer, nickel.encodedMeta());
 
         //Encode payload
-        encodeBytes(buffer, nickel.getData());
+        encodeBytes(buffer, nickel.getDataBuffer());
 
     }
 
-    @Override
-    public NickelImpl decodeFromWire(int position, Buffer buffer) {
+    private NickelHeader decodeHeaderV1(int position, Buffer buffer) {
+        NickelHeader header = new NickelHeader();
 
         //Encoded Nickel start position in buffer
         int _pos = position;
@@ -103,7 +377,12 @@ public class NickelCodec implements MessageCodec<NickelImpl, NickelImpl> {
         //Decode NickelType
         StringBuilder nickelTypeBuilder = new StringBuilder();
         _pos = decodeString(nickelTypeBuilder, buffer, _pos);
-        NickelType nickelType = NickelType.valueOf(nickelTypeBuilder.toString());
+        NickelType nickelType = null;
+        try{
+            nickelType = NickelType.valueOf(nickelTypeBuilder.toString());
+        }catch (IllegalArgumentException e){
+            log.error("Unknown nickel type {} for nickel {}, decoding it without a type!", nickelTypeBuilder, correlationId);
+        }
 
         //Decode orcid
         StringBuilder orcidBuilder = new StringBuilder();
@@ -113,46 +392,72 @@ public class NickelCodec implements MessageCodec<NickelImpl, NickelImpl> {
         //Decode NickelOrigin
         StringBuilder originBuilder = new StringBuilder();
         _pos = decodeString(originBuilder, buffer, _pos);
-        NickelOrigin origin = NickelOrigin.valueOf(originBuilder.toString());
+        NickelOrigin origin = null;
+        try{
+            origin = NickelOrigin.valueOf(originBuilder.toString());
+        }catch (IllegalArgumentException e){
+            log.error("Unknown nickel origin {} for nickel {}, decoding it without an origin!", originBuilder, correlationId);
+        }
+
+        header.timestamp = timestamp;
+        header.statusCode = statusCode;
+        header.correlationId = correlationId;
+        header.type = nickelType;
+        header.orcid = orcid;
+        header.origin = origin;
+        header.end = _pos;
+        return header;
+    }
+
+    private NickelImpl decodeV1(int position, Buffer buffer) {
+        NickelHeader header = decodeHeaderV1(position, buffer);
+        int _pos = header.end;
+
+        //Json sections are kept encoded, and parsed when first accessed
 
         //Decode httpResponseHeaders
-        JsonArray httpResponseHeaders = new JsonArray();
-        _pos = decodeJson(httpResponseHeaders, buffer, _pos);
+        Buffer httpResponseHeaders = decodeJson(buffer, _pos);
+        _pos += 4 + httpResponseHeaders.length();
 
         //Decode requestQueryParamters
-        JsonArray requestQueryParameters = new JsonArray();
-        _pos = decodeJson(requestQueryParameters, buffer, _pos);
+        Buffer requestQueryParameters = decodeJson(buffer, _pos);
+        _pos += 4 + requestQueryParameters.length();
 
         //Decode tracing
-        JsonArray tracing = new JsonArray();
-        _pos = decodeJson(tracing, buffer, _pos);
+        Buffer tracing = decodeJson(buffer, _pos);
+        _pos += 4 + tracing.length();
 
         //Decode metadata
-        JsonArray metadata = new JsonArray();
-        _pos = decodeJson(metadata, buffer, _pos);
-
-        //Decode payload
-        Buffer byteBuffer = Buffer.buffer();
-        _pos = decodeBytes(byteBuffer, buffer, _pos);
-        byte[] payload = byteBuffer.getBytes();
-
-        NickelImpl decodedNickel = new NickelImpl();
-        decodedNickel.setTimestamp(timestamp);
-        decodedNickel.setStatusCode(statusCode);
-        decodedNickel.setCorrelationId(correlationId);
-        decodedNickel.setType(nickelType);
-        decodedNickel.setOrcid(orcid);
-        decodedNickel.setOrigin(origin);
-        decodedNickel.setHttpResponseHeaders(httpResponseHeaders.getJsonObject(0));
-        decodedNickel.setRequestQueryParams(requestQueryParameters.getJsonObject(0));
-        decodedNickel.setTracing(tracing.getJsonObject(0));
-        decodedNickel.setMeta(metadata.getJsonObject(0));
+        Buffer metadata = decodeJson(buffer, _pos);
+        _pos += 4 + metadata.length();
+
+        //Decode payload, as a view of the wire buffer rather than a copy
+        int payloadSize = buffer.getInt(_pos);
+        _pos += 4;
+        Buffer payload = WireUtils.readOnlySlice(buffer, _pos, _pos += payloadSize);
+
+        NickelImpl decodedNickel = fromHeader(header);
+        decodedNickel.setHttpResponseHeaders(httpResponseHeaders);
+        decodedNickel.setRequestQueryParams(requestQueryParameters);
+        decodedNickel.setTracing(tracing);
+        decodedNickel.setMeta(metadata);
         decodedNickel.putData(payload);
 
 
         return decodedNickel;
     }
 
+    private NickelImpl fromHeader(NickelHeader header){
+        NickelImpl nickel = new NickelImpl();
+        nickel.setTimestamp(header.timestamp);
+        nickel.setStatusCode(header.statusCode);
+        nickel.setCorrelationId(header.correlationId);
+        nickel.setType(header.type);
+        nickel.setOrcid(header.orcid);
+        nickel.setOrigin(header.origin);
+        return nickel;
+    }
+
     @Override
     public NickelImpl transform(NickelImpl nickel) {
         return nickel;
@@ -168,37 +473,21 @@ public class NickelCodec implements MessageCodec<NickelImpl, NickelImpl> {
         return -1;
     }
 
-    private int decodeBytes(Buffer result, Buffer buffer, int position){
-        //Get the number of bytes to read as data
-        int numBytes = buffer.getInt(position);
-
-        //Increment the position by 4 bytes (size of int)
-        position +=4;
-
-        //Get the specified number of bytes and append them to the result buffer
-        result.appendBytes(buffer.getBytes(position, position+=numBytes));
-
-        //Return the new buffer position
-        return position;
-    }
-
-    private int decodeJson(JsonArray result, Buffer buffer, int position){
+    /** Get a view of an encoded json object without parsing it. The
+     *  view is preceded in the buffer by its byte size as an int.
+     * @param buffer buffer containing an encoded json object
+     * @param position the position on the buffer at which the json object is located
+     * @return a read-only view of the encoded json object
+     */
+    private Buffer decodeJson(Buffer buffer, int position){
         //Get the length of the encoded json string in bytes
         int numBytes = buffer.getInt(position);
 
         //Increment the position by 4 bytes (size of int)
         position+=4;
 
-        //Get the encoded json string
-        String encodedJson = buffer.getString(position, position+=numBytes);
-
-
-        //Decode the string into the json object
-        result.add(new JsonObject(encodedJson));
-
-
-        //Return the new buffer position
-        return position;
+        //Return a view of the encoded json
+        return WireUtils.readOnlySlice(buffer, position, position + numBytes);
     }
 
     /** Decode a variable length string by first reading
@@ -235,29 +524,26 @@ public class NickelCodec implements MessageCodec<NickelImpl, NickelImpl> {
         buffer.appendString(value);
     }
 
-    private void encodeJson(Buffer buffer, JsonObject data){
-        //Get the string encoding of the json object
-        String encodedJson = data.encode();
-
-        //Get the number of bytes in the string encoded json
-        int numBytes = encodedJson.getBytes().length;
+    private void encodeJson(Buffer buffer, Buffer encodedJson){
+        //Get the number of bytes in the encoded json
+        int numBytes = encodedJson.length();
 
         //Append byte size to buffer
         buffer.appendInt(numBytes);
 
         //Append encoded json to buffer
-        buffer.appendString(encodedJson);
+        buffer.appendBuffer(encodedJson);
     }
 
-    private void encodeBytes(Buffer buffer, byte[] data){
+    private void encodeBytes(Buffer buffer, Buffer data){
         //Get the length of bytes to encode
-        int numBytes = data.length;
+        int numBytes = data.length();
 
         //Append byte size to buffer
         buffer.appendInt(numBytes);
 
         //Append the bytes to the buffer
-        buffer.appendBytes(data);
+        buffer.appendBuffer(data);
     }
 
 
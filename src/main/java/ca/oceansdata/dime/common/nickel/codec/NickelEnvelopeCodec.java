@@ -0,0 +1,107 @@
+package ca.oceansdata.dime.common.nickel.codec;
+
+import ca.oceansdata.dime.common.nickel.Nickel;
+import ca.oceansdata.dime.common.nickel.NickelEnvelope;
+import ca.oceansdata.dime.common.nickel.impl.NickelImpl;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.eventbus.MessageCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/** Encodes a {@link NickelEnvelope} as a single frame:
+ *
+ *  <pre>
+ *  | correlation id (16 bytes) | reply (1 byte) | nickel count (varint) | size (varint) | nickel frame | size (varint) | nickel frame | ...
+ *  </pre>
+ *
+ *  Nickel frames are those of the {@link NickelCodec} this codec is created with.
+ *  Register it as the default codec for {@link NickelEnvelope}:
+ *
+ *  <pre>
+ *  vertx.eventBus().getDelegate().registerDefaultCodec(NickelEnvelope.class, new NickelEnvelopeCodec());
+ *  </pre>
+ */
+public class NickelEnvelopeCodec implements MessageCodec<NickelEnvelope, NickelEnvelope> {
+    private static final Logger log = LoggerFactory.getLogger(NickelEnvelopeCodec.class);
+
+    private final NickelCodec nickelCodec;
+
+    /** Create a codec for envelopes of v1 nickel frames, see {@link NickelCodec#NickelCodec()}.
+     */
+    public NickelEnvelopeCodec(){
+        this(new NickelCodec());
+    }
+
+    /** @param nickelCodec the codec for the nickels in envelopes
+     */
+    public NickelEnvelopeCodec(NickelCodec nickelCodec){
+        this.nickelCodec = nickelCodec;
+    }
+
+    @Override
+    public void encodeToWire(Buffer buffer, NickelEnvelope envelope) {
+        WireUtils.appendUUID(buffer, envelope.correlationId());
+        buffer.appendByte((byte)(envelope.isReply()? 1: 0));
+
+        List<NickelImpl> nickels = new ArrayList<>(envelope.nickels().size());
+        for(Nickel nickel: envelope.nickels()){
+            if(nickel instanceof NickelImpl){
+                nickels.add((NickelImpl)nickel);
+            }else{
+                log.error("Cannot encode {} in nickel envelope {}! Leaving it out!",
+                        nickel.getClass().getSimpleName(), envelope.correlationId());
+            }
+        }
+
+        WireUtils.appendVarInt(buffer, nickels.size());
+        Buffer frame = Buffer.buffer();
+        for(NickelImpl nickel: nickels){
+            nickelCodec.encodeToWire(frame, nickel);
+            WireUtils.appendVarInt(buffer, frame.length());
+            buffer.appendBuffer(frame);
+            frame = Buffer.buffer();
+        }
+    }
+
+    @Override
+    public NickelEnvelope decodeFromWire(int position, Buffer buffer) {
+        int _pos = position;
+
+        UUID correlationId = WireUtils.getUUID(buffer, _pos);
+        _pos += 16;
+        boolean reply = buffer.getByte(_pos) == 1;
+        _pos += 1;
+
+        int count = WireUtils.getVarInt(buffer, _pos);
+        _pos += WireUtils.varIntSize(count);
+
+        List<Nickel> nickels = new ArrayList<>(count);
+        for(int i = 0; i < count; i++){
+            int size = WireUtils.getVarInt(buffer, _pos);
+            _pos += WireUtils.varIntSize(size);
+            nickels.add(nickelCodec.decodeFromWire(_pos, buffer));
+            _pos += size;
+        }
+
+        return new NickelEnvelope(correlationId, reply, nickels);
+    }
+
+    @Override
+    public NickelEnvelope transform(NickelEnvelope envelope) {
+        return envelope;
+    }
+
+    @Override
+    public String name() {
+        return this.getClass().getSimpleName();
+    }
+
+    @Override
+    public byte systemCodecID() {
+        return -1;
+    }
+}
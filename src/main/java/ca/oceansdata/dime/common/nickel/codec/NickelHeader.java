@@ -0,0 +1,46 @@
+package ca.oceansdata.dime.common.nickel.codec;
+
+import ca.oceansdata.dime.common.nickel.NickelOrigin;
+import ca.oceansdata.dime.common.nickel.NickelType;
+
+import java.util.UUID;
+
+/** The fixed prefix of an encoded nickel, decoded without touching its
+ *  json sections or payload. See {@link NickelCodec#decodeHeader(int, io.vertx.core.buffer.Buffer)}.
+ */
+public class NickelHeader {
+
+    long timestamp;
+    int statusCode;
+    UUID correlationId;
+    NickelType type;
+    String orcid;
+    NickelOrigin origin;
+
+    //Position in the buffer right after the header
+    int end;
+
+    public long timestamp() {
+        return timestamp;
+    }
+
+    public int statusCode() {
+        return statusCode;
+    }
+
+    public UUID correlationId() {
+        return correlationId;
+    }
+
+    public NickelType type() {
+        return type;
+    }
+
+    public String orcid() {
+        return orcid;
+    }
+
+    public NickelOrigin origin() {
+        return origin;
+    }
+}
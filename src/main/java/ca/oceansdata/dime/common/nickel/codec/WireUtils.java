@@ -0,0 +1,123 @@
+package ca.oceansdata.dime.common.nickel.codec;
+
+import io.vertx.core.buffer.Buffer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/** Helpers for writing and reading compact binary fields in event bus codecs.
+ *
+ *  Variable length integers use the unsigned LEB128 layout: 7 bits of the value
+ *  per byte, least significant group first, with the high bit set on every byte
+ *  but the last. Values below 128 take a single byte.
+ */
+public class WireUtils {
+
+    /** Append an int to the buffer as a variable length integer.
+     *
+     * @param buffer buffer to append to
+     * @param value value to append, negative values always take 5 bytes
+     */
+    public static void appendVarInt(Buffer buffer, int value){
+        while((value & ~0x7F) != 0){
+            buffer.appendByte((byte)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.appendByte((byte)value);
+    }
+
+    /** Read a variable length integer from the buffer.
+     *
+     * @param buffer buffer to read from
+     * @param position position of the first byte of the integer
+     * @return the decoded value, use {@link #varIntSize(int)} to advance past it
+     */
+    public static int getVarInt(Buffer buffer, int position){
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do{
+            b = buffer.getByte(position++);
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        }while ((b & 0x80) != 0);
+        return value;
+    }
+
+    /** The number of bytes a value takes once encoded as a variable length integer.
+     *
+     * @param value the value
+     * @return its encoded size in bytes (1 to 5)
+     */
+    public static int varIntSize(int value){
+        int size = 1;
+        while((value & ~0x7F) != 0){
+            size++;
+            value >>>= 7;
+        }
+        return size;
+    }
+
+    /** Get a read-only view of a region of a buffer. No bytes are copied, the view
+     *  shares the memory of the original buffer.
+     *
+     * @param buffer the buffer to take a view of
+     * @param start start position of the region (inclusive)
+     * @param end end position of the region (exclusive)
+     * @return a read-only buffer over the region
+     */
+    public static Buffer readOnlySlice(Buffer buffer, int start, int end){
+        return Buffer.buffer(buffer.getByteBuf().slice(start, end - start).asReadOnly());
+    }
+
+    /** Append a UUID as two longs, most significant bits first.
+     *
+     * @param buffer buffer to append to
+     * @param id the uuid
+     */
+    public static void appendUUID(Buffer buffer, UUID id){
+        buffer.appendLong(id.getMostSignificantBits());
+        buffer.appendLong(id.getLeastSignificantBits());
+    }
+
+    /** Read a UUID written by {@link #appendUUID(Buffer, UUID)}. Takes 16 bytes.
+     *
+     * @param buffer buffer to read from
+     * @param position position of the uuid in the buffer
+     * @return the uuid
+     */
+    public static UUID getUUID(Buffer buffer, int position){
+        return new UUID(buffer.getLong(position), buffer.getLong(position + 8));
+    }
+
+    /** Append a UTF-8 string prefixed with its size in bytes as a variable length integer.
+     *
+     * @param buffer buffer to append to
+     * @param value the string
+     */
+    public static void appendString(Buffer buffer, String value){
+        byte [] bytes = value.getBytes(StandardCharsets.UTF_8);
+        appendVarInt(buffer, bytes.length);
+        buffer.appendBytes(bytes);
+    }
+
+    /** Append a buffer prefixed with its size in bytes as a variable length integer.
+     *
+     * @param buffer buffer to append to
+     * @param value the buffer to append
+     */
+    public static void appendBuffer(Buffer buffer, Buffer value){
+        appendVarInt(buffer, value.length());
+        buffer.appendBuffer(value);
+    }
+
+    /** Append bytes prefixed with their count as a variable length integer.
+     *
+     * @param buffer buffer to append to
+     * @param value the bytes to append
+     */
+    public static void appendBytes(Buffer buffer, byte [] value){
+        appendVarInt(buffer, value.length);
+        buffer.appendBytes(value);
+    }
+}
@@ -0,0 +1,82 @@
+package ca.oceansdata.dime.common.nickel.compression;
+
+import io.vertx.core.buffer.Buffer;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/** Compresses payloads with the JDK's deflate implementation (raw deflate, no zlib header).
+ */
+public class DeflateCompressor implements PayloadCompressor {
+
+    public static final byte ID = 1;
+
+    private final int level;
+
+    /** Create a deflate compressor favouring speed over compression ratio.
+     */
+    public DeflateCompressor(){
+        this(Deflater.BEST_SPEED);
+    }
+
+    /** Create a deflate compressor with a given compression level.
+     *
+     * @param level compression level, from {@link Deflater#BEST_SPEED} to {@link Deflater#BEST_COMPRESSION}
+     */
+    public DeflateCompressor(int level){
+        this.level = level;
+    }
+
+    @Override
+    public byte id() {
+        return ID;
+    }
+
+    @Override
+    public Buffer compress(byte[] data) {
+        Deflater deflater = new Deflater(level, true);
+        try{
+            deflater.setInput(data);
+            deflater.finish();
+
+            Buffer result = Buffer.buffer(Math.max(64, data.length / 2));
+            byte [] chunk = new byte[Math.min(64 * 1024, Math.max(64, data.length))];
+            while (!deflater.finished()){
+                int numBytes = deflater.deflate(chunk);
+                result.appendBytes(chunk, 0, numBytes);
+            }
+            return result;
+        }finally {
+            deflater.end();
+        }
+    }
+
+    @Override
+    public byte[] decompress(Buffer compressed, int size) {
+        Inflater inflater = new Inflater(true);
+        try{
+            //Raw inflaters need an extra dummy byte after the input
+            byte [] input = new byte[compressed.length() + 1];
+            compressed.getBytes(input);
+            inflater.setInput(input);
+            byte [] result = new byte[size];
+            int offset = 0;
+            while (offset < size && !inflater.finished()){
+                int numBytes = inflater.inflate(result, offset, size - offset);
+                if(numBytes == 0 && (inflater.needsInput() || inflater.needsDictionary())){
+                    break;
+                }
+                offset += numBytes;
+            }
+            if(offset != size){
+                throw new IllegalStateException("Compressed nickel payload is truncated, expected " + size + " bytes but got " + offset);
+            }
+            return result;
+        }catch (DataFormatException e){
+            throw new IllegalStateException("Compressed nickel payload is corrupt", e);
+        }finally {
+            inflater.end();
+        }
+    }
+}
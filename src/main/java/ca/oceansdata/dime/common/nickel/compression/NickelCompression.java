@@ -0,0 +1,109 @@
+package ca.oceansdata.dime.common.nickel.compression;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Decides when nickel payloads are compressed on the wire.
+ *
+ *  Compression is opt-in. A policy can be set on an individual nickel with
+ *  {@link ca.oceansdata.dime.common.nickel.Nickel#setCompression(NickelCompression)},
+ *  or for every nickel published to an address with {@link #forAddress(String, NickelCompression)}.
+ *  A policy set on a nickel takes precedence over the policy of the address it is published to.
+ *
+ *  Payloads are only compressed when a nickel is encoded for a clustered event bus, by a codec
+ *  writing v2 frames, see {@link ca.oceansdata.dime.common.nickel.codec.NickelCodec#WIRE_V2}. Nickels
+ *  delivered locally are never compressed. Payloads smaller than the policy's threshold are sent
+ *  as is, as are payloads that would not get any smaller. Compression is recorded in the encoded
+ *  nickel, and the payload is decompressed on the receiving end when it is first accessed.
+ *
+ *  See CompressionBenchmark in the test sources to pick a threshold.
+ */
+public class NickelCompression {
+
+    //Compressors by id
+    private static final PayloadCompressor [] compressors = new PayloadCompressor[256];
+
+    //Policies by address
+    private static final Map<String, NickelCompression> addressPolicies = new ConcurrentHashMap<>();
+
+    static {
+        register(new DeflateCompressor());
+    }
+
+    private final PayloadCompressor compressor;
+    private final int threshold;
+
+    /** Create a compression policy.
+     *
+     * @param compressor the compressor to use, must be registered on receiving services
+     * @param threshold the minimum payload size, in bytes, to compress
+     */
+    public NickelCompression(PayloadCompressor compressor, int threshold){
+        this.compressor = compressor;
+        this.threshold = threshold;
+    }
+
+    /** Create a policy compressing payloads with deflate.
+     *
+     * @param threshold the minimum payload size, in bytes, to compress
+     * @return the compression policy
+     */
+    public static NickelCompression deflate(int threshold){
+        return new NickelCompression(compressor(DeflateCompressor.ID), threshold);
+    }
+
+    /** Register a compressor so that payloads compressed with it can be decompressed.
+     *  Deflate is registered by default.
+     *
+     * @param compressor the compressor
+     */
+    public static void register(PayloadCompressor compressor){
+        compressors[compressor.id() & 0xFF] = compressor;
+    }
+
+    /** Get a registered compressor.
+     *
+     * @param id the id of the compressor
+     * @return the compressor, or null if no compressor is registered with that id
+     */
+    public static PayloadCompressor compressor(byte id){
+        return compressors[id & 0xFF];
+    }
+
+    /** Set the compression policy of nickels published to an address.
+     *
+     * @param address the event bus address
+     * @param policy the compression policy, or null to stop compressing nickels published to the address
+     */
+    public static void forAddress(String address, NickelCompression policy){
+        if(policy == null){
+            addressPolicies.remove(address);
+        }else{
+            addressPolicies.put(address, policy);
+        }
+    }
+
+    /** Get the compression policy of nickels published to an address.
+     *
+     * @param address the event bus address
+     * @return the compression policy, or null if nickels published to the address are not compressed
+     */
+    public static NickelCompression forAddress(String address){
+        return addressPolicies.get(address);
+    }
+
+    /** @param size size of a payload in bytes
+     *  @return true if payloads of that size should be compressed
+     */
+    public boolean applies(int size){
+        return size >= threshold;
+    }
+
+    public PayloadCompressor compressor() {
+        return compressor;
+    }
+
+    public int threshold() {
+        return threshold;
+    }
+}
@@ -0,0 +1,36 @@
+package ca.oceansdata.dime.common.nickel.compression;
+
+import io.vertx.core.buffer.Buffer;
+
+/** Compresses nickel payloads before they go on the wire.
+ *
+ *  Implementations are identified on the wire by {@link #id()}, so every service
+ *  that may receive a compressed nickel must have registered the same compressor
+ *  with {@link NickelCompression#register(PayloadCompressor)}.
+ *
+ *  Implementations must be thread safe.
+ */
+public interface PayloadCompressor {
+
+    /** Identifies this compressor in encoded nickels. Ids 0 to 15 are reserved
+     *  for compressors shipped with this library.
+     *
+     * @return the id of this compressor
+     */
+    byte id();
+
+    /** Compress a payload.
+     *
+     * @param data the payload
+     * @return the compressed payload
+     */
+    Buffer compress(byte [] data);
+
+    /** Decompress a payload produced by {@link #compress(byte[])}.
+     *
+     * @param compressed the compressed payload
+     * @param size the size of the payload before it was compressed
+     * @return the payload
+     */
+    byte [] decompress(Buffer compressed, int size);
+}
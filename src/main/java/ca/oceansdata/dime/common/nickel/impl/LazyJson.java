@@ -0,0 +1,60 @@
+package ca.oceansdata.dime.common.nickel.impl;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+
+/** A json object that may still be held in its encoded form.
+ *
+ *  Json sections of nickels decoded off the wire are kept encoded and only parsed
+ *  when first accessed. If they are never accessed, their encoded form is written
+ *  back out as is when the nickel is forwarded.
+ */
+class LazyJson {
+
+    private static final Buffer EMPTY = Buffer.buffer("{}");
+
+    //Encoded form, null once the value has been parsed or if the value was set directly
+    private volatile Buffer encoded;
+    private volatile JsonObject value;
+
+    LazyJson(JsonObject value){
+        this.value = value;
+    }
+
+    LazyJson(Buffer encoded){
+        this.encoded = encoded;
+    }
+
+    /** Get the json object, parsing it if this is the first access.
+     *
+     * @return the json object, null if it was set to null
+     */
+    JsonObject get(){
+        JsonObject result = value;
+        if(result == null){
+            synchronized (this){
+                if(value == null && encoded != null){
+                    value = new JsonObject(encoded);
+                    encoded = null;
+                }
+                result = value;
+            }
+        }
+        return result;
+    }
+
+    /** Get the encoded json object. If the object was never accessed, this is the encoded
+     *  form it was created with, otherwise the object is encoded again since it may have
+     *  been modified.
+     *
+     * @return the encoded json object
+     */
+    Buffer encoded(){
+        Buffer result = encoded;
+        if(result != null){
+            return result;
+        }
+        JsonObject json = get();
+        return json == null || json.isEmpty()? EMPTY: json.toBuffer();
+    }
+}
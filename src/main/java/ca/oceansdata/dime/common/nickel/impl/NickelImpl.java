@@ -3,6 +3,8 @@ package ca.oceansdata.dime.common.nickel.impl;
 import ca.oceansdata.dime.common.nickel.Nickel;
 import ca.oceansdata.dime.common.nickel.NickelOrigin;
 import ca.oceansdata.dime.common.nickel.NickelType;
+import ca.oceansdata.dime.common.nickel.compression.NickelCompression;
+import ca.oceansdata.dime.common.nickel.compression.PayloadCompressor;
 import io.opentracing.Scope;
 import io.opentracing.Span;
 import io.opentracing.SpanContext;
@@ -10,10 +12,12 @@ import io.opentracing.Tracer;
 import io.opentracing.propagation.Format;
 import io.opentracing.propagation.TextMapAdapter;
 import io.opentracing.tag.Tags;
+import io.vertx.core.buffer.Buffer;
 import io.vertx.core.http.HttpMethod;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 
+import java.nio.ByteBuffer;
 import java.time.Instant;
 import java.util.*;
 import java.util.function.Consumer;
@@ -26,11 +30,12 @@ public class NickelImpl implements Nickel {
     private String orcid;
     private NickelOrigin origin = NickelOrigin.UNSPECIFIED;
     private Integer statusCode = 200;
-    private JsonObject httpResponseHeaders = new JsonObject();
-    private JsonObject requestQueryParams = new JsonObject();
-    private byte[] payload = new byte[]{};
-    private JsonObject tracing = new JsonObject();
-    private JsonObject metadata = new JsonObject();
+    private LazyJson httpResponseHeaders = new LazyJson(new JsonObject());
+    private LazyJson requestQueryParams = new LazyJson(new JsonObject());
+    private volatile NickelPayload payload = NickelPayload.EMPTY;
+    private NickelCompression compression;
+    private LazyJson tracing = new LazyJson(new JsonObject());
+    private LazyJson metadata = new LazyJson(new JsonObject());
 
 
     @Override
@@ -66,23 +71,141 @@ public class NickelImpl implements Nickel {
 
     @Override
     public JsonObject getMeta() {
-        return metadata;
+        return metadata.get();
     }
 
     @Override
     public Nickel setMeta(JsonObject metadata) {
-        this.metadata = metadata;
+        this.metadata = new LazyJson(metadata);
         return this;
     }
 
+    /** Set the metadata to an encoded json object, parsed on first access.
+     *
+     * @param encoded the encoded metadata json object
+     * @return the nickel, with the metadata set
+     */
+    public Nickel setMeta(Buffer encoded) {
+        this.metadata = new LazyJson(encoded);
+        return this;
+    }
+
+    /** @return the encoded metadata json object
+     */
+    public Buffer encodedMeta(){
+        return metadata.encoded();
+    }
+
 
     public void putData(byte[] data) {
-        this.payload = data;
+        this.payload = NickelSpill.spill(new NickelPayload.Bytes(data));
+    }
+
+    /** Set the payload to a read-only view of a buffer, usually the buffer the nickel was
+     *  decoded from. No bytes are copied until {@link #getData()} is called.
+     *
+     * @param slice read-only buffer holding the payload
+     */
+    public void putData(Buffer slice) {
+        this.payload = NickelSpill.spill(new NickelPayload.Slice(slice));
+    }
+
+    /** Set the payload to a compressed payload, decompressed when first accessed.
+     *
+     * @param compressed the compressed payload
+     * @param compressor the compressor that compressed the payload
+     * @param size the size of the payload before it was compressed
+     */
+    public void putCompressedData(Buffer compressed, PayloadCompressor compressor, int size){
+        this.payload = new NickelPayload.Compressed(compressed, compressor, size);
     }
 
     @Override
     public byte[] getData() {
-        return this.payload;
+        return payload.bytes();
+    }
+
+    /** Get the payload as a buffer without copying it. If the nickel was decoded
+     *  off the wire this is a read-only view of the wire buffer.
+     *
+     * @return a buffer holding the payload
+     */
+    public Buffer getDataBuffer(){
+        return payload.buffer();
+    }
+
+    /** Get the payload as a read-only byte buffer, without copying it if possible.
+     *  Payloads spilled to disk are memory-mapped, see {@link NickelSpill}.
+     *
+     * @return a byte buffer holding the payload
+     */
+    public ByteBuffer getDataByteBuffer(){
+        return payload.byteBuffer();
+    }
+
+    @Override
+    public void release() {
+        NickelPayload released = payload;
+        payload = NickelPayload.EMPTY;
+        released.release();
+    }
+
+    /** Size of the payload in bytes.
+     *
+     * @return the size of the payload
+     */
+    public int payloadSize(){
+        return payload.size();
+    }
+
+    /** Get the payload as it was received if it was received compressed
+     *  and has not been accessed since.
+     *
+     * @return the compressed payload, or null
+     */
+    public Buffer compressedData(){
+        return payload.compressed();
+    }
+
+    /** @return the compressor for {@link #compressedData()}, or null
+     */
+    public PayloadCompressor payloadCompressor(){
+        return payload.compressor();
+    }
+
+    @Override
+    public Nickel setCompression(NickelCompression compression) {
+        this.compression = compression;
+        return this;
+    }
+
+    /** @return the compression policy of this nickel, or null if its payload is never compressed
+     */
+    public NickelCompression compression(){
+        return compression;
+    }
+
+    /** Get a shallow copy of this nickel with another compression policy. The copy shares
+     *  the payload, headers, query parameters, tracing and metadata of this nickel.
+     *
+     * @param compression the compression policy of the copy
+     * @return the copy
+     */
+    public NickelImpl withCompression(NickelCompression compression){
+        NickelImpl copy = new NickelImpl();
+        copy.type = type;
+        copy.timestamp = timestamp;
+        copy.correlationId = correlationId;
+        copy.orcid = orcid;
+        copy.origin = origin;
+        copy.statusCode = statusCode;
+        copy.httpResponseHeaders = httpResponseHeaders;
+        copy.requestQueryParams = requestQueryParams;
+        copy.payload = payload;
+        copy.tracing = tracing;
+        copy.metadata = metadata;
+        copy.compression = compression;
+        return copy;
     }
 
     @Override
@@ -97,12 +220,24 @@ public class NickelImpl implements Nickel {
 
     @Override
     public JsonObject httpResponseHeaders() {
-        return httpResponseHeaders;
+        return httpResponseHeaders.get();
+    }
+
+    /** @return the encoded http response headers json object
+     */
+    public Buffer encodedHttpResponseHeaders(){
+        return httpResponseHeaders.encoded();
     }
 
     @Override
     public JsonObject requestQueryParams() {
-        return requestQueryParams;
+        return requestQueryParams.get();
+    }
+
+    /** @return the encoded request query parameters json object
+     */
+    public Buffer encodedRequestQueryParams(){
+        return requestQueryParams.encoded();
     }
 
     @Override
@@ -122,7 +257,7 @@ public class NickelImpl implements Nickel {
 
     @Override
     public void put(String key, String value) {
-        tracing.put(key,value);
+        tracing.get().put(key,value);
     }
 
     public Nickel setType(HttpMethod method){
@@ -163,20 +298,30 @@ public class NickelImpl implements Nickel {
     }
 
     public Nickel setHttpResponseHeaders(JsonObject httpResponseHeaders) {
-        this.httpResponseHeaders = httpResponseHeaders;
+        this.httpResponseHeaders = new LazyJson(httpResponseHeaders);
+        return this;
+    }
+
+    /** Set the http response headers to an encoded json object, parsed on first access.
+     *
+     * @param encoded the encoded http response headers json object
+     * @return the nickel, with the headers set
+     */
+    public Nickel setHttpResponseHeaders(Buffer encoded) {
+        this.httpResponseHeaders = new LazyJson(encoded);
         return this;
     }
 
 
     public Nickel pack(JsonArray array){
-        httpResponseHeaders.put("Content-Type", "application/json");
+        httpResponseHeaders().put("Content-Type", "application/json");
         String encodedJson = array.encode();
         putData(encodedJson.getBytes());
         return this;
     }
 
     public Nickel pack(JsonObject object){
-        httpResponseHeaders.put("Content-Type", "application/json");
+        httpResponseHeaders().put("Content-Type", "application/json");
         String encodedJson = object.encode();
         putData(encodedJson.getBytes());
         return this;
@@ -266,23 +411,47 @@ public class NickelImpl implements Nickel {
      *  @return a <String,String> map of the traicing json object
      */
     private Map<String,String> getTracingMap(){
-        Map<String,Object> temp = tracing.getMap();
+        Map<String,Object> temp = tracing.get().getMap();
         Map<String,String> map = new HashMap<>();
         temp.forEach((s,o)->map.put(s,(String)o));
         return map;
     }
 
     public JsonObject tracing() {
-        return tracing;
+        return tracing.get();
+    }
+
+    /** @return the encoded tracing json object
+     */
+    public Buffer encodedTracing(){
+        return tracing.encoded();
     }
 
     public Nickel setRequestQueryParams(JsonObject requestQueryParams) {
-        this.requestQueryParams = requestQueryParams;
+        this.requestQueryParams = new LazyJson(requestQueryParams);
+        return this;
+    }
+
+    /** Set the request query parameters to an encoded json object, parsed on first access.
+     *
+     * @param encoded the encoded request query parameters json object
+     * @return the nickel, with the request query parameters set
+     */
+    public Nickel setRequestQueryParams(Buffer encoded) {
+        this.requestQueryParams = new LazyJson(encoded);
         return this;
     }
 
     public void setTracing(JsonObject tracing) {
-        this.tracing = tracing;
+        this.tracing = new LazyJson(tracing);
+    }
+
+    /** Set the tracing context to an encoded json object, parsed on first access.
+     *
+     * @param encoded the encoded tracing json object
+     */
+    public void setTracing(Buffer encoded) {
+        this.tracing = new LazyJson(encoded);
     }
 
     public JsonObject toJson(){
@@ -296,7 +465,7 @@ public class NickelImpl implements Nickel {
                 .put("statusCode", statusCode())
                 .put("requestQueryParameters", requestQueryParams())
                 .put("httpResponseHeaders", httpResponseHeaders())
-                .put("payloadSize", payload.length);
+                .put("payloadSize", payloadSize());
 
         return result;
     }
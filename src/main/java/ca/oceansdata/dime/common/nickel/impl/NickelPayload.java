@@ -0,0 +1,254 @@
+package ca.oceansdata.dime.common.nickel.impl;
+
+import ca.oceansdata.dime.common.nickel.compression.PayloadCompressor;
+import io.netty.buffer.Unpooled;
+import io.vertx.core.buffer.Buffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/** Holds the payload of a nickel, in whichever form it was packed or received in.
+ *
+ *  Payloads are immutable, packing a nickel replaces its payload. Payloads decoded
+ *  off the wire are only copied into a byte [] the first time they are accessed as one.
+ *  Since locally delivered nickels may be shared by several consumers, that copy is made
+ *  at most once per payload but may be raced for, which is harmless.
+ */
+abstract class NickelPayload {
+    private static final Logger log = LoggerFactory.getLogger(NickelPayload.class);
+
+    static final NickelPayload EMPTY = new Bytes(new byte[]{});
+
+    /** @return the size of the payload in bytes
+     */
+    abstract int size();
+
+    /** @return the payload as a byte []
+     */
+    abstract byte [] bytes();
+
+    /** @return the payload as a buffer, without copying it if possible
+     */
+    abstract Buffer buffer();
+
+    /** @return the payload as a read-only byte buffer, without copying it if possible
+     */
+    ByteBuffer byteBuffer(){
+        return buffer().getByteBuf().nioBuffer().asReadOnlyBuffer();
+    }
+
+    /** Release any resources held by the payload, it must not be accessed afterwards.
+     */
+    void release(){
+    }
+
+    /** @return the compressed payload as it was received, or null if the payload
+     *  wasn't received compressed or has been accessed since.
+     */
+    Buffer compressed(){
+        return null;
+    }
+
+    /** @return the compressor for {@link #compressed()}, or null
+     */
+    PayloadCompressor compressor(){
+        return null;
+    }
+
+    /** Payload packed from a byte [].
+     */
+    static class Bytes extends NickelPayload {
+        private final byte [] data;
+
+        Bytes(byte [] data){
+            this.data = data;
+        }
+
+        @Override
+        int size() {
+            return data.length;
+        }
+
+        @Override
+        byte[] bytes() {
+            return data;
+        }
+
+        @Override
+        Buffer buffer() {
+            return Buffer.buffer(Unpooled.wrappedBuffer(data));
+        }
+    }
+
+    /** Payload received off the wire, kept as a read-only view of the wire buffer.
+     */
+    static class Slice extends NickelPayload {
+        private final Buffer slice;
+        private volatile byte [] data;
+
+        Slice(Buffer slice){
+            this.slice = slice;
+        }
+
+        @Override
+        int size() {
+            return slice.length();
+        }
+
+        @Override
+        byte[] bytes() {
+            byte [] result = data;
+            if(result == null){
+                result = slice.getBytes();
+                data = result;
+            }
+            return result;
+        }
+
+        @Override
+        Buffer buffer() {
+            return slice;
+        }
+    }
+
+    /** Payload received compressed, decompressed when first accessed.
+     */
+    static class Compressed extends NickelPayload {
+        private final Buffer compressed;
+        private final PayloadCompressor compressor;
+        private final int size;
+        private volatile byte [] data;
+
+        Compressed(Buffer compressed, PayloadCompressor compressor, int size){
+            this.compressed = compressed;
+            this.compressor = compressor;
+            this.size = size;
+        }
+
+        @Override
+        int size() {
+            return size;
+        }
+
+        @Override
+        byte[] bytes() {
+            byte [] result = data;
+            if(result == null){
+                result = compressor.decompress(compressed, size);
+                data = result;
+            }
+            return result;
+        }
+
+        @Override
+        Buffer buffer() {
+            return Buffer.buffer(Unpooled.wrappedBuffer(bytes()));
+        }
+
+        @Override
+        Buffer compressed() {
+            return data == null? compressed: null;
+        }
+
+        @Override
+        PayloadCompressor compressor() {
+            return data == null? compressor: null;
+        }
+    }
+
+    /** Payload spilled to a temp file, mapped into memory when first accessed. See {@link NickelSpill}.
+     */
+    static class Mapped extends NickelPayload {
+        private final int size;
+        //Temp file, null once it has been deleted
+        private Path file;
+        //Channel to the temp file, null once the payload has been mapped
+        private FileChannel channel;
+        private volatile MappedByteBuffer mapped;
+        private boolean released = false;
+
+        Mapped(Path file, FileChannel channel, int size){
+            this.file = file;
+            this.channel = channel;
+            this.size = size;
+        }
+
+        @Override
+        int size() {
+            return size;
+        }
+
+        @Override
+        byte[] bytes() {
+            //Not kept, that would defeat the purpose of spilling
+            byte [] result = new byte[size];
+            byteBuffer().get(result);
+            return result;
+        }
+
+        @Override
+        Buffer buffer() {
+            return Buffer.buffer(Unpooled.wrappedBuffer(byteBuffer()));
+        }
+
+        @Override
+        ByteBuffer byteBuffer() {
+            MappedByteBuffer result = mapped;
+            if(result == null){
+                result = map();
+            }
+            return result.asReadOnlyBuffer();
+        }
+
+        private synchronized MappedByteBuffer map(){
+            if(mapped == null){
+                if(released){
+                    throw new IllegalStateException("Spilled nickel payload was accessed after being released");
+                }
+                try{
+                    mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                }catch (IOException e){
+                    throw new UncheckedIOException("Could not map spilled nickel payload", e);
+                }
+                //The mapping stays valid once the channel is closed
+                cleanUp(null, channel);
+                channel = null;
+            }
+            return mapped;
+        }
+
+        @Override
+        synchronized void release() {
+            released = true;
+            mapped = null;
+            cleanUp(file, channel);
+            file = null;
+            channel = null;
+        }
+
+        /** Close a temp file's channel and delete the temp file, logging failures.
+         *
+         * @param file the temp file, may be null
+         * @param channel the channel, may be null
+         */
+        static void cleanUp(Path file, FileChannel channel){
+            try{
+                if(channel != null){
+                    channel.close();
+                }
+                if(file != null){
+                    Files.deleteIfExists(file);
+                }
+            }catch (IOException e){
+                log.error("Could not clean up spilled nickel payload {}: {}", file, e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package ca.oceansdata.dime.common.nickel.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/** Spills oversized nickel payloads to temp files instead of keeping them on the heap.
+ *
+ *  Spilling is disabled by default. Once enabled, every payload of at least the threshold size,
+ *  whether packed or decoded off the wire, is written to a temp file that is memory-mapped the first
+ *  time the payload is accessed. Reading a spilled payload with {@link NickelImpl#getDataBuffer()} or
+ *  {@link NickelImpl#getDataByteBuffer()} does not copy it onto the heap, {@link NickelImpl#getData()} does
+ *  so on every call.
+ *
+ *  Temp files are unlinked as soon as they are written where the OS allows it, so their disk space is
+ *  reclaimed once the nickel is released with {@link NickelImpl#release()} or garbage collected.
+ *  Elsewhere they are deleted on release.
+ *
+ *  Spilling writes to disk on the calling thread, so the threshold should be set well above the size
+ *  of ordinary payloads.
+ */
+public class NickelSpill {
+    private static final Logger log = LoggerFactory.getLogger(NickelSpill.class);
+
+    //Minimum payload size to spill, negative when spilling is disabled
+    private static volatile int threshold = -1;
+    //Directory for temp files, null for the default temp directory
+    private static volatile Path directory = null;
+
+    /** Spill payloads of at least a given size to the default temp directory.
+     *
+     * @param threshold the minimum payload size to spill, in bytes
+     */
+    public static void enable(int threshold){
+        enable(threshold, null);
+    }
+
+    /** Spill payloads of at least a given size to a given directory.
+     *
+     * @param threshold the minimum payload size to spill, in bytes
+     * @param directory the directory to create temp files in, or null for the default temp directory
+     */
+    public static void enable(int threshold, Path directory){
+        NickelSpill.directory = directory;
+        NickelSpill.threshold = Math.max(0, threshold);
+    }
+
+    /** Stop spilling payloads. Payloads already spilled remain on disk until released.
+     */
+    public static void disable(){
+        threshold = -1;
+    }
+
+    /** @return the minimum payload size to spill, or -1 if spilling is disabled
+     */
+    public static int threshold(){
+        return threshold;
+    }
+
+    /** Spill a payload to disk if it is large enough.
+     *
+     * @param payload the payload
+     * @return a spilled copy of the payload, or the payload itself if it wasn't spilled
+     */
+    static NickelPayload spill(NickelPayload payload){
+        int threshold = NickelSpill.threshold;
+        if(threshold < 0 || payload.size() < threshold){
+            return payload;
+        }
+
+        Path file = null;
+        FileChannel channel = null;
+        try{
+            file = directory == null?
+                    Files.createTempFile("nickel-", ".payload"):
+                    Files.createTempFile(directory, "nickel-", ".payload");
+            channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+            ByteBuffer data = payload.byteBuffer();
+            while (data.hasRemaining()){
+                channel.write(data);
+            }
+
+            //The open channel keeps the data reachable after the file is unlinked
+            try{
+                Files.delete(file);
+                file = null;
+            }catch (IOException e){
+                //Not supported on this OS, the file is deleted on release instead
+            }
+
+            return new NickelPayload.Mapped(file, channel, payload.size());
+        }catch (IOException e){
+            log.error("Could not spill nickel payload of {} bytes to disk, keeping it in memory: {}", payload.size(), e.getMessage());
+            NickelPayload.Mapped.cleanUp(file, channel);
+            return payload;
+        }
+    }
+}
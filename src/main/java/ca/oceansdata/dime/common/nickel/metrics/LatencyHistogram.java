@@ -0,0 +1,107 @@
+package ca.oceansdata.dime.common.nickel.metrics;
+
+import io.vertx.core.json.JsonObject;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/** A lock-free latency histogram with log-linear buckets, in the style of HdrHistogram.
+ *
+ *  Values below 16 get a bucket each, every power of two above that is split into 16 buckets,
+ *  so percentiles are accurate to within 1/16th (about 6%) of the value over the whole range
+ *  of a long. Recording a value is a few atomic increments and never allocates.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator min = new LongAccumulator(Math::min, Long.MAX_VALUE);
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /** Record a value.
+     *
+     * @param value the value, negative values are recorded as 0
+     */
+    public void record(long value){
+        if(value < 0){
+            value = 0;
+        }
+        counts.incrementAndGet(bucket(value));
+        count.increment();
+        sum.add(value);
+        min.accumulate(value);
+        max.accumulate(value);
+    }
+
+    /** @return the number of recorded values
+     */
+    public long count(){
+        return count.sum();
+    }
+
+    /** Get an approximation of a percentile of the recorded values.
+     *
+     * @param percentile the percentile, from 0 to 100
+     * @return the highest value of the bucket holding the percentile, or 0 if no values were recorded
+     */
+    public long percentile(double percentile){
+        long total = count.sum();
+        if(total == 0){
+            return 0;
+        }
+
+        long rank = Math.max(1, (long)Math.ceil(total * Math.min(100.0, percentile) / 100.0));
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++){
+            seen += counts.get(i);
+            if(seen >= rank){
+                return Math.min(highest(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /** @return a snapshot of this histogram, values are converted from nanoseconds to microseconds
+     */
+    public JsonObject snapshotMicros(){
+        long count = count();
+        JsonObject result = new JsonObject().put("count", count);
+        if(count == 0){
+            return result;
+        }
+        return result
+                .put("min", min.get() / 1000.0)
+                .put("mean", sum.sum() / (double)count / 1000.0)
+                .put("p50", percentile(50) / 1000.0)
+                .put("p90", percentile(90) / 1000.0)
+                .put("p99", percentile(99) / 1000.0)
+                .put("p999", percentile(99.9) / 1000.0)
+                .put("max", max.get() / 1000.0);
+    }
+
+    static int bucket(long value){
+        if(value < SUB_BUCKETS){
+            return (int)value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int)(value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long highest(int bucket){
+        if(bucket < SUB_BUCKETS){
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = bucket % SUB_BUCKETS;
+        int shift = exponent - SUB_BUCKET_BITS;
+        long lowest = (SUB_BUCKETS + subBucket) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,216 @@
+package ca.oceansdata.dime.common.nickel.metrics;
+
+import ca.oceansdata.dime.common.nickel.NickelType;
+import io.vertx.core.json.JsonObject;
+import io.vertx.reactivex.core.Vertx;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Metrics of the nickels routed on an address, by nickel type.
+ *
+ *  <ul>
+ *      <li><b>received</b> nickels routed on the address.</li>
+ *      <li><b>swallowed</b> nickels that had no function or handler.</li>
+ *      <li><b>failures</b> functions that failed or handlers that threw.</li>
+ *      <li><b>timeouts</b> requests sent to the address that got no response in time.</li>
+ *      <li><b>latency</b> time from invoking a function until its future completes, or spent in a handler.</li>
+ *  </ul>
+ *
+ *  Every router on an address records into the same metrics, whichever event loop it runs on.
+ *  Recording is lock-free.
+ *
+ *  Metrics only exist for addresses routers are consuming, they are created with the first router
+ *  on an address and dropped with the last one, see {@link #acquire(String)}.
+ */
+public class NickelMetrics {
+
+    private static final NickelType [] TYPES = NickelType.values();
+
+    //Metrics by address
+    private static final Map<String, NickelMetrics> metrics = new ConcurrentHashMap<>();
+
+    private final String address;
+    //Routers using these metrics, guarded by the metrics map
+    private int routers = 0;
+    private final LongAdder [] received = adders();
+    private final LongAdder [] swallowed = adders();
+    private final LongAdder [] failures = adders();
+    private final LongAdder [] timeouts = adders();
+    private final LatencyHistogram [] latency = new LatencyHistogram[TYPES.length];
+    //Nickels swallowed before their type was known
+    private final LongAdder swallowedUntyped = new LongAdder();
+
+    private NickelMetrics(String address){
+        this.address = address;
+        for(int i = 0; i < latency.length; i++){
+            latency[i] = new LatencyHistogram();
+        }
+    }
+
+    /** Get the metrics of an address.
+     *
+     * @param address the event bus address
+     * @return the metrics of the address, or null if no router records metrics on it
+     */
+    public static NickelMetrics forAddress(String address){
+        return metrics.get(address);
+    }
+
+    /** Get the metrics of an address for a router, creating them if it is the first router on the address.
+     *  Routers {@link #release()} the metrics once destroyed.
+     *
+     * @param address the address of the router
+     * @return the metrics of the address
+     */
+    public static NickelMetrics acquire(String address){
+        return metrics.compute(address, (key, existing)->{
+            NickelMetrics addressMetrics = existing == null? new NickelMetrics(key): existing;
+            addressMetrics.routers++;
+            return addressMetrics;
+        });
+    }
+
+    /** Release metrics acquired by a router, dropping them once no router uses them anymore.
+     */
+    public void release(){
+        metrics.computeIfPresent(address, (key, existing)->existing == this && --routers == 0? null: existing);
+    }
+
+    /** Get a snapshot of the metrics of every address.
+     *
+     * @return snapshots by address, see {@link #snapshot()}
+     */
+    public static JsonObject snapshotAll(){
+        JsonObject result = new JsonObject();
+        metrics.forEach((address, addressMetrics)->result.put(address, addressMetrics.snapshot()));
+        return result;
+    }
+
+    /** Periodically publish {@link #snapshotAll()} on the event bus.
+     *
+     * @param vertx the vertx instance to publish with
+     * @param address the address to publish snapshots to
+     * @param period the time between snapshots, in milliseconds
+     * @return the id of the periodic timer, cancel it to stop publishing
+     */
+    public static long publish(Vertx vertx, String address, long period){
+        return vertx.setPeriodic(period, id->vertx.eventBus().publish(address, snapshotAll()));
+    }
+
+    public void received(NickelType type){
+        received[type.ordinal()].increment();
+    }
+
+    /** @param type the type of the swallowed nickel, or null if it isn't known
+     */
+    public void swallowed(NickelType type){
+        if(type == null){
+            swallowedUntyped.increment();
+        }else{
+            swallowed[type.ordinal()].increment();
+        }
+    }
+
+    public void failed(NickelType type){
+        failures[type.ordinal()].increment();
+    }
+
+    /** @param type the type of a request sent to the address that timed out
+     */
+    public void timedOut(NickelType type){
+        timeouts[type.ordinal()].increment();
+    }
+
+    /** @param type the type of the processed nickel
+     *  @param nanos the time spent processing it, in nanoseconds
+     */
+    public void latency(NickelType type, long nanos){
+        latency[type.ordinal()].record(nanos);
+    }
+
+    /** @param type a nickel type
+     *  @return the latency histogram of the type, in nanoseconds
+     */
+    public LatencyHistogram latency(NickelType type){
+        return latency[type.ordinal()];
+    }
+
+    public long received(){
+        return sum(received);
+    }
+
+    public long swallowed(){
+        return sum(swallowed) + swallowedUntyped.sum();
+    }
+
+    public long failures(){
+        return sum(failures);
+    }
+
+    public long timeouts(){
+        return sum(timeouts);
+    }
+
+    public String address() {
+        return address;
+    }
+
+    /** Get a snapshot of these metrics. Types without any activity are left out.
+     *  Latencies are in microseconds.
+     *
+     *  <pre>
+     *  {
+     *      "received": 12, "swallowed": 1, "failures": 0, "timeouts": 0,
+     *      "types": {
+     *          "GET": {"received": 12, "swallowed": 1, "failures": 0, "timeouts": 0,
+     *                  "latency": {"count": 11, "min": 3.1, "mean": 5.2, "p50": 4.9, ..., "max": 20.4}}
+     *      }
+     *  }
+     *  </pre>
+     *
+     * @return the snapshot
+     */
+    public JsonObject snapshot(){
+        JsonObject types = new JsonObject();
+        for(NickelType type: TYPES){
+            int i = type.ordinal();
+            long typeReceived = received[i].sum();
+            long typeSwallowed = swallowed[i].sum();
+            long typeTimeouts = timeouts[i].sum();
+            if(typeReceived == 0 && typeSwallowed == 0 && typeTimeouts == 0){
+                continue;
+            }
+            types.put(type.name(), new JsonObject()
+                    .put("received", typeReceived)
+                    .put("swallowed", typeSwallowed)
+                    .put("failures", failures[i].sum())
+                    .put("timeouts", typeTimeouts)
+                    .put("latency", latency[i].snapshotMicros()));
+        }
+
+        return new JsonObject()
+                .put("received", received())
+                .put("swallowed", swallowed())
+                .put("failures", failures())
+                .put("timeouts", timeouts())
+                .put("types", types);
+    }
+
+    private static LongAdder [] adders(){
+        LongAdder [] result = new LongAdder[TYPES.length];
+        for(int i = 0; i < result.length; i++){
+            result[i] = new LongAdder();
+        }
+        return result;
+    }
+
+    private static long sum(LongAdder [] adders){
+        long result = 0;
+        for(LongAdder adder: adders){
+            result += adder.sum();
+        }
+        return result;
+    }
+}
@@ -0,0 +1,199 @@
+package ca.oceansdata.dime.common.nickel.stream;
+
+import ca.oceansdata.dime.common.nickel.Nickel;
+import ca.oceansdata.dime.common.nickel.impl.NickelImpl;
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.streams.ReadStream;
+import io.vertx.reactivex.core.eventbus.EventBus;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Reassembles the chunks of a streamed nickel into a read stream, see {@link NickelStreams}.
+ *
+ *  Chunks are acknowledged as they are handed to the stream's handler, every half window,
+ *  so a paused stream holds at most a window's worth of chunks. Chunks received out of order
+ *  are held until the missing chunks arrive, the stream fails if more than a window's worth of
+ *  chunks is received ahead of a missing chunk.
+ *
+ *  Not thread safe, chunks must be pushed on the context the stream is consumed on.
+ */
+public class NickelChunkStream implements ReadStream<Buffer> {
+
+    private final EventBus eb;
+    private final String address;
+    private final Nickel head;
+    private final int window;
+    private final int ackEvery;
+
+    //Chunks ready to be handed to the handler
+    private final ArrayDeque<Buffer> queue = new ArrayDeque<>();
+    //Chunks received ahead of a missing chunk, by sequence number
+    private final Map<Integer, Nickel> early = new HashMap<>();
+    //Sequence number of the next chunk to queue
+    private int expected = 0;
+    //Sequence number of the last acknowledged chunk
+    private int acked = -1;
+
+    private long demand = Long.MAX_VALUE;
+    private boolean lastReceived = false;
+    private boolean ended = false;
+    private Throwable failure;
+
+    private Handler<Buffer> handler;
+    private Handler<Void> endHandler;
+    private Handler<Throwable> exceptionHandler;
+
+    /** Create a stream for a streamed nickel, and acknowledge it to its sender.
+     *
+     * @param eb the event bus to acknowledge chunks on
+     * @param address the address the chunks were received on
+     * @param head the streamed nickel, see {@link NickelStreams#head(Nickel)}
+     * @param window the sender's window, see {@link NickelStreams#window(Nickel)}
+     */
+    public NickelChunkStream(EventBus eb, String address, Nickel head, int window){
+        this.eb = eb;
+        this.address = address;
+        this.head = head;
+        this.window = window;
+        this.ackEvery = Math.max(1, window / 2);
+
+        //Let the sender know the stream is being received before any chunk is consumed
+        Nickel.publish(eb, address, NickelStreams.ack(head, acked));
+    }
+
+    /** Push a chunk of the streamed nickel into the stream.
+     *
+     * @param chunk the chunk
+     * @return true if no more chunks are expected
+     */
+    public boolean push(Nickel chunk){
+        if(lastReceived || failure != null){
+            return true;
+        }
+
+        String abort = chunk.getMeta().getString(NickelStreams.META_ABORT);
+        if(abort != null){
+            fail(new IllegalStateException("Stream " + head.correlationId().toString() + " was aborted by its sender: " + abort));
+            return true;
+        }
+
+        int seq = chunk.getMeta().getInteger(NickelStreams.META_SEQ, -1);
+        if(seq < expected){
+            //Duplicate
+            return false;
+        }
+        if(seq > expected){
+            //The sender never has more than a window's worth of chunks unacknowledged
+            if(early.size() >= window){
+                fail(new IllegalStateException("Stream " + head.correlationId().toString() + " received more than " +
+                        window + " chunks ahead of chunk " + expected));
+                return true;
+            }
+            early.put(seq, chunk);
+            return false;
+        }
+
+        queue(chunk);
+        while (!lastReceived && early.containsKey(expected)){
+            queue(early.remove(expected));
+        }
+        drain();
+        return lastReceived;
+    }
+
+    /** Fail the stream, no more chunks will be handed to the handler.
+     *
+     * @param cause the reason the stream failed
+     */
+    public void fail(Throwable cause){
+        if(ended || failure != null){
+            return;
+        }
+        failure = cause;
+        queue.clear();
+        early.clear();
+        if(exceptionHandler != null){
+            exceptionHandler.handle(cause);
+        }
+    }
+
+    private void queue(Nickel chunk){
+        Buffer data = chunk instanceof NickelImpl? ((NickelImpl) chunk).getDataBuffer(): Buffer.buffer(chunk.getData());
+        if(data.length() > 0){
+            queue.add(data);
+        }
+        expected++;
+        lastReceived = chunk.getMeta().getBoolean(NickelStreams.META_LAST, false);
+    }
+
+    private void drain(){
+        while (demand > 0 && handler != null && failure == null && !queue.isEmpty()){
+            if(demand != Long.MAX_VALUE){
+                demand--;
+            }
+            handler.handle(queue.poll());
+        }
+
+        if(failure != null){
+            return;
+        }
+
+        //Every chunk before the ones still queued has been consumed
+        int consumedSeq = expected - 1 - queue.size();
+        if(!lastReceived && consumedSeq - acked >= ackEvery){
+            acked = consumedSeq;
+            Nickel.publish(eb, address, NickelStreams.ack(head, acked));
+        }
+
+        if(lastReceived && queue.isEmpty() && !ended && endHandler != null){
+            ended = true;
+            endHandler.handle(null);
+        }
+    }
+
+    @Override
+    public ReadStream<Buffer> exceptionHandler(Handler<Throwable> handler) {
+        this.exceptionHandler = handler;
+        return this;
+    }
+
+    @Override
+    public ReadStream<Buffer> handler(Handler<Buffer> handler) {
+        this.handler = handler;
+        drain();
+        return this;
+    }
+
+    @Override
+    public ReadStream<Buffer> pause() {
+        demand = 0;
+        return this;
+    }
+
+    @Override
+    public ReadStream<Buffer> resume() {
+        demand = Long.MAX_VALUE;
+        drain();
+        return this;
+    }
+
+    @Override
+    public ReadStream<Buffer> fetch(long amount) {
+        demand += amount;
+        if(demand < 0){
+            demand = Long.MAX_VALUE;
+        }
+        drain();
+        return this;
+    }
+
+    @Override
+    public ReadStream<Buffer> endHandler(Handler<Void> endHandler) {
+        this.endHandler = endHandler;
+        drain();
+        return this;
+    }
+}
@@ -0,0 +1,222 @@
+package ca.oceansdata.dime.common.nickel.stream;
+
+import ca.oceansdata.dime.common.nickel.Nickel;
+import ca.oceansdata.dime.common.nickel.NickelReplyDispatcher;
+import ca.oceansdata.dime.common.nickel.NickelTimeouts;
+import ca.oceansdata.dime.common.nickel.NickelType;
+import ca.oceansdata.dime.common.nickel.impl.NickelImpl;
+import ca.oceansdata.dime.common.nickel.metrics.NickelMetrics;
+import io.vertx.core.Context;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.streams.ReadStream;
+import io.vertx.reactivex.core.Future;
+import io.vertx.reactivex.core.Vertx;
+import io.vertx.reactivex.core.eventbus.EventBus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Splits a read stream into STREAM_CHUNK nickels, pausing the read stream
+ *  while a window's worth of chunks is unacknowledged. See {@link NickelStreams}.
+ *
+ *  The source, acknowledgements and response may be handled on different threads,
+ *  so all state is guarded by this. The source is only paused and resumed on the context
+ *  the stream was sent from, which is the one it is read on.
+ */
+class NickelStreamSender {
+    private static final Logger log = LoggerFactory.getLogger(NickelStreamSender.class);
+
+    private final EventBus eb;
+    private final String address;
+    private final Nickel head;
+    private final ReadStream<Buffer> source;
+    private final int chunkSize;
+    private final int window;
+    //Context the stream was sent from, null outside of Vert.x threads
+    private final Context context;
+
+    //Bytes read from the source that don't fill a chunk yet
+    private Buffer pending = Buffer.buffer();
+    //Sequence number of the next chunk
+    private int seq = 0;
+    //Sequence number of the last acknowledged chunk
+    private int acked = -1;
+    private boolean paused = false;
+    //Whether the source is actually paused, see flow()
+    private boolean sourcePaused = false;
+    //Set once the receiving end acknowledged the stream
+    private boolean accepted = false;
+    private NickelTimeouts.Timeout timer;
+    //Set once the last chunk was sent or the request was answered
+    private boolean done = false;
+
+    NickelStreamSender(EventBus eb, String address, Nickel head, ReadStream<Buffer> source, int chunkSize, int window){
+        this.eb = eb;
+        this.address = address;
+        this.head = head;
+        this.source = source;
+        this.chunkSize = chunkSize;
+        this.window = window;
+        this.context = io.vertx.core.Vertx.currentContext();
+    }
+
+    Future<Nickel> start(){
+        //Start reading the source once the response can be captured
+        Future<Nickel> response = NickelReplyDispatcher.expectStream(eb, address, head, this::ack, ()->{
+            source.exceptionHandler(this::abort);
+            source.endHandler(v->end());
+            source.handler(this::data);
+        });
+
+        //Stop sending if the receiving end answers before the whole payload was sent
+        response.onComplete(result->finish());
+        return response;
+    }
+
+    /** Start sending, completing with a TIMEOUT nickel if the receiving end doesn't acknowledge the stream in time.
+     */
+    Future<Nickel> start(Vertx vertx, long timeout){
+        Future<Nickel> response = start();
+
+        NickelTimeouts.Timeout scheduled = NickelTimeouts.forVertx(vertx.getDelegate()).schedule(timeout, this::timeOut);
+        synchronized (this){
+            timer = scheduled;
+            if(accepted){
+                timer.cancel();
+            }
+        }
+        response.onComplete(result->scheduled.cancel());
+        return response;
+    }
+
+    private synchronized void data(Buffer data){
+        if(done){
+            return;
+        }
+
+        pending.appendBuffer(data);
+        int offset = 0;
+        while (pending.length() - offset >= chunkSize){
+            emit(pending.getBytes(offset, offset + chunkSize), false);
+            offset += chunkSize;
+        }
+        if(offset > 0){
+            pending = pending.getBuffer(offset, pending.length());
+        }
+
+        if(!paused && seq - 1 - acked >= window){
+            paused = true;
+            flow();
+        }
+    }
+
+    private synchronized void end(){
+        if(done){
+            return;
+        }
+        emit(pending.getBytes(), true);
+        pending = null;
+        done = true;
+    }
+
+    private synchronized void ack(Nickel ack){
+        if(!accepted){
+            accepted = true;
+            if(timer != null){
+                timer.cancel();
+            }
+        }
+
+        int seqAcked = ack.getMeta().getInteger(NickelStreams.META_ACK, -1);
+        if(seqAcked > acked){
+            acked = seqAcked;
+        }
+
+        if(paused && !done && seq - 1 - acked < window){
+            paused = false;
+            flow();
+        }
+    }
+
+    private void timeOut(){
+        synchronized (this){
+            if(accepted){
+                return;
+            }
+            //The whole payload may fit in the chunks sent already
+            if(!done){
+                NickelImpl chunk = chunk();
+                chunk.getMeta().put(NickelStreams.META_ABORT, "timed out");
+                chunk.getMeta().put(NickelStreams.META_LAST, true);
+                Nickel.publish(eb, address, chunk);
+                done = true;
+                flow();
+            }
+        }
+
+        Nickel timeoutNickel = Nickel.from(head)
+                .setOrcid(Nickel.SYSTEM_ORCID)
+                .setStatusCode(504)
+                .setType(NickelType.TIMEOUT);
+        if(NickelReplyDispatcher.complete(eb, address, head, timeoutNickel)){
+            log.warn("Stream {} - {} - {} was not acknowledged in time!", head.correlationId().toString(), head.type(), address);
+            NickelMetrics metrics = NickelMetrics.forAddress(address);
+            if(metrics != null) metrics.timedOut(head.type());
+        }
+    }
+
+    private synchronized void abort(Throwable err){
+        if(done){
+            return;
+        }
+        log.error("Stream {} to {} failed at chunk {}: {}", head.correlationId().toString(), address, seq, err.getMessage());
+
+        NickelImpl chunk = chunk();
+        chunk.getMeta().put(NickelStreams.META_ABORT, String.valueOf(err.getMessage()));
+        chunk.getMeta().put(NickelStreams.META_LAST, true);
+        Nickel.publish(eb, address, chunk);
+        done = true;
+
+        NickelReplyDispatcher.fail(eb, address, head, err);
+    }
+
+    private synchronized void finish(){
+        if(!done){
+            done = true;
+            flow();
+        }
+        pending = null;
+    }
+
+    /** Pause or resume the source to match the sender, on the context the stream was sent from.
+     *  Acknowledgements and responses arrive on other contexts.
+     */
+    private synchronized void flow(){
+        if(context != null && context != io.vertx.core.Vertx.currentContext()){
+            context.runOnContext(v->flow());
+            return;
+        }
+
+        boolean pause = paused || done;
+        if(pause != sourcePaused){
+            sourcePaused = pause;
+            if(pause){
+                source.pause();
+            }else{
+                source.resume();
+            }
+        }
+    }
+
+    private void emit(byte [] data, boolean last){
+        NickelImpl chunk = chunk();
+        chunk.getMeta().put(NickelStreams.META_LAST, last);
+        chunk.putData(data);
+        Nickel.publish(eb, address, chunk);
+    }
+
+    private NickelImpl chunk(){
+        NickelImpl chunk = seq == 0? NickelStreams.firstChunk(head, window): NickelStreams.chunk(head);
+        chunk.getMeta().put(NickelStreams.META_SEQ, seq++);
+        return chunk;
+    }
+}
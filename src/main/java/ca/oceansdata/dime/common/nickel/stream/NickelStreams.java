@@ -0,0 +1,176 @@
+package ca.oceansdata.dime.common.nickel.stream;
+
+import ca.oceansdata.dime.common.nickel.Nickel;
+import ca.oceansdata.dime.common.nickel.NickelOrigin;
+import ca.oceansdata.dime.common.nickel.NickelType;
+import ca.oceansdata.dime.common.nickel.impl.NickelImpl;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.streams.ReadStream;
+import io.vertx.reactivex.core.Future;
+import io.vertx.reactivex.core.Vertx;
+import io.vertx.reactivex.core.eventbus.EventBus;
+
+/** Streams the payload of a nickel as a sequence of STREAM_CHUNK nickels.
+ *
+ *  <ul>
+ *      <li>Every chunk shares the correlation id of the streamed nickel and carries its sequence number
+ *      in its metadata, along with whether it is the last chunk.</li>
+ *      <li>The first chunk also carries the orcid, origin, query parameters, tracing and metadata of the
+ *      streamed nickel, as well as its type and the sender's window.</li>
+ *      <li>The receiving end acknowledges the stream once a stream function takes it, with a STREAM_ACK nickel
+ *      for sequence number -1. It then sends back STREAM_ACK nickels with the sequence number of the last chunk it has
+ *      consumed. The sender stops reading from its source while a window's worth of chunks is unacknowledged,
+ *      so only about window * chunk size bytes of the payload are held in memory at any time.</li>
+ *      <li>If the source fails, a last chunk with an abort message is sent and the request fails.</li>
+ *      <li>If the stream is sent with a timeout and isn't acknowledged in time, a last chunk with an abort message
+ *      is sent and the request completes with a TIMEOUT nickel. Acknowledged streams advance at the pace of the
+ *      receiving end, however long that takes.</li>
+ *  </ul>
+ *
+ *  Like every nickel, chunks are published. If several routers handle the stream the sender advances at
+ *  the pace of the fastest one. Receivers forget about streams whose sender disappears only once their
+ *  stream function completes.
+ */
+public class NickelStreams {
+
+    public static final String META_TYPE = "stream.type";
+    public static final String META_WINDOW = "stream.window";
+    public static final String META_SEQ = "stream.seq";
+    public static final String META_LAST = "stream.last";
+    public static final String META_ACK = "stream.ack";
+    public static final String META_ABORT = "stream.abort";
+
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+    public static final int DEFAULT_WINDOW = 16;
+
+    /** Stream a nickel's payload from a read stream.
+     *
+     * @param eb the event bus to send the nickel on
+     * @param address the address to send the chunks to and listen for the response nickel on
+     * @param head the nickel to stream, its own payload is ignored
+     * @param source the payload of the nickel
+     * @param chunkSize the size of the chunks in bytes
+     * @param window the number of chunks that may be sent before they are acknowledged
+     * @return a future for the response nickel
+     */
+    public static Future<Nickel> send(EventBus eb, String address, Nickel head, ReadStream<Buffer> source, int chunkSize, int window){
+        if(chunkSize <= 0 || window <= 0){
+            throw new IllegalArgumentException("Chunk size and window must be positive, got " + chunkSize + " and " + window);
+        }
+        return new NickelStreamSender(eb, address, head, source, chunkSize, window).start();
+    }
+
+    /** Stream a nickel's payload from a read stream, completing with a TIMEOUT nickel with a 504 status code
+     *  if the receiving end doesn't acknowledge the stream in time.
+     *
+     * @param vertx the vertx instance to send the nickel with
+     * @param address the address to send the chunks to and listen for the response nickel on
+     * @param head the nickel to stream, its own payload is ignored
+     * @param source the payload of the nickel
+     * @param chunkSize the size of the chunks in bytes
+     * @param window the number of chunks that may be sent before they are acknowledged
+     * @param timeout how long to wait for the stream to be acknowledged, in milliseconds
+     * @return a future for the response nickel, or for a TIMEOUT nickel
+     */
+    public static Future<Nickel> send(Vertx vertx, String address, Nickel head, ReadStream<Buffer> source, int chunkSize, int window, long timeout){
+        if(chunkSize <= 0 || window <= 0){
+            throw new IllegalArgumentException("Chunk size and window must be positive, got " + chunkSize + " and " + window);
+        }
+        return new NickelStreamSender(vertx.eventBus(), address, head, source, chunkSize, window).start(vertx, timeout);
+    }
+
+    /** Create the first chunk of a streamed nickel, without its payload.
+     *
+     * @param head the streamed nickel
+     * @param window the sender's window
+     * @return the first chunk
+     */
+    static NickelImpl firstChunk(Nickel head, int window){
+        NickelImpl chunk = chunk(head);
+        chunk.setOrigin(head.origin());
+        chunk.setRequestQueryParams(head.requestQueryParams());
+        if(head instanceof NickelImpl){
+            chunk.setTracing(((NickelImpl) head).tracing());
+        }
+        chunk.setMeta(head.getMeta().copy()
+                .put(META_TYPE, head.type().name())
+                .put(META_WINDOW, window));
+        return chunk;
+    }
+
+    /** Create a chunk of a streamed nickel, without its payload.
+     *
+     * @param head the streamed nickel
+     * @return the chunk
+     */
+    static NickelImpl chunk(Nickel head){
+        NickelImpl chunk = (NickelImpl) Nickel.from(head);
+        chunk.setType(NickelType.STREAM_CHUNK);
+        chunk.setOrigin(head.origin());
+        chunk.setMeta(new JsonObject());
+        return chunk;
+    }
+
+    /** Create an acknowledgement for the chunks of a streamed nickel.
+     *
+     * @param head the streamed nickel
+     * @param seq the sequence number of the last chunk consumed
+     * @return the STREAM_ACK nickel
+     */
+    static Nickel ack(Nickel head, int seq){
+        return Nickel.from(head)
+                .setType(NickelType.STREAM_ACK)
+                .setOrigin(NickelOrigin.UNSPECIFIED)
+                .setMeta(new JsonObject().put(META_ACK, seq));
+    }
+
+    /** Get the type of the streamed nickel from its first chunk.
+     *
+     * @param chunk a chunk
+     * @return the type of the streamed nickel, or null if the chunk isn't the first chunk of a stream
+     */
+    public static NickelType streamType(Nickel chunk){
+        String type = chunk.getMeta().getString(META_TYPE);
+        if(type == null){
+            return null;
+        }
+        try{
+            return NickelType.valueOf(type);
+        }catch (IllegalArgumentException e){
+            return null;
+        }
+    }
+
+    /** Rebuild the streamed nickel from its first chunk, without its payload.
+     *
+     * @param chunk the first chunk
+     * @return the streamed nickel
+     */
+    public static Nickel head(Nickel chunk){
+        NickelImpl head = (NickelImpl) Nickel.from(chunk);
+        head.setType(streamType(chunk));
+        head.setOrigin(chunk.origin());
+        head.setRequestQueryParams(chunk.requestQueryParams());
+        if(chunk instanceof NickelImpl){
+            head.setTracing(((NickelImpl) chunk).tracing());
+        }
+
+        JsonObject meta = chunk.getMeta().copy();
+        meta.remove(META_TYPE);
+        meta.remove(META_WINDOW);
+        meta.remove(META_SEQ);
+        meta.remove(META_LAST);
+        head.setMeta(meta);
+        return head;
+    }
+
+    /** Get the sender's window from the first chunk of a stream.
+     *
+     * @param chunk the first chunk
+     * @return the sender's window
+     */
+    public static int window(Nickel chunk){
+        return chunk.getMeta().getInteger(META_WINDOW, DEFAULT_WINDOW);
+    }
+}
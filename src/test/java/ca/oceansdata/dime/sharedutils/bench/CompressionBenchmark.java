@@ -0,0 +1,73 @@
+package ca.oceansdata.dime.sharedutils.bench;
+
+import ca.oceansdata.dime.common.nickel.compression.DeflateCompressor;
+import ca.oceansdata.dime.common.nickel.compression.PayloadCompressor;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+/** Measures the cost of compressing json payloads of different sizes with deflate,
+ *  and the size at which compressing pays for itself at a given link bandwidth.
+ *
+ *  Run with an optional bandwidth in megabits per second, defaults to 1000.
+ */
+public class CompressionBenchmark {
+
+    private static final int[] SIZES = {64, 256, 1024, 4 * 1024, 16 * 1024, 64 * 1024, 256 * 1024, 1024 * 1024};
+
+    public static void main(String[] args){
+        double mbps = args.length > 0? Double.parseDouble(args[0]): 1000;
+        double bytesPerMicro = mbps * 1_000_000 / 8 / 1_000_000;
+
+        PayloadCompressor compressor = new DeflateCompressor();
+        System.out.printf("Link bandwidth: %.0f Mbit/s%n", mbps);
+        System.out.printf("%10s %12s %10s %14s %16s %12s%n", "size", "compressed", "ratio", "compress us", "decompress us", "saves us");
+
+        for(int size: SIZES){
+            byte [] data = payload(size);
+            int iterations = Math.max(20, 20_000_000 / Math.max(size, 1024));
+
+            //Warm up
+            Buffer compressed = null;
+            for(int i = 0; i < iterations; i++){
+                compressed = compressor.compress(data);
+                compressor.decompress(compressed, data.length);
+            }
+
+            long start = System.nanoTime();
+            for(int i = 0; i < iterations; i++){
+                compressed = compressor.compress(data);
+            }
+            double compressMicros = (System.nanoTime() - start) / 1000.0 / iterations;
+
+            start = System.nanoTime();
+            for(int i = 0; i < iterations; i++){
+                compressor.decompress(compressed, data.length);
+            }
+            double decompressMicros = (System.nanoTime() - start) / 1000.0 / iterations;
+
+            //Time saved on the wire minus time spent compressing and decompressing
+            double savedMicros = (data.length - compressed.length()) / bytesPerMicro - compressMicros - decompressMicros;
+
+            System.out.printf("%10d %12d %10.2f %14.1f %16.1f %12.1f%n", data.length, compressed.length(),
+                    (double)data.length / compressed.length(), compressMicros, decompressMicros, savedMicros);
+        }
+    }
+
+    /** Build a json payload resembling a page of records, roughly the given size.
+     */
+    private static byte [] payload(int size){
+        JsonArray records = new JsonArray();
+        JsonObject result = new JsonObject().put("records", records);
+        int i = 0;
+        while (result.toBuffer().length() < size){
+            records.add(new JsonObject()
+                    .put("id", i)
+                    .put("station", "station-" + (i % 37))
+                    .put("temperature", 4.0 + (i * 7919 % 1000) / 100.0)
+                    .put("timestamp", 1600000000000L + i * 60000L));
+            i++;
+        }
+        return result.toBuffer().getBytes();
+    }
+}
@@ -0,0 +1,240 @@
+package ca.oceansdata.dime.sharedutils.tests;
+
+import ca.oceansdata.dime.common.event.Event;
+import ca.oceansdata.dime.common.event.EventRegistry;
+import ca.oceansdata.dime.common.event.EventStore;
+import ca.oceansdata.dime.common.event.EventType;
+import ca.oceansdata.dime.common.event.IllegalEventFormatException;
+import ca.oceansdata.dime.common.event.codec.EventCodec;
+import ca.oceansdata.dime.common.event.types.AttributeMappingEvent;
+import ca.oceansdata.dime.common.event.types.LinkExternalAccountEvent;
+import ca.oceansdata.dime.common.event.types.LoginEvent;
+import ca.oceansdata.dime.common.event.types.PublishEvent;
+import ca.oceansdata.dime.common.event.types.TaskCreatedEvent;
+import ca.oceansdata.dime.common.event.types.TaskSkippedEvent;
+import ca.oceansdata.dime.common.event.types.UpdateMetadataFieldEvent;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import io.vertx.reactivex.core.Future;
+import io.vertx.reactivex.core.Vertx;
+import io.vertx.reactivex.ext.jdbc.JDBCClient;
+import io.vertx.reactivex.ext.sql.SQLClient;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class EventTests {
+
+    @Test
+    @DisplayName("Event timestamps in epoch milliseconds and in the legacy format")
+    void timestamps() throws IllegalEventFormatException {
+        LoginEvent event = new LoginEvent();
+        event.setEventTarget("0000-0000-0000-0000");
+
+        //Legacy timestamps by default, to the second
+        long seconds = event.getTimestampMillis() / 1000 * 1000;
+        assertEquals(seconds, new LoginEvent(event.toJson()).getTimestampMillis());
+
+        //Epoch milliseconds on the wire, without losing the milliseconds
+        JsonObject json;
+        Event.legacyTimestamps(false);
+        try{
+            json = event.toJson();
+        }finally {
+            Event.legacyTimestamps(true);
+        }
+        assertEquals(event.getTimestampMillis(), (long)json.getLong("timestamp"));
+        assertEquals(event.getTimestamp(), new LoginEvent(json).getTimestamp());
+
+        json.put("timestamp", new Date(seconds).toString());
+        assertEquals(seconds, new LoginEvent(json).getTimestampMillis());
+
+        json.put("timestamp", "yesterday");
+        assertThrows(IllegalEventFormatException.class, ()->new LoginEvent(json));
+        json.putNull("timestamp");
+        assertThrows(IllegalEventFormatException.class, ()->new LoginEvent(json));
+    }
+
+    @Test
+    @DisplayName("Typed events read directly from rows of the events table")
+    void fromSQLResult(){
+        AttributeMappingEvent mapping = new AttributeMappingEvent(UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID(),
+                "temp", "sea_water_temperature", "CF");
+        mapping.setEventTarget("0000-0000-0000-0000");
+
+        Event read = Event.fromSQLResult(row(mapping));
+        assertTrue(read instanceof AttributeMappingEvent);
+        assertEquals(mapping.toJson(), read.toJson());
+        assertEquals(mapping.getSchemaId(), ((AttributeMappingEvent)read).getSchemaId());
+        assertEquals("CF", ((AttributeMappingEvent)read).getSource());
+
+        TaskCreatedEvent task = new TaskCreatedEvent(UUID.randomUUID());
+        task.setEventTarget("0000-0000-0000-0000");
+        read = Event.fromSQLResult(row(task));
+        assertTrue(read instanceof TaskCreatedEvent);
+        assertEquals(task.getTaskId(), ((TaskCreatedEvent)read).getTaskId());
+
+        //Data that does not fit the type is read as a plain event
+        mapping.setData(new JsonObject().put("attribute", "temp"));
+        read = Event.fromSQLResult(row(mapping));
+        assertFalse(read instanceof AttributeMappingEvent);
+        assertEquals(mapping.toJson(), read.toJson());
+    }
+
+    @Test
+    @DisplayName("Every event type decoded through the event registry")
+    void registry() throws IllegalEventFormatException {
+        for(EventType type: EventType.values()){
+            Event event = EventRegistry.create(type);
+            assertNotNull(event, type.name());
+            assertEquals(type, event.getType());
+        }
+
+        for(Event event: new Event[]{
+                new TaskSkippedEvent(UUID.randomUUID()),
+                new LinkExternalAccountEvent("ORCID"),
+                new PublishEvent(UUID.randomUUID(), "Dataverse")}){
+            event.setEventTarget("0000-0000-0000-0000");
+            Event decoded = EventRegistry.fromJson(event.toJson());
+            assertEquals(event.getClass(), decoded.getClass());
+            assertEquals(event.toJson(), decoded.toJson());
+        }
+        assertEquals("Dataverse", ((PublishEvent)EventRegistry.fromJson(
+                new PublishEvent(UUID.randomUUID(), "Dataverse").toJson())).getDestination());
+
+        assertNull(EventRegistry.fromJson(new LoginEvent().toJson().put("type", "Unknown")));
+    }
+
+    @Test
+    @DisplayName("Events encoded with the event codec")
+    void eventCodec(){
+        EventCodec codec = new EventCodec();
+
+        UpdateMetadataFieldEvent update = new UpdateMetadataFieldEvent(UUID.randomUUID(), UUID.randomUUID(),
+                UUID.randomUUID(), null, UUID.randomUUID());
+        update.setEventTarget("0000-0000-0000-0000");
+        LoginEvent login = new LoginEvent();
+        login.setEventTarget("0000-0000-0000-0000");
+
+        Buffer buffer = Buffer.buffer().appendString("padding");
+        codec.encodeToWire(buffer, update);
+        int loginPosition = buffer.length();
+        codec.encodeToWire(buffer, login);
+
+        Event decoded = codec.decodeFromWire("padding".length(), buffer);
+        assertTrue(decoded instanceof UpdateMetadataFieldEvent);
+        assertEquals(update.toJson(), decoded.toJson());
+        assertEquals(update.getKeyId(), ((UpdateMetadataFieldEvent)decoded).getKeyId());
+        assertNull(((UpdateMetadataFieldEvent)decoded).getOldValueId());
+
+        //Empty data takes no bytes at all: 16 for the id, 8 for the timestamp, type, presence, target
+        assertEquals(16 + 8 + 1 + 1 + 1 + "0000-0000-0000-0000".length(), buffer.length() - loginPosition);
+        decoded = codec.decodeFromWire(loginPosition, buffer);
+        assertTrue(decoded instanceof LoginEvent);
+        assertEquals(login.toJson(), decoded.toJson());
+
+        //Local deliveries get their own copy
+        Event copy = codec.transform(update);
+        assertTrue(copy instanceof UpdateMetadataFieldEvent);
+        assertEquals(update.toJson(), copy.toJson());
+        copy.getData().put("keyId", "changed");
+        assertNotEquals(update.toJson(), copy.toJson());
+    }
+
+    @Test
+    @DisplayName("Events stored in batches and read a page at a time")
+    void eventStore() throws Exception {
+        Vertx vertx = Vertx.vertx();
+        File db = File.createTempFile("events", ".db");
+        SQLClient client = JDBCClient.createNonShared(vertx, new JsonObject()
+                .put("url", "jdbc:sqlite:" + db.getAbsolutePath())
+                .put("driver_class", "org.sqlite.JDBC")
+                .put("max_pool_size", 2));
+
+        try{
+            EventStore store = new EventStore(vertx, client).batchSize(3).flushInterval(50);
+            await(store.init());
+
+            //7 events for one user, the last two with the same timestamp, and one for another user
+            long now = System.currentTimeMillis();
+            List<Event> events = new ArrayList<>();
+            for(int i = 0; i < 7; i++){
+                Event event = i % 2 == 0? new LoginEvent(): new TaskCreatedEvent(UUID.randomUUID());
+                event.setEventTarget("0000-0000-0000-0000");
+                event.setTimestampMillis(now + Math.min(i, 5));
+                events.add(event);
+            }
+            LoginEvent other = new LoginEvent();
+            other.setEventTarget("1111-1111-1111-1111");
+            events.add(other);
+
+            //Two full batches, the last two events flushed on time
+            List<Future<Void>> stored = new ArrayList<>();
+            for(int i = 0; i < events.size(); i++){
+                stored.add(store.store(events.get(i)));
+                if(i == 4){
+                    //An event without a target fails on its own, in the middle of a batch
+                    Future<Void> untargeted = store.store(new LoginEvent());
+                    assertTrue(untargeted.failed());
+                }
+            }
+            for(Future<Void> future: stored){
+                await(future);
+            }
+
+            List<String> read = new ArrayList<>();
+            List<Long> timestamps = new ArrayList<>();
+            EventStore.Page page = await(store.latest("0000-0000-0000-0000", 3, null));
+            int pages = 1;
+            page.events().forEach(event->read.add(event.toJson().encode()));
+            page.events().forEach(event->timestamps.add(event.getTimestampMillis()));
+            while (page.next() != null){
+                page = await(store.latest("0000-0000-0000-0000", 3, EventStore.Cursor.decode(page.next().encode())));
+                page.events().forEach(event->read.add(event.toJson().encode()));
+                page.events().forEach(event->timestamps.add(event.getTimestampMillis()));
+                pages++;
+            }
+            assertEquals(3, pages);
+            assertEquals(7, read.size());
+            for(int i = 0; i < 7; i++){
+                assertTrue(read.contains(events.get(i).toJson().encode()));
+            }
+            //Newest first
+            assertEquals(now + 5, (long)timestamps.get(0));
+            assertEquals(now, (long)timestamps.get(6));
+
+            page = await(store.latest("0000-0000-0000-0000", 10, null, EventType.TASK_CREATED));
+            assertEquals(3, page.events().size());
+            assertNull(page.next());
+            page.events().forEach(event->assertTrue(event instanceof TaskCreatedEvent));
+        }finally {
+            client.rxClose().blockingAwait(10, TimeUnit.SECONDS);
+            vertx.close();
+            db.delete();
+        }
+    }
+
+    private static <T> T await(Future<T> future) throws Exception {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        future.onSuccess(result::complete).onFailure(result::completeExceptionally);
+        return result.get(10, TimeUnit.SECONDS);
+    }
+
+    private static JsonObject row(Event event){
+        return new JsonObject()
+                .put("ID", event.getId().toString())
+                .put("TIMESTAMP", event.getTimestampMillis())
+                .put("EVENT_TARGET", event.getEventTarget())
+                .put("EVENT_TYPE", event.getType().getText())
+                .put("DATA", event.getData().encode());
+    }
+}
@@ -1,10 +1,18 @@
 package ca.oceansdata.dime.sharedutils.tests;
 
 import ca.oceansdata.dime.common.event.Event;
+import ca.oceansdata.dime.common.exceptions.ErrorNickel;
 import ca.oceansdata.dime.common.exceptions.UnpackException;
 import ca.oceansdata.dime.common.nickel.*;
 import ca.oceansdata.dime.common.nickel.codec.NickelCodec;
+import ca.oceansdata.dime.common.nickel.codec.NickelEnvelopeCodec;
+import ca.oceansdata.dime.common.nickel.codec.NickelHeader;
+import ca.oceansdata.dime.common.nickel.compression.NickelCompression;
 import ca.oceansdata.dime.common.nickel.impl.NickelImpl;
+import ca.oceansdata.dime.common.nickel.impl.NickelSpill;
+import ca.oceansdata.dime.common.nickel.metrics.LatencyHistogram;
+import ca.oceansdata.dime.common.nickel.metrics.NickelMetrics;
+import ca.oceansdata.dime.common.nickel.stream.NickelStreams;
 import io.jaegertracing.internal.JaegerTracer;
 import io.jaegertracing.internal.reporters.LoggingReporter;
 import io.jaegertracing.internal.samplers.ConstSampler;
@@ -13,6 +21,9 @@ import io.jaegertracing.spi.Sampler;
 import io.opentracing.Scope;
 import io.opentracing.Tracer;
 import io.opentracing.propagation.Format;
+import io.vertx.core.Context;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.file.OpenOptions;
 import io.vertx.core.http.HttpMethod;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
@@ -20,9 +31,11 @@ import io.vertx.junit5.Checkpoint;
 import io.vertx.junit5.VertxExtension;
 import io.vertx.junit5.VertxTestContext;
 import io.vertx.reactivex.core.Future;
+import io.vertx.reactivex.core.Promise;
 import io.vertx.reactivex.core.Vertx;
 import io.vertx.reactivex.core.eventbus.EventBus;
 import io.vertx.reactivex.core.eventbus.MessageConsumer;
+import io.vertx.reactivex.core.file.AsyncFile;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.DisplayName;
@@ -33,9 +46,18 @@ import org.slf4j.LoggerFactory;
 
 
 import java.io.IOException;
+import java.nio.ReadOnlyBufferException;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -55,6 +77,7 @@ public class NickelTests {
     @BeforeAll
     static void init(Vertx vertx, VertxTestContext testContext){
         vertx.eventBus().getDelegate().registerDefaultCodec(NickelImpl.class, new NickelCodec());
+        vertx.eventBus().getDelegate().registerDefaultCodec(NickelEnvelope.class, new NickelEnvelopeCodec());
         testContext.completeNow();
     }
 
@@ -280,6 +303,303 @@ public class NickelTests {
 
     }
 
+    @Test
+    @DisplayName("Encode and decode nickels in both wire formats")
+    void wireFormats(Vertx vertx, VertxTestContext testContext){
+        NickelImpl n = (NickelImpl) createDefaultTestNickel();
+        n.setRequestQueryParams(new JsonObject().put("query", "time"));
+        n.setMeta(new JsonObject().put("triggerCount", 5));
+        n.pack(new JsonObject().put("data", "value"));
+
+        NickelImpl empty = (NickelImpl) createDefaultTestNickel();
+
+        for(int version: new int[]{NickelCodec.WIRE_V1, NickelCodec.WIRE_V2}){
+            NickelCodec codec = new NickelCodec(version);
+            for(NickelImpl nickel: new NickelImpl[]{n, empty}){
+                Buffer buffer = Buffer.buffer().appendString("prefix");
+                codec.encodeToWire(buffer, nickel);
+
+                //Decoding doesn't depend on the version of the codec doing it
+                NickelHeader header = new NickelCodec().decodeHeader("prefix".length(), buffer);
+                assertEquals(nickel.correlationId(), header.correlationId());
+                assertEquals(nickel.type(), header.type());
+                assertEquals(nickel.orcid(), header.orcid());
+                assertEquals(nickel.origin(), header.origin());
+                assertEquals(nickel.timestamp(), header.timestamp());
+                assertEquals(nickel.statusCode(), header.statusCode());
+
+                NickelImpl decoded = new NickelCodec().decodeFromWire("prefix".length(), buffer);
+                assertTrue(match(nickel, decoded));
+                assertEquals(nickel.getMeta().encode(), decoded.getMeta().encode());
+
+                //Decoded payloads are read-only views of the wire buffer
+                assertEquals(nickel.payloadSize(), decoded.payloadSize());
+                if(decoded.payloadSize() > 0){
+                    assertThrows(ReadOnlyBufferException.class, ()->decoded.getDataBuffer().setByte(0, (byte)0));
+                }
+                assertArrayEquals(nickel.getData(), decoded.getData());
+
+                //A nickel forwarded without being read is written back out unchanged
+                Buffer forwarded = Buffer.buffer();
+                codec.encodeToWire(forwarded, new NickelCodec().decodeFromWire("prefix".length(), buffer));
+                assertEquals(buffer.slice("prefix".length(), buffer.length()), forwarded);
+            }
+        }
+
+        Buffer v1 = Buffer.buffer();
+        new NickelCodec(NickelCodec.WIRE_V1).encodeToWire(v1, empty);
+        Buffer v2 = Buffer.buffer();
+        new NickelCodec(NickelCodec.WIRE_V2).encodeToWire(v2, empty);
+        log.info("Empty GET nickel: v1 {} bytes, v2 {} bytes", v1.length(), v2.length());
+        assertTrue(v2.length() < 64);
+        assertTrue(v2.length() < v1.length());
+
+        testContext.completeNow();
+    }
+
+    @Test
+    @DisplayName("Payloads over the compression threshold are compressed on the wire")
+    void compressedPayloads(Vertx vertx, VertxTestContext testContext){
+        JsonArray records = new JsonArray();
+        for(int i = 0; i < 200; i++){
+            records.add(new JsonObject().put("id", i).put("name", "record " + i).put("active", true));
+        }
+
+        NickelImpl n = (NickelImpl) createDefaultTestNickel();
+        n.pack(new JsonObject().put("records", records));
+
+        NickelCodec codec = new NickelCodec(NickelCodec.WIRE_V2);
+        Buffer plain = Buffer.buffer();
+        codec.encodeToWire(plain, n);
+
+        n.setCompression(NickelCompression.deflate(1024));
+        Buffer compressed = Buffer.buffer();
+        codec.encodeToWire(compressed, n);
+        log.info("Payload of {} bytes: {} bytes uncompressed, {} bytes compressed", n.payloadSize(), plain.length(), compressed.length());
+        assertTrue(compressed.length() < plain.length() / 2);
+
+        //A nickel forwarded without being read stays compressed
+        NickelImpl decoded = codec.decodeFromWire(0, compressed);
+        assertNotNull(decoded.compressedData());
+        Buffer forwarded = Buffer.buffer();
+        new NickelCodec(NickelCodec.WIRE_V2).encodeToWire(forwarded, decoded);
+        assertEquals(compressed, forwarded);
+
+        assertEquals(n.payloadSize(), decoded.payloadSize());
+        assertArrayEquals(n.getData(), decoded.getData());
+        assertNull(decoded.compressedData());
+
+        //Payloads under the threshold are sent as is
+        NickelImpl small = (NickelImpl) createDefaultTestNickel();
+        small.pack(new JsonObject().put("data", "value"));
+        small.setCompression(NickelCompression.deflate(1024));
+        NickelImpl smallDecoded = codec.decodeFromWire(0, encode(codec, small));
+        assertNull(smallDecoded.compressedData());
+        assertArrayEquals(small.getData(), smallDecoded.getData());
+
+        //Address policies apply to the published nickel only, not to the nickel passed in
+        NickelCompression.forAddress("nickel-compressed-address", NickelCompression.deflate(1024));
+        NickelImpl published = (NickelImpl) createDefaultTestNickel();
+        vertx.eventBus().<NickelImpl>consumer("nickel-compressed-address", msg->testContext.verify(()->{
+            assertNotNull(msg.body().compression());
+            assertNull(published.compression());
+            vertx.eventBus().<NickelImpl>consumer("nickel-plain-address", plainMsg->testContext.verify(()->{
+                assertNull(plainMsg.body().compression());
+                NickelCompression.forAddress("nickel-compressed-address", null);
+                testContext.completeNow();
+            }));
+            Nickel.publish(vertx.eventBus(), "nickel-plain-address", published);
+        }));
+        Nickel.publish(vertx.eventBus(), "nickel-compressed-address", published);
+    }
+
+    @Test
+    @DisplayName("Payloads over the spill threshold are kept in memory-mapped temp files")
+    void spilledPayloads(Vertx vertx, VertxTestContext testContext) throws IOException {
+        byte [] data = new byte[64 * 1024];
+        new Random(7).nextBytes(data);
+        Path directory = Files.createTempDirectory("nickel-spill");
+
+        NickelSpill.enable(16 * 1024, directory);
+        try{
+            NickelImpl n = (NickelImpl) createDefaultTestNickel().pack(data);
+            NickelImpl small = (NickelImpl) createDefaultTestNickel().pack(new byte[]{1, 2, 3});
+            assertTrue(n.getDataByteBuffer().isDirect());
+            assertFalse(small.getDataByteBuffer().isDirect());
+            assertArrayEquals(data, n.getData());
+
+            //Decoded payloads are spilled too
+            NickelImpl decoded = new NickelCodec().decodeFromWire(0, encode(new NickelCodec(), n));
+            assertTrue(decoded.getDataByteBuffer().isDirect());
+            assertArrayEquals(data, decoded.getData());
+            assertThrows(ReadOnlyBufferException.class, ()->decoded.getDataBuffer().setByte(0, (byte)0));
+
+            n.release();
+            decoded.release();
+            assertEquals(0, n.payloadSize());
+        }finally {
+            NickelSpill.disable();
+        }
+
+        //Temp files are gone once their nickels are released
+        try(Stream<Path> files = Files.list(directory)){
+            assertEquals(0, files.count());
+        }
+        Files.delete(directory);
+
+        testContext.completeNow();
+    }
+
+    private static Buffer encode(NickelCodec codec, NickelImpl nickel){
+        Buffer buffer = Buffer.buffer();
+        codec.encodeToWire(buffer, nickel);
+        return buffer;
+    }
+
+    @Test
+    @DisplayName("Concurrent requests on one address each get their own response")
+    void concurrentSends(Vertx vertx, VertxTestContext testContext){
+        EventBus eb = vertx.eventBus();
+        int requests = 50;
+
+        router = new NickelRouter(eb, EB_ADDRESS)
+                .function((in,out)->Future.succeededFuture(out.pack(
+                        new JsonObject().put("correlationId", in.correlationId().toString())
+                )));
+
+        Checkpoint responses = testContext.checkpoint(requests);
+
+        for(int i = 0; i < requests; i++){
+            Nickel n = createDefaultTestNickel();
+            Nickel.send(eb, EB_ADDRESS, n).onSuccess(
+                    response->testContext.verify(()->{
+                        assertEquals(n.correlationId(), response.correlationId());
+                        JsonObject data = Nickel.unpack(response, JsonObject.class);
+                        assertEquals(n.correlationId().toString(), data.getString("correlationId"));
+                        responses.flag();
+                    })
+            );
+        }
+        assertEquals(requests, NickelReplyDispatcher.pending(eb, EB_ADDRESS));
+    }
+
+    @Test
+    @DisplayName("Replies keep arriving after the verticle that sent the first request is undeployed")
+    void replyDispatcherContext(Vertx vertx, VertxTestContext testContext){
+        EventBus eb = vertx.eventBus();
+        String address = "nickel-dispatcher-test";
+
+        //Never answers POSTs, answers GETs right away
+        router = new NickelRouter(eb, address)
+                .typeFunction(NickelType.POST, (in, out)->Promise.<Nickel>promise().future())
+                .typeFunction(NickelType.GET, (in, out)->Future.succeededFuture(out));
+
+        vertx.getDelegate().deployVerticle(new io.vertx.core.AbstractVerticle(){
+            @Override
+            public void start() {
+                //Left pending, so the address' consumer outlives this verticle
+                Nickel.send(eb, address, createDefaultTestNickel().setType(NickelType.POST));
+            }
+        }, testContext.succeeding(first->vertx.getDelegate().undeploy(first, testContext.succeeding(v->
+                vertx.getDelegate().deployVerticle(new io.vertx.core.AbstractVerticle(){
+                    @Override
+                    public void start() {
+                        Nickel.send(eb, address, createDefaultTestNickel()).onComplete(
+                                testContext.succeeding(response->testContext.verify(()->{
+                                    //Answered on the context of the sender
+                                    assertSame(context, io.vertx.core.Vertx.currentContext());
+                                    assertEquals(1, NickelReplyDispatcher.pending(eb, address));
+                                    testContext.completeNow();
+                                }))
+                        );
+                    }
+                }, testContext.succeeding(second->{}))
+        ))));
+    }
+
+    @Test
+    @DisplayName("Stream a large payload to a stream function in chunks")
+    void streamedPayload(Vertx vertx, VertxTestContext testContext) throws IOException {
+        EventBus eb = vertx.eventBus();
+
+        byte [] data = new byte[1024 * 1024 + 123];
+        new Random(42).nextBytes(data);
+        Path file = Files.createTempFile("nickel-stream", ".bin");
+        file.toFile().deleteOnExit();
+        Files.write(file, data);
+
+        router = new NickelRouter(eb, EB_ADDRESS)
+                .streamFunction(NickelType.POST, (head, payload, out)->{
+                    Promise<Nickel> result = Promise.promise();
+                    Buffer received = Buffer.buffer();
+                    payload.handler(chunk->{
+                        //Consume slowly so the sender has to wait for acknowledgements
+                        received.appendBuffer(chunk);
+                        payload.pause();
+                        vertx.setTimer(1, id->payload.resume());
+                    });
+                    payload.endHandler(v->result.complete(out.pack(new JsonObject()
+                            .put("trial", head.getMeta().getString("trial"))
+                            .put("size", received.length())
+                            .put("match", Arrays.equals(data, received.getBytes()))
+                    )));
+                    return result.future();
+                });
+
+        Nickel n = createDefaultTestNickel().setType(NickelType.POST)
+                .setMeta(new JsonObject().put("trial", "stream"));
+        AsyncFile source = vertx.fileSystem().openBlocking(file.toString(), new OpenOptions().setRead(true));
+        NickelStreams.send(eb, EB_ADDRESS, n, source.getDelegate(), 8 * 1024, 4).onComplete(
+                response->testContext.verify(()->{
+                    assertTrue(response.succeeded());
+                    JsonObject result = Nickel.unpack(response.result(), JsonObject.class);
+                    assertEquals(n.getMeta().getString("trial"), result.getString("trial"));
+                    assertEquals(data.length, (int)result.getInteger("size"));
+                    assertTrue(result.getBoolean("match"));
+                    assertEquals(0, NickelReplyDispatcher.pending(eb, EB_ADDRESS));
+                    testContext.completeNow();
+                })
+        );
+    }
+
+    @Test
+    @DisplayName("Streams time out until a stream function acknowledges them")
+    void streamTimeout(Vertx vertx, VertxTestContext testContext) throws IOException {
+        EventBus eb = vertx.eventBus();
+
+        Path file = Files.createTempFile("nickel-stream", ".bin");
+        file.toFile().deleteOnExit();
+        Files.write(file, new byte[10 * 1024]);
+
+        //Answers long after the timeout, but acknowledges the stream right away
+        router = new NickelRouter(eb, EB_ADDRESS)
+                .streamFunction(NickelType.GET, (head, payload, out)->{
+                    Promise<Nickel> result = Promise.promise();
+                    payload.handler(chunk->{});
+                    payload.endHandler(v->vertx.setTimer(300, id->result.complete(out)));
+                    return result.future();
+                });
+
+        AsyncFile unacknowledged = vertx.fileSystem().openBlocking(file.toString(), new OpenOptions().setRead(true));
+        Nickel post = createDefaultTestNickel().setType(NickelType.POST);
+        Nickel.sendStreamWithTimeout(vertx, EB_ADDRESS, post, unacknowledged.getDelegate(), 100).onComplete(
+                timedOut->testContext.verify(()->{
+                    assertTrue(timedOut.succeeded());
+                    assertEquals(NickelType.TIMEOUT, timedOut.result().type());
+                    assertEquals(504, timedOut.result().statusCode());
+
+                    AsyncFile acknowledged = vertx.fileSystem().openBlocking(file.toString(), new OpenOptions().setRead(true));
+                    Nickel get = createDefaultTestNickel().setType(NickelType.GET);
+                    Nickel.sendStreamWithTimeout(vertx, EB_ADDRESS, get, acknowledged.getDelegate(), 100).onComplete(
+                            response->testContext.verify(()->{
+                                assertTrue(response.succeeded());
+                                assertEquals(NickelType.RESPONSE, response.result().type());
+                                assertEquals(0, NickelReplyDispatcher.pending(eb, EB_ADDRESS));
+                                testContext.completeNow();
+                            }));
+                }));
+    }
+
     @Test
     @DisplayName("Use NickelRouter to apply a type specific function to incomping nickels")
     void typeFunctionsWithRouter(Vertx vertx, VertxTestContext testContext){
@@ -393,6 +713,533 @@ public class NickelTests {
 
     }
 
+    @Test
+    @DisplayName("Frozen NickelRouter ignores new registrations")
+    void frozenRouter(Vertx vertx, VertxTestContext testContext){
+        EventBus eb = vertx.eventBus();
+
+        //Type handlers take precedence over the global handler, registered before or after them
+        router = new NickelRouter(eb, EB_ADDRESS)
+                .typeHandler(NickelType.GET, getNickel->testContext.completeNow())
+                .handler(nickel->testContext.failNow(new AssertionError("Global handler got a GET nickel")))
+                .freeze()
+                .typeHandler(NickelType.GET, getNickel->testContext.failNow(new AssertionError("Registered after freezing")));
+
+        Nickel.publish(eb, EB_ADDRESS, createDefaultTestNickel());
+    }
+
+    @Test
+    @DisplayName("NickelRouter records routed nickels in its access log")
+    void routerAccessLog(Vertx vertx, VertxTestContext testContext){
+        EventBus eb = vertx.eventBus();
+        Nickel get = createDefaultTestNickel();
+
+        NickelAccessLog accessLog = new NickelAccessLog(16, entry->testContext.verify(()->{
+            //POST nickels aren't logged
+            assertEquals(NickelType.GET, entry.type());
+            assertEquals(EB_ADDRESS, entry.address());
+            assertEquals(get.correlationId(), entry.correlationId());
+            assertEquals(get.orcid(), entry.orcid());
+            assertEquals(get.origin(), entry.origin());
+            testContext.completeNow();
+        })).enable(NickelType.POST, false);
+
+        router = new NickelRouter(eb, EB_ADDRESS)
+                .accessLog(accessLog)
+                .handler(nickel->{});
+
+        Nickel.publish(eb, EB_ADDRESS, createDefaultTestNickel().setType(NickelType.POST));
+        Nickel.publish(eb, EB_ADDRESS, get);
+    }
+
+    @Test
+    @DisplayName("NickelRouter records metrics by address and type")
+    void routerMetrics(Vertx vertx, VertxTestContext testContext){
+        EventBus eb = vertx.eventBus();
+        String address = "nickel-metrics-test";
+
+        NickelRouter metricsRouter = new NickelRouter(eb, address)
+                .typeFunction(NickelType.GET, (in, out)->Future.succeededFuture(out))
+                .typeFunction(NickelType.PUT, (in, out)->Future.failedFuture("Not allowed"));
+
+        Nickel.publish(eb, address, createDefaultTestNickel().setType(NickelType.POST));
+        Nickel.send(eb, address, createDefaultTestNickel().setType(NickelType.PUT)).onFailure(
+                err->Nickel.send(eb, address, createDefaultTestNickel()).onSuccess(
+                        response->testContext.verify(()->{
+                            JsonObject snapshot = NickelMetrics.snapshotAll().getJsonObject(address);
+                            assertEquals(1, (long)snapshot.getLong("failures"));
+                            assertEquals(1, (long)snapshot.getJsonObject("types").getJsonObject("PUT").getLong("failures"));
+
+                            JsonObject get = snapshot.getJsonObject("types").getJsonObject("GET");
+                            assertEquals(1, (long)get.getLong("received"));
+                            assertEquals(1, (long)get.getJsonObject("latency").getLong("count"));
+                            assertEquals(1, (long)snapshot.getJsonObject("types").getJsonObject("POST").getLong("swallowed"));
+                            //Replies on the address are received too, and swallowed
+                            assertEquals(1, (long)snapshot.getJsonObject("types").getJsonObject("ERROR").getLong("swallowed"));
+                            assertTrue(metricsRouter.metrics().received() >= 4);
+
+                            //Metrics are dropped with the last router on the address
+                            metricsRouter.destroy();
+                            assertNull(NickelMetrics.forAddress(address));
+                            testContext.completeNow();
+                        })
+                )
+        );
+
+        LatencyHistogram histogram = new LatencyHistogram();
+        for(long i = 1; i <= 1000; i++){
+            histogram.record(i * 1000);
+        }
+        assertEquals(1000, histogram.count());
+        assertEquals(500_000, histogram.percentile(50), 500_000 / 16.0);
+        assertEquals(990_000, histogram.percentile(99), 990_000 / 16.0);
+        assertEquals(1_000_000, histogram.percentile(100));
+    }
+
+    @Test
+    @DisplayName("NickelRouter runs blocking functions and handlers on worker pools")
+    void workerExecution(Vertx vertx, VertxTestContext testContext){
+        EventBus eb = vertx.eventBus();
+        int nickels = 20;
+        List<UUID> handled = Collections.synchronizedList(new ArrayList<>());
+        List<Nickel> sent = new ArrayList<>();
+
+        Checkpoint ordered = testContext.checkpoint();
+        Checkpoint rejected = testContext.checkpoint();
+
+        router = new NickelRouter(vertx, EB_ADDRESS)
+                //Handlers for the same orcid run one at a time, in order
+                .typeHandler(NickelType.POST, nickel->{
+                    assertFalse(Context.isOnEventLoopThread());
+                    try{
+                        Thread.sleep(new Random().nextInt(3));
+                    }catch (InterruptedException e){
+                        throw new RuntimeException(e);
+                    }
+                    handled.add(nickel.correlationId());
+                    if(handled.size() == nickels){
+                        testContext.verify(()->{
+                            for(int i = 0; i < nickels; i++){
+                                assertEquals(sent.get(i).correlationId(), handled.get(i));
+                            }
+                            ordered.flag();
+                        });
+                    }
+                }, NickelExecution.worker("nickel-test-pool", 4, 0).ordered(NickelExecution.Ordering.ORCID))
+                //Only one PUT may be pending at a time
+                .typeFunction(NickelType.PUT, (in, out)->{
+                    try{
+                        Thread.sleep(200);
+                    }catch (InterruptedException e){
+                        throw new RuntimeException(e);
+                    }
+                    return Future.succeededFuture(out);
+                }, NickelExecution.worker("nickel-test-pool", 4, 1));
+
+        for(int i = 0; i < nickels; i++){
+            Nickel n = createDefaultTestNickel().setType(NickelType.POST);
+            sent.add(n);
+            Nickel.publish(eb, EB_ADDRESS, n);
+        }
+
+        Nickel.send(eb, EB_ADDRESS, createDefaultTestNickel().setType(NickelType.PUT));
+        Nickel.send(eb, EB_ADDRESS, createDefaultTestNickel().setType(NickelType.PUT)).onFailure(
+                err->testContext.verify(()->{
+                    assertEquals(503, ((ErrorNickel)err).statusCode());
+                    rejected.flag();
+                })
+        );
+    }
+
+    @Test
+    @DisplayName("Functions in flight on worker pools still answer after their router is destroyed")
+    void destroyWithFunctionsInFlight(Vertx vertx, VertxTestContext testContext){
+        EventBus eb = vertx.eventBus();
+        String address = "nickel-destroy-test";
+        Promise<Void> started = Promise.promise();
+
+        NickelRouter destroyed = new NickelRouter(vertx, address)
+                .typeFunction(NickelType.GET, (in, out)->{
+                    started.complete();
+                    try{
+                        Thread.sleep(100);
+                    }catch (InterruptedException e){
+                        throw new RuntimeException(e);
+                    }
+                    return Future.succeededFuture(out);
+                }, NickelExecution.worker("nickel-destroy-pool", 1, 0));
+
+        Nickel.send(eb, address, createDefaultTestNickel()).onComplete(
+                testContext.succeeding(response->testContext.verify(()->{
+                    assertEquals(NickelType.RESPONSE, response.type());
+                    testContext.completeNow();
+                }))
+        );
+        started.future().onSuccess(v->destroyed.destroy());
+    }
+
+    @Test
+    @DisplayName("NickelRouter limits functions in flight and rejects overflow")
+    void limitedFunctions(Vertx vertx, VertxTestContext testContext){
+        EventBus eb = vertx.eventBus();
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+
+        router = new NickelRouter(eb, EB_ADDRESS)
+                .typeFunction(NickelType.CREATE_TASKS, (in, out)->{
+                    maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                    Promise<Nickel> result = Promise.promise();
+                    vertx.setTimer(50, id->{
+                        inFlight.decrementAndGet();
+                        result.complete(out);
+                    });
+                    return result.future();
+                })
+                .typeLimit(NickelType.CREATE_TASKS, 2, 2, NickelLimiter.Overflow.QUEUE);
+
+        //2 nickels in flight, 2 queued and 2 rejected
+        Checkpoint responses = testContext.checkpoint(4);
+        Checkpoint rejections = testContext.checkpoint(2);
+        for(int i = 0; i < 6; i++){
+            Nickel.send(eb, EB_ADDRESS, createDefaultTestNickel().setType(NickelType.CREATE_TASKS)).onComplete(
+                    response->testContext.verify(()->{
+                        if(response.succeeded()){
+                            assertEquals(2, maxInFlight.get());
+                            responses.flag();
+                        }else{
+                            assertEquals(503, ((ErrorNickel)response.cause()).statusCode());
+                            rejections.flag();
+                        }
+                    })
+            );
+        }
+    }
+
+    @Test
+    @DisplayName("Load balance nickels across router instances")
+    void routerInstances(Vertx vertx, VertxTestContext testContext){
+        EventBus eb = vertx.eventBus();
+        String address = "nickel-instances-test";
+        int nickels = 16;
+        List<UUID> processed = Collections.synchronizedList(new ArrayList<>());
+        List<String> threads = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger received = new AtomicInteger();
+
+        Checkpoint responses = testContext.checkpoint(nickels);
+        new NickelRouterFactory(vertx, address)
+                .instances(4)
+                .mode(NickelRouterFactory.Mode.LOAD_BALANCED)
+                .setup(instance->instance.typeFunction(NickelType.GET, (in, out)->{
+                    processed.add(in.correlationId());
+                    threads.add(Thread.currentThread().getName());
+                    return Future.succeededFuture(out);
+                }))
+                .deploy().onComplete(testContext.succeeding(id->{
+                    for(int i = 0; i < nickels; i++){
+                        Nickel.send(eb, address, createDefaultTestNickel().setType(NickelType.GET)).onComplete(
+                                testContext.succeeding(response->testContext.verify(()->{
+                                    //Every nickel is processed by exactly one instance
+                                    assertEquals(1, processed.stream().filter(response.correlationId()::equals).count());
+                                    if(received.incrementAndGet() == nickels){
+                                        //Spread across event loops
+                                        assertTrue(threads.stream().distinct().count() > 1);
+                                    }
+                                    responses.flag();
+                                }))
+                        );
+                    }
+                }));
+    }
+
+    @Test
+    @DisplayName("Process interactive nickels ahead of queued bulk nickels")
+    void priorityLanes(Vertx vertx, VertxTestContext testContext){
+        EventBus eb = vertx.eventBus();
+        List<NickelType> processed = Collections.synchronizedList(new ArrayList<>());
+
+        NickelFunction slow = (in, out)->{
+            processed.add(in.type());
+            Promise<Nickel> result = Promise.promise();
+            vertx.setTimer(20, id->result.complete(out));
+            return result.future();
+        };
+        router = new NickelRouter(eb, EB_ADDRESS)
+                .typeFunction(NickelType.NEW_METADATA, slow)
+                .typeFunction(NickelType.GET, slow)
+                .priorities(new NickelPriority()
+                        .type(NickelType.NEW_METADATA, NickelPriority.Lane.LOW)
+                        .type(NickelType.GET, NickelPriority.Lane.HIGH))
+                .limit(1, 10, NickelLimiter.Overflow.QUEUE);
+
+        Checkpoint responses = testContext.checkpoint(6);
+        List<NickelType> types = Arrays.asList(
+                NickelType.NEW_METADATA, NickelType.NEW_METADATA, NickelType.NEW_METADATA, NickelType.NEW_METADATA,
+                NickelType.GET, NickelType.GET);
+        for(NickelType type: types){
+            Nickel.send(eb, EB_ADDRESS, createDefaultTestNickel().setType(type)).onComplete(
+                    testContext.succeeding(response->testContext.verify(()->{
+                        if(processed.size() == types.size()){
+                            //The GETs overtake the bulk nickels queued before them
+                            assertEquals(Arrays.asList(
+                                    NickelType.NEW_METADATA, NickelType.GET, NickelType.GET,
+                                    NickelType.NEW_METADATA, NickelType.NEW_METADATA, NickelType.NEW_METADATA), processed);
+                        }
+                        responses.flag();
+                    }))
+            );
+        }
+    }
+
+    @Test
+    @DisplayName("Answer repeated GETs from the response cache")
+    void cachedResponses(Vertx vertx, VertxTestContext testContext){
+        EventBus eb = vertx.eventBus();
+        AtomicInteger invocations = new AtomicInteger();
+        NickelCache cache = new NickelCache(1024 * 1024, 60000);
+
+        router = new NickelRouter(eb, EB_ADDRESS)
+                .typeFunction(NickelType.GET, (in, out)->{
+                    invocations.incrementAndGet();
+                    out.pack(new JsonObject().put("answer", in.requestQueryParams().getString("q")));
+                    if("slow".equals(in.requestQueryParams().getString("q"))){
+                        Promise<Nickel> result = Promise.promise();
+                        vertx.setTimer(100, id->result.complete(out));
+                        return result.future();
+                    }
+                    return Future.succeededFuture(out);
+                })
+                .typeFunction(NickelType.UPDATE, (in, out)->Future.succeededFuture(out))
+                .cache(cache);
+
+        Nickel first = createDefaultTestNickel().setRequestQueryParams(new JsonObject().put("q", "buoys"));
+        Nickel second = createDefaultTestNickel().setRequestQueryParams(new JsonObject().put("q", "buoys"));
+        Nickel afterUpdate = createDefaultTestNickel().setRequestQueryParams(new JsonObject().put("q", "buoys"));
+
+        Nickel.send(eb, EB_ADDRESS, first)
+                .compose(response->Nickel.send(eb, EB_ADDRESS, second))
+                .compose(response->{
+                    //Answered from the cache, with the caller's correlation id
+                    assertEquals(1, invocations.get());
+                    assertEquals(1, cache.hits());
+                    assertEquals(second.correlationId(), response.correlationId());
+                    assertEquals("buoys", new JsonObject(new String(response.getData())).getString("answer"));
+                    return Nickel.send(eb, EB_ADDRESS, createDefaultTestNickel().setType(NickelType.UPDATE));
+                })
+                .compose(response->Nickel.send(eb, EB_ADDRESS, afterUpdate))
+                .compose(response->{
+                    //The update invalidated the cached response
+                    assertEquals(2, invocations.get());
+                    assertEquals(afterUpdate.correlationId(), response.correlationId());
+                    assertEquals(1, cache.size());
+
+                    //An update passing through while a GET is in flight keeps its response out of the cache
+                    vertx.setTimer(20, id->Nickel.send(eb, EB_ADDRESS, createDefaultTestNickel().setType(NickelType.UPDATE)));
+                    return Nickel.send(eb, EB_ADDRESS, createDefaultTestNickel().setRequestQueryParams(new JsonObject().put("q", "slow")));
+                })
+                .onComplete(testContext.succeeding(response->testContext.verify(()->{
+                    assertEquals("slow", new JsonObject(new String(response.getData())).getString("answer"));
+                    assertEquals(0, cache.size());
+                    testContext.completeNow();
+                })));
+    }
+
+    @Test
+    @DisplayName("Coalesce identical GETs in flight")
+    void singleFlightSends(Vertx vertx, VertxTestContext testContext){
+        EventBus eb = vertx.eventBus();
+        AtomicInteger invocations = new AtomicInteger();
+        NickelSingleFlight singleFlight = new NickelSingleFlight();
+
+        router = new NickelRouter(eb, EB_ADDRESS)
+                .typeFunction(NickelType.GET, (in, out)->{
+                    invocations.incrementAndGet();
+                    Promise<Nickel> result = Promise.promise();
+                    vertx.setTimer(50, id->result.complete(out.pack(new JsonObject().put("answer", 42))));
+                    return result.future();
+                });
+
+        int callers = 5;
+        Checkpoint responses = testContext.checkpoint(callers);
+        for(int i = 0; i < callers; i++){
+            Nickel nickel = createDefaultTestNickel().setRequestQueryParams(new JsonObject().put("q", "buoys"));
+            Nickel.send(eb, EB_ADDRESS, nickel, singleFlight).onComplete(
+                    testContext.succeeding(response->testContext.verify(()->{
+                        //A single request reached the router, every caller got its own copy of the response
+                        assertEquals(1, invocations.get());
+                        assertEquals(callers - 1, singleFlight.coalesced());
+                        assertEquals(nickel.correlationId(), response.correlationId());
+                        assertEquals(42, new JsonObject(new String(response.getData())).getInteger("answer"));
+                        responses.flag();
+                    }))
+            );
+        }
+    }
+
+    @Test
+    @DisplayName("Time out requests locally")
+    void localTimeouts(Vertx vertx, VertxTestContext testContext){
+        EventBus eb = vertx.eventBus();
+        String address = "nickel-timeout-test";
+        AtomicInteger published = new AtomicInteger();
+
+        //Never answers GETs, answers POSTs right away
+        router = new NickelRouter(eb, address)
+                .typeFunction(NickelType.GET, (in, out)->Promise.<Nickel>promise().future())
+                .typeFunction(NickelType.POST, (in, out)->Future.succeededFuture(out));
+        consumer = eb.<Nickel>consumer(address, msg->{
+            if(NickelType.TIMEOUT.name().equals(msg.headers().get("type"))) published.incrementAndGet();
+        });
+
+        Nickel.sendWithTimeout(vertx, address, createDefaultTestNickel().setType(NickelType.POST), 60000)
+                .compose(response->Nickel.sendWithTimeout(vertx, address, createDefaultTestNickel(), 50))
+                .onComplete(testContext.succeeding(response->testContext.verify(()->{
+                    assertEquals(NickelType.TIMEOUT, response.type());
+                    assertEquals(504, response.statusCode());
+                    assertEquals(1, NickelMetrics.forAddress(address).timeouts());
+                    assertEquals(0, NickelReplyDispatcher.pending(eb, address));
+
+                    //Nothing was broadcast
+                    vertx.setTimer(100, id->testContext.verify(()->{
+                        assertEquals(0, published.get());
+                        testContext.completeNow();
+                    }));
+                })));
+    }
+
+    @Test
+    @DisplayName("Timeouts keep firing after the verticle that scheduled the first one is undeployed")
+    void timeoutWheel(Vertx vertx, VertxTestContext testContext){
+        NickelTimeouts timeouts = NickelTimeouts.forVertx(vertx.getDelegate());
+        List<NickelTimeouts.Timeout> scheduled = new ArrayList<>();
+
+        vertx.getDelegate().deployVerticle(new io.vertx.core.AbstractVerticle(){
+            @Override
+            public void start() {
+                scheduled.add(timeouts.schedule(60000, ()->testContext.failNow(new IllegalStateException("Cancelled timeout fired"))));
+            }
+        }, testContext.succeeding(id->vertx.getDelegate().undeploy(id, testContext.succeeding(v->testContext.verify(()->{
+            timeouts.schedule(50, testContext::completeNow);
+
+            //Cancelled timeouts stop counting right away
+            scheduled.get(0).cancel();
+            assertEquals(1, timeouts.scheduled());
+        })))));
+    }
+
+    @Test
+    @DisplayName("Send a batch with a window per address")
+    void sendWindowedBatch(Vertx vertx, VertxTestContext testContext){
+        EventBus eb = vertx.eventBus();
+        int batchSize = 20;
+        int window = 3;
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+
+        //Fails every PUT
+        router = new NickelRouter(eb, EB_ADDRESS)
+                .typeFunction(NickelType.GET, (in, out)->{
+                    maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                    Promise<Nickel> result = Promise.promise();
+                    vertx.setTimer(5, id->{
+                        inFlight.decrementAndGet();
+                        result.complete(out);
+                    });
+                    return result.future();
+                })
+                .typeFunction(NickelType.PUT, (in, out)->Future.failedFuture("Bad PUT"));
+
+        NickelBatch roll = new NickelBatch();
+        for(int i = 0; i < batchSize; i++){
+            roll.add(EB_ADDRESS, createDefaultTestNickel().setType(i == 10? NickelType.PUT: NickelType.GET));
+        }
+
+        Nickel.sendAll(eb, roll, window, NickelBatch.Failure.COLLECT_ALL).toList().subscribe(
+                results->testContext.verify(()->{
+                    assertEquals(batchSize, results.size());
+                    assertEquals(1, results.stream().filter(n->n.type() == NickelType.ERROR).count());
+                    assertEquals(window, maxInFlight.get());
+
+                    Nickel.sendAll(eb, roll, window, NickelBatch.Failure.FAIL_FAST).toList().subscribe(
+                            all->testContext.failNow(new IllegalStateException("Batch should have failed")),
+                            err->testContext.verify(()->{
+                                assertTrue(err instanceof ErrorNickel);
+                                testContext.completeNow();
+                            })
+                    );
+                }),
+                testContext::failNow
+        );
+    }
+
+    @Test
+    @DisplayName("Send a batch as a single envelope per address")
+    void envelopedBatch(Vertx vertx, VertxTestContext testContext){
+        EventBus eb = vertx.eventBus();
+        AtomicInteger messages = new AtomicInteger();
+        AtomicInteger handled = new AtomicInteger();
+
+        router = new NickelRouter(eb, EB_ADDRESS)
+                .typeFunction(NickelType.GET, (in, out)->Future.succeededFuture(out.pack(new JsonObject().put("orcid", in.orcid()))))
+                .typeFunction(NickelType.PUT, (in, out)->Future.failedFuture("Bad PUT"))
+                .typeHandler(NickelType.POST, nickel->handled.incrementAndGet());
+        consumer = eb.consumer(EB_ADDRESS, msg->messages.incrementAndGet());
+
+        NickelBatch roll = new NickelBatch();
+        for(int i = 0; i < 5; i++){
+            roll.add(EB_ADDRESS, createDefaultTestNickel());
+        }
+        roll.add(EB_ADDRESS, createDefaultTestNickel().setType(NickelType.PUT));
+        roll.add(EB_ADDRESS, createDefaultTestNickel().setType(NickelType.POST));
+
+        //The envelope survives the wire
+        NickelEnvelopeCodec codec = new NickelEnvelopeCodec();
+        NickelEnvelope envelope = NickelEnvelope.of(roll.iterator().next().getValue());
+        Buffer wire = Buffer.buffer();
+        codec.encodeToWire(wire, envelope);
+        NickelEnvelope decoded = codec.decodeFromWire(0, wire);
+        assertEquals(envelope.correlationId(), decoded.correlationId());
+        assertEquals(7, decoded.nickels().size());
+        assertEquals(NickelType.PUT, decoded.nickels().get(5).type());
+
+        Nickel.sendEnveloped(eb, roll)
+                .compose(responses->{
+                    //At most the request and its reply, instead of 7 requests and 6 replies
+                    assertTrue(messages.get() <= 2);
+                    assertEquals(1, handled.get());
+                    assertEquals(6, responses.size());
+                    assertEquals(5, responses.stream().filter(n->n.type() == NickelType.RESPONSE).count());
+                    assertEquals(1, responses.stream().filter(n->n.type() == NickelType.ERROR).count());
+
+                    //A batch function gets the whole envelope
+                    router.batchFunction(in->Future.succeededFuture(Collections.singletonList(
+                            Nickel.nickelForA(in.get(0)).pack(new JsonObject().put("batched", in.size())))));
+                    return Nickel.sendEnveloped(eb, roll);
+                })
+                .onComplete(testContext.succeeding(responses->testContext.verify(()->{
+                    assertEquals(1, responses.size());
+                    assertEquals(7, new JsonObject(new String(responses.get(0).getData())).getInteger("batched"));
+                    testContext.completeNow();
+                })));
+    }
+
+    @Test
+    @DisplayName("Swallow nickels on message headers when peeking")
+    void peekRouting(Vertx vertx, VertxTestContext testContext){
+        EventBus eb = vertx.eventBus();
+        int swallowed = NickelRouter.NICKLES_SWALLOWED;
+
+        router = new NickelRouter(eb, EB_ADDRESS)
+                .peek(true)
+                .typeHandler(NickelType.GET, getNickel->testContext.verify(()->{
+                    //The POST nickel published first was swallowed
+                    assertEquals(swallowed + 1, NickelRouter.NICKLES_SWALLOWED);
+                    testContext.completeNow();
+                }));
+
+        Nickel.publish(eb, EB_ADDRESS, createDefaultTestNickel().setType(NickelType.POST));
+        Nickel.publish(eb, EB_ADDRESS, createDefaultTestNickel());
+    }
+
     @Test
     @DisplayName("Use NickelRouter to handle nickels")
     void simpleNickelHandler(Vertx vertx, VertxTestContext testContext){